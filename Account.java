@@ -9,35 +9,36 @@ import java.util.regex.Pattern;
 
 public class Account {
 
-	private Connection connection;
+	private ConnectionPool pool;
 
-	public Account(Connection connection) {
-		this.connection = connection;
+	public Account(ConnectionPool pool) {
+		this.pool = pool;
 	}
 
-	public static int generateAccountNumber() {
-		return (int) (Math.random() * (9999 - 1001 + 1)) + 1001;
+	public int generateAccountNumber() throws SQLException {
+		return AccountNumberAllocator.forPool(pool).next();
 	}
 
+	@SuppressWarnings("try")
 	public String createAccount(Scanner scanner) {
 		try {
 			String name = "", middleName = "", surname = "";
 			while (true) {
 			    System.out.print("Enter First Name (as per Aadhaar): ");
 			    name = scanner.nextLine().trim();
-			    if (!name.matches("[A-Za-z]+")) {
+			    if (!isValidName(name)) {
 			        System.out.println("Invalid! Only letters allowed.");
 			        continue;
 			    }
 			    System.out.print("Enter Middle Name (as per Aadhaar, leave blank if none): ");
 			    middleName = scanner.nextLine().trim();
-			    if (!middleName.isEmpty() && !middleName.matches("[A-Za-z]+")) {
+			    if (!middleName.isEmpty() && !isValidName(middleName)) {
 			        System.out.println("Invalid! Only letters allowed.");
 			        continue;
 			    }
 			    System.out.print("Enter Last Name (as per Aadhaar): ");
 			    surname = scanner.nextLine().trim();
-			    if (!surname.matches("[A-Za-z]+")) {
+			    if (!isValidName(surname)) {
 			        System.out.println("Invalid! Only letters allowed.");
 			        continue;
 			    }
@@ -50,8 +51,7 @@ public class Account {
 				System.out.print(
 						"Enter userId in format " + name.toLowerCase() + "." + surname.toLowerCase() + "@XXXX : ");
 				userId = scanner.nextLine().trim();
-				String regex = Pattern.quote(name.toLowerCase() + "." + surname.toLowerCase()) + "@\\d{4}$";
-				if (!userId.matches(regex)) {
+				if (!isValidUserId(userId, name, surname)) {
 					System.out.println("Invalid format! Please enter as: " + name.toLowerCase() + "."
 							+ surname.toLowerCase() + "@XXXX");
 					continue;
@@ -95,7 +95,7 @@ public class Account {
 			while (true) {
 			    System.out.print("Set a 4-digit numeric Transaction PIN: ");
 			    transactionPin = scanner.nextLine().trim();
-			    if (!transactionPin.matches("^\\d{4}$")) {
+			    if (!isValidPin(transactionPin)) {
 			        System.out.println("Invalid PIN! PIN must be exactly 4 numeric digits.");
 			        continue;
 			    }
@@ -110,53 +110,64 @@ public class Account {
 
 
 			// Balance input
-			double balance = 0;
+			long balance = 0; // paise
 			while (true) {
 				System.out.print("Balance: ");
 				try {
-					balance = scanner.nextDouble();
-					scanner.nextLine(); // consume newline
+					balance = Money.parse(scanner.nextLine());
 					if (balance < 0) {
 						System.out.println("Balance cannot be negative.");
 						continue;
 					}
 					break;
-				} catch (Exception e) {
-					System.out.println("Invalid input! Please enter a number.");
-					scanner.nextLine(); // clear buffer
+				} catch (NumberFormatException e) {
+					System.out.println("Invalid input! Please enter an amount like 1500 or 1500.50.");
 				}
 			}
 
 			int accountNumber = generateAccountNumber();
 
-			// Insert into DB
-			String insertData = "INSERT INTO account (accountnumber, name, middle_name, surname, balance, userid, password, transaction_pin) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
-
-					try (PreparedStatement ps = connection.prepareStatement(insertData)) {
-					    ps.setInt(1, accountNumber);
-					    ps.setString(2, name);
-					    ps.setString(3, middleName);
-					    ps.setString(4, surname);
-					    ps.setDouble(5, balance);
-					    ps.setString(6, userId);
-					    ps.setString(7, password);
-					    ps.setString(8, transactionPin);  // <-- THIS LINE ADDED
-					    ps.executeUpdate();
+			// Insert into DB; the account, its opening posting and the deposit log commit together
+			String insertData = "INSERT INTO account (accountnumber, name, middle_name, surname, balance, userid, password, transaction_pin, posting_seq) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+			String depositTransaction = "INSERT INTO transaction (type, amount, destination_account, destination_userid, description) VALUES (?, ?, ?, ?, ?)";
+
+					String passwordHash = CredentialHasher.get().hash(password);
+					String pinHash = CredentialHasher.get().hash(transactionPin);
+					try (OperationMetrics.Scope ignored = OperationMetrics.start("Account.createAccount");
+							Connection connection = pool.getConnection()) {
+					    connection.setAutoCommit(false);
+					    try (PreparedStatement ps = connection.prepareStatement(insertData)) {
+					        ps.setInt(1, accountNumber);
+					        ps.setString(2, name);
+					        ps.setString(3, middleName);
+					        ps.setString(4, surname);
+					        ps.setLong(5, balance);
+					        ps.setString(6, userId);
+					        ps.setString(7, passwordHash);
+					        ps.setString(8, pinHash);
+					        ps.setLong(9, balance > 0 ? 1 : 0);
+					        ps.executeUpdate();
+					        // Log opening balance as a deposit transaction
+					        if (balance > 0) {
+					            AccountLedger.recordOpeningBalance(connection, accountNumber, balance);
+					            try (PreparedStatement tx = connection.prepareStatement(depositTransaction)) {
+					                tx.setString(1, "deposit");
+					                tx.setLong(2, balance);
+					                tx.setInt(3, accountNumber);
+					                tx.setString(4, userId);
+					                tx.setString(5, "Initial deposit during account creation");
+					                tx.executeUpdate();
+					            }
+					        }
+					        connection.commit();
+					    } catch (SQLException e) {
+					        connection.rollback();
+					        throw e;
+					    }
 					}
+					AccountStore.opened(pool, accountNumber, userId, balance, pinHash);
 					System.out.println("New account created! Account No: " + String.format("%04d", accountNumber));
 					System.out.println("UserId: " + userId);
-					// Log opening balance as a deposit transaction
-					if (balance > 0) {
-					    String depositTransaction = "INSERT INTO transaction (type, amount, destination_account, destination_userid, description) VALUES (?, ?, ?, ?, ?)";
-					    try (PreparedStatement tx = connection.prepareStatement(depositTransaction)) {
-					        tx.setString(1, "deposit");
-					        tx.setDouble(2, balance);
-					        tx.setInt(3, accountNumber);
-					        tx.setString(4, userId);
-					        tx.setString(5, "Initial deposit during account creation");
-					        tx.executeUpdate();
-					    }
-					}
 			return userId;
 
 		} catch (Exception e) {
@@ -166,9 +177,27 @@ public class Account {
 		}
 	}
 
+	// The rules createAccount enforces, shared with AccountImporter
+	static boolean isValidName(String name) {
+		return name.matches("[A-Za-z]+");
+	}
+
+	static boolean isValidUserId(String userId, String name, String surname) {
+		return userId.matches(Pattern.quote(name.toLowerCase() + "." + surname.toLowerCase()) + "@\\d{4}$");
+	}
+
+	static boolean isValidPassword(String password) {
+		return password.matches("^[^.,]+$") && password.length() >= 6;
+	}
+
+	static boolean isValidPin(String pin) {
+		return pin.matches("^\\d{4}$");
+	}
+
 	private boolean isUserIdUnique(String userId) {
 		String checkSql = "SELECT COUNT(*) FROM account WHERE userid=?";
-		try (PreparedStatement ps = connection.prepareStatement(checkSql)) {
+		try (Connection connection = pool.getConnection();
+				PreparedStatement ps = connection.prepareStatement(checkSql)) {
 			ps.setString(1, userId);
 			try (ResultSet rs = ps.executeQuery()) {
 				rs.next();
@@ -181,56 +210,34 @@ public class Account {
 	}
 
 	public boolean doesAccountExist(int accountNumber) {
-		String sql = "SELECT 1 FROM account WHERE accountnumber = ?";
-		try (PreparedStatement ps = connection.prepareStatement(sql)) {
-			ps.setInt(1, accountNumber);
-			try (ResultSet rs = ps.executeQuery()) {
-				return rs.next();
-			}
+		try {
+			return AccountIdentityCache.forPool(pool).get(accountNumber) != null;
 		} catch (Exception e) {
 			return false;
 		}
 	}
 
 	public boolean doesAccountExist(String userId) {
-		String sql = "SELECT 1 FROM account WHERE userid = ?";
-		try (PreparedStatement ps = connection.prepareStatement(sql)) {
-			ps.setString(1, userId);
-			try (ResultSet rs = ps.executeQuery()) {
-				return rs.next();
-			}
+		try {
+			return AccountIdentityCache.forPool(pool).get(userId) != null;
 		} catch (Exception e) {
 			return false;
 		}
 	}
 
-	public double getAccountBalance(int accountNumber) {
-		String sql = "SELECT balance FROM account WHERE accountnumber = ?";
-		try (PreparedStatement ps = connection.prepareStatement(sql)) {
-			ps.setInt(1, accountNumber);
-			try (ResultSet rs = ps.executeQuery()) {
-				if (rs.next()) {
-					return rs.getDouble("balance");
-				}
-			}
-		} catch (Exception e) {
-			System.out.println("Error fetching balance: " + e.getMessage());
-		}
-		return -1;
+	// From whichever store BankOperations uses for the pool (database, in-memory or mapped)
+	public long getAccountBalance(int accountNumber) {
+		return new BankOperations(pool).getAccountBalance(accountNumber);
 	}
 
-	public double getAccountBalance(String userId) {
-		String sql = "SELECT balance FROM account WHERE userid = ?";
-		try (PreparedStatement ps = connection.prepareStatement(sql)) {
-			ps.setString(1, userId);
-			try (ResultSet rs = ps.executeQuery()) {
-				if (rs.next()) {
-					return rs.getDouble("balance");
-				}
-			}
-		} catch (Exception e) {
+	// The userId is resolved to the account number once; the balance is then read by primary key
+	public long getAccountBalance(String userId) {
+		try {
+			AccountIdentityCache.Identity identity = AccountIdentityCache.forPool(pool).get(userId);
+			return identity == null ? -1 : getAccountBalance(identity.getAccountNumber());
+		} catch (SQLException e) {
 			System.out.println("Error fetching balance: " + e.getMessage());
+			return -1;
 		}
-		return -1;
 	}
 }
@@ -0,0 +1,473 @@
+package com.testlab.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Periodic checkpoints of the account table's hot state (account number, userId, balance, active flag)
+// in compact binary files, so a restarting node reloads it from local disk plus one catch-up query
+// instead of warming its caches one first lookup at a time. What is reloaded is the pool's
+// AccountIdentityCache; every later checkpoint refreshes the cached rows it re-reads, so those entries
+// stay fresh for as long as checkpoints are being written rather than for the cache's TTL. Balances are
+// recorded but not served from here: the stores read them from the database (or load their own copy).
+//
+// A snapshot is one consistent read of the whole table (a REPEATABLE READ transaction) stamped with the
+// database clock. Between snapshots, a delta holds the current row of every account whose updated_at is
+// after the previous checkpoint's stamp minus OVERLAP_MILLIS: a transaction that changed a row just
+// before a stamp but committed after it is still caught by the next delta, and since deltas carry whole
+// rows, seeing a row twice is harmless. Restore works the same way against the database for whatever
+// happened after the newest readable file.
+//
+//   dir/snapshot.ckpt                     the latest snapshot
+//   dir/delta-000001.ckpt, -000002, ...    deltas since it, removed when the next snapshot is written
+//
+// Each file is written under a temporary name, forced, renamed into place and ends with a CRC32;
+// restore stops at the first file that is missing or does not check out.
+public class AccountCheckpoint {
+
+	public static final long DEFAULT_SNAPSHOT_SECONDS = 3600;
+	public static final long DEFAULT_DELTA_SECONDS = 60;
+	public static final long OVERLAP_MILLIS = 60_000;
+
+	private static final int MAGIC = 0x41434B50; // "ACKP"
+	private static final int VERSION = 1;
+	private static final byte SNAPSHOT = 'S';
+	private static final byte DELTA = 'D';
+	// Per-row flag byte; 0 ends the rows
+	private static final int ROW = 1;
+	private static final int ACTIVE = 2;
+
+	private static final String SNAPSHOT_FILE = "snapshot.ckpt";
+	private static final String NOW = "SELECT CURRENT_TIMESTAMP(6)";
+	private static final String ALL_ROWS = "SELECT accountnumber, userid, balance, isActive FROM account "
+			+ "ORDER BY accountnumber";
+	private static final String CHANGED_ROWS = "SELECT accountnumber, userid, balance, isActive FROM account "
+			+ "WHERE updated_at > ? ORDER BY accountnumber";
+
+	private static final Map<ConnectionPool, AccountCheckpoint> CHECKPOINTS = new ConcurrentHashMap<>();
+
+	private final ConnectionPool pool;
+	private final Path directory;
+	private final AccountIdentityCache identities;
+	// How long warmed identities stay fresh after a checkpoint: long enough for the next one to be late
+	private final long warmedMillis;
+	// Stamp of the newest checkpoint on disk and the number the next delta gets; guarded by this
+	private Timestamp lastStamp;
+	private int nextDelta = 1;
+	private ScheduledExecutorService scheduler;
+
+	private AccountCheckpoint(ConnectionPool pool, Path directory, long deltaSeconds) {
+		this.pool = pool;
+		this.directory = directory;
+		this.identities = AccountIdentityCache.forPool(pool);
+		this.warmedMillis = 2 * TimeUnit.SECONDS.toMillis(deltaSeconds);
+	}
+
+	// Reads the snapshot and deltas in directory, catches up from the database, and seeds the pool's
+	// AccountIdentityCache; null if there is no readable snapshot (a cold start). The seeded entries
+	// stay fresh for the cache's TTL, or for as long as start keeps writing checkpoints.
+	@SuppressWarnings("try")
+	public static State restore(ConnectionPool pool, Path directory) throws IOException, SQLException {
+		try (OperationMetrics.Scope ignored = OperationMetrics.start("AccountCheckpoint.restore")) {
+			State state = read(directory);
+			if (state == null) {
+				return null;
+			}
+			try (Connection connection = pool.getConnection();
+					PreparedStatement ps = connection.prepareStatement(CHANGED_ROWS)) {
+				ps.setTimestamp(1, overlapped(state.asOf));
+				try (ResultSet rs = ps.executeQuery()) {
+					while (rs.next()) {
+						state.put(row(rs));
+						state.caughtUp++;
+					}
+				}
+			}
+			AccountIdentityCache identities = AccountIdentityCache.forPool(pool);
+			for (Row row : state.rows.values()) {
+				if (identities.warm(row.accountNumber, row.userId, row.active)) {
+					state.warmed++;
+				}
+			}
+			identities.caughtUp();
+			return state;
+		}
+	}
+
+	// The state recorded in directory, without touching the database; null if there is no readable
+	// snapshot
+	public static State read(Path directory) throws IOException {
+		State state = new State();
+		if (!readFile(directory.resolve(SNAPSHOT_FILE), SNAPSHOT, state)) {
+			return null;
+		}
+		for (int delta = 1;; delta++) {
+			Path file = deltaFile(directory, delta);
+			if (!Files.exists(file)) {
+				break;
+			}
+			if (!readFile(file, DELTA, state)) {
+				System.out.println("Checkpoint " + file + " is damaged; later deltas are ignored");
+				state.complete = false;
+				break;
+			}
+			state.deltas = delta;
+		}
+		return state;
+	}
+
+	// Writes checkpoints for this pool into directory on a daemon thread: a delta every deltaSeconds
+	// and a snapshot every snapshotSeconds. restored is what restore returned (or null); a missing or
+	// incomplete one means a fresh snapshot is taken first.
+	public static synchronized AccountCheckpoint start(ConnectionPool pool, Path directory, State restored,
+			long snapshotSeconds, long deltaSeconds) throws IOException {
+		AccountCheckpoint existing = CHECKPOINTS.get(pool);
+		if (existing != null) {
+			return existing;
+		}
+		Files.createDirectories(directory);
+		AccountCheckpoint checkpoint = new AccountCheckpoint(pool, directory, deltaSeconds);
+		if (restored != null && restored.complete) {
+			checkpoint.lastStamp = restored.asOf;
+			checkpoint.nextDelta = restored.deltas + 1;
+			// restore just caught up; the first delta takes over from here
+			checkpoint.identities.caughtUp(checkpoint.warmedMillis);
+		}
+		checkpoint.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "account-checkpoint");
+			t.setDaemon(true);
+			return t;
+		});
+		if (checkpoint.lastStamp == null) {
+			checkpoint.scheduler.execute(checkpoint::snapshotQuietly);
+		}
+		checkpoint.scheduler.scheduleWithFixedDelay(checkpoint::deltaQuietly, deltaSeconds, deltaSeconds,
+				TimeUnit.SECONDS);
+		checkpoint.scheduler.scheduleWithFixedDelay(checkpoint::snapshotQuietly, snapshotSeconds, snapshotSeconds,
+				TimeUnit.SECONDS);
+		CHECKPOINTS.put(pool, checkpoint);
+		return checkpoint;
+	}
+
+	public static AccountCheckpoint forPool(ConnectionPool pool) {
+		return CHECKPOINTS.get(pool);
+	}
+
+	// Writes a full snapshot in place of the current one and its deltas. The deltas go first: old deltas
+	// next to a new snapshot would replay older rows over newer ones, while an old snapshot left without
+	// its deltas only means a longer catch-up.
+	@SuppressWarnings("try")
+	public synchronized void writeSnapshot() throws IOException, SQLException {
+		try (OperationMetrics.Scope ignored = OperationMetrics.start("AccountCheckpoint.snapshot")) {
+			lastStamp = null;
+			for (int delta = 1; delta < nextDelta || Files.exists(deltaFile(directory, delta)); delta++) {
+				Files.deleteIfExists(deltaFile(directory, delta));
+			}
+			nextDelta = 1;
+			lastStamp = query(SNAPSHOT, directory.resolve(SNAPSHOT_FILE), null);
+		}
+	}
+
+	// Writes the rows changed since the last checkpoint, or a snapshot if there is none yet
+	@SuppressWarnings("try")
+	public synchronized void writeDelta() throws IOException, SQLException {
+		if (lastStamp == null) {
+			writeSnapshot();
+			return;
+		}
+		try (OperationMetrics.Scope ignored = OperationMetrics.start("AccountCheckpoint.delta")) {
+			lastStamp = query(DELTA, deltaFile(directory, nextDelta), overlapped(lastStamp));
+			nextDelta++;
+		}
+	}
+
+	// Stops the schedule and writes a last delta, so the next start has little to catch up on
+	public synchronized void close() throws IOException, SQLException {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		CHECKPOINTS.remove(pool, this);
+		writeDelta();
+	}
+
+	// Reads the rows (all of them, or those changed after since) in one consistent read, writes them
+	// to file and refreshes the cached identities among them; returns the database time the read was
+	// taken at
+	private Timestamp query(byte kind, Path file, Timestamp since) throws IOException, SQLException {
+		try (Connection connection = pool.getConnection()) {
+			long readAt = System.currentTimeMillis();
+			boolean autoCommit = connection.getAutoCommit();
+			int isolation = connection.getTransactionIsolation();
+			connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			connection.setAutoCommit(false);
+			try {
+				// The first read fixes the transaction's view, so the stamp is not later than the rows
+				Timestamp stamp;
+				try (Statement st = connection.createStatement(); ResultSet rs = st.executeQuery(NOW)) {
+					rs.next();
+					stamp = rs.getTimestamp(1);
+				}
+				try (PreparedStatement ps = connection.prepareStatement(since == null ? ALL_ROWS : CHANGED_ROWS)) {
+					if (since != null) {
+						ps.setTimestamp(1, since);
+					}
+					try (ResultSet rs = ps.executeQuery()) {
+						writeFile(file, kind, stamp, rs, identities, readAt);
+					}
+				}
+				connection.commit();
+				// not after close's last delta: nothing catches up after it
+				if (scheduler != null) {
+					identities.caughtUp(warmedMillis);
+				}
+				return stamp;
+			} catch (IOException | SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(autoCommit);
+				connection.setTransactionIsolation(isolation);
+			}
+		}
+	}
+
+	private static void writeFile(Path file, byte kind, Timestamp stamp, ResultSet rs,
+			AccountIdentityCache identities, long readAt) throws IOException, SQLException {
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(temporary.toFile())) {
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos, 1 << 16), new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeByte(kind);
+			out.writeLong(stamp.getTime());
+			out.writeInt(stamp.getNanos());
+			int count = 0;
+			int previous = 0;
+			while (rs.next()) {
+				Row row = row(rs);
+				identities.refresh(row.accountNumber, row.userId, row.active, readAt);
+				out.writeByte(row.active ? ROW | ACTIVE : ROW);
+				// rows come in account number order, so the gaps are small
+				writeVarLong(out, zigzag((long) row.accountNumber - previous));
+				writeVarLong(out, zigzag(row.balance));
+				out.writeUTF(row.userId);
+				previous = row.accountNumber;
+				count++;
+			}
+			out.writeByte(0);
+			out.writeInt(count);
+			out.writeLong(checked.getChecksum().getValue());
+			out.flush();
+			fos.getFD().sync();
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Applies the file to state; false if it is missing, of the wrong kind, truncated or fails its CRC.
+	// Rows go in only once the whole file has checked out.
+	private static boolean readFile(Path file, byte kind, State state) throws IOException {
+		if (!Files.exists(file)) {
+			return false;
+		}
+		Map<Integer, Row> rows = new HashMap<>();
+		Timestamp stamp;
+		try (InputStream in = Files.newInputStream(file)) {
+			CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(in, 1 << 16), new CRC32());
+			DataInputStream data = new DataInputStream(checked);
+			if (data.readInt() != MAGIC || data.readInt() != VERSION || data.readByte() != kind) {
+				return false;
+			}
+			stamp = new Timestamp(data.readLong());
+			stamp.setNanos(data.readInt());
+			int previous = 0;
+			for (int flags; (flags = data.readUnsignedByte()) != 0;) {
+				if ((flags & ~(ROW | ACTIVE)) != 0) {
+					return false;
+				}
+				int accountNumber = (int) (previous + unzigzag(readVarLong(data)));
+				long balance = unzigzag(readVarLong(data));
+				rows.put(accountNumber, new Row(accountNumber, data.readUTF(), balance, (flags & ACTIVE) != 0));
+				previous = accountNumber;
+			}
+			int count = data.readInt();
+			long expected = checked.getChecksum().getValue();
+			if (count != rows.size() || data.readLong() != expected) {
+				return false;
+			}
+		} catch (EOFException e) {
+			return false;
+		}
+		if (kind == SNAPSHOT) {
+			state.rows.clear();
+		}
+		state.rows.putAll(rows);
+		state.asOf = stamp;
+		return true;
+	}
+
+	private static Row row(ResultSet rs) throws SQLException {
+		return new Row(rs.getInt("accountnumber"), rs.getString("userid"), rs.getLong("balance"),
+				rs.getInt("isActive") == 1);
+	}
+
+	private static Timestamp overlapped(Timestamp stamp) {
+		return new Timestamp(stamp.getTime() - OVERLAP_MILLIS);
+	}
+
+	private static Path deltaFile(Path directory, int delta) {
+		return directory.resolve(String.format("delta-%06d.ckpt", delta));
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint in checkpoint");
+	}
+
+	private void snapshotQuietly() {
+		try {
+			writeSnapshot();
+		} catch (IOException | SQLException e) {
+			System.out.println("Could not write account snapshot to " + directory + ": " + e.getMessage());
+		}
+	}
+
+	private void deltaQuietly() {
+		try {
+			writeDelta();
+		} catch (IOException | SQLException e) {
+			System.out.println("Could not write account checkpoint to " + directory + ": " + e.getMessage());
+		}
+	}
+
+	// One account as of a checkpoint
+	public static final class Row {
+		private final int accountNumber;
+		private final String userId;
+		private final long balance;
+		private final boolean active;
+
+		Row(int accountNumber, String userId, long balance, boolean active) {
+			this.accountNumber = accountNumber;
+			this.userId = userId;
+			this.balance = balance;
+			this.active = active;
+		}
+
+		public int getAccountNumber() {
+			return accountNumber;
+		}
+
+		public String getUserId() {
+			return userId;
+		}
+
+		public long getBalance() {
+			return balance;
+		}
+
+		public boolean isActive() {
+			return active;
+		}
+	}
+
+	// Account state rebuilt from the files (and, after restore, the database)
+	public static final class State {
+		private final Map<Integer, Row> rows = new HashMap<>();
+		private Timestamp asOf;
+		private int deltas;
+		private boolean complete = true;
+		private int caughtUp;
+		private int warmed;
+
+		private void put(Row row) {
+			rows.put(row.accountNumber, row);
+		}
+
+		// null if the account was not in the checkpoint
+		public Row get(int accountNumber) {
+			return rows.get(accountNumber);
+		}
+
+		public Collection<Row> getRows() {
+			return Collections.unmodifiableCollection(rows.values());
+		}
+
+		public int size() {
+			return rows.size();
+		}
+
+		// Database time of the newest file read
+		public Timestamp getAsOf() {
+			return asOf;
+		}
+
+		public int getDeltas() {
+			return deltas;
+		}
+
+		// false if a damaged delta cut the replay short
+		public boolean isComplete() {
+			return complete;
+		}
+
+		// Rows re-read from the database by restore
+		public int getCaughtUp() {
+			return caughtUp;
+		}
+
+		// Accounts restore put into the AccountIdentityCache; fewer than size() if it filled up
+		public int getWarmed() {
+			return warmed;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package com.testlab.model;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Size-bounded, TTL-based cache of account identity (account number <-> userId, active flag),
+// shared by every Account, BankOperations and BankService on the same pool. Money-moving SQL
+// still checks isActive itself, so a stale entry can only affect menu pre-checks, and only
+// until its TTL runs out or the owning code invalidates it.
+//
+// Entries warmed from an AccountCheckpoint do not use the TTL: they stay fresh for as long as the
+// checkpoint keeps catching up (see caughtUp), since every catch-up re-reads each changed row and
+// refreshes the entry.
+public class AccountIdentityCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 100_000;
+	public static final long DEFAULT_TTL_MILLIS = 60_000;
+
+	private static final String BY_ACCOUNT_NUMBER = "SELECT accountnumber, userid, isActive FROM account WHERE accountnumber = ?";
+	private static final String BY_USER_ID = "SELECT accountnumber, userid, isActive FROM account WHERE userid = ?";
+
+	// One cache per pool (that is, per database) for the whole process
+	private static final Map<ConnectionPool, AccountIdentityCache> CACHES = new ConcurrentHashMap<>();
+
+	private final ConnectionPool pool;
+	private final int maxEntries;
+	private final long ttlMillis;
+
+	// Guarded by this; byAccountNumber is in LRU order, byUserId indexes the same entries
+	private final LinkedHashMap<Integer, Identity> byAccountNumber = new LinkedHashMap<>(256, 0.75f, true);
+	private final Map<String, Identity> byUserId = new HashMap<>();
+	// Warmed entries are fresh until then; guarded by this
+	private long warmedUntil;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public AccountIdentityCache(ConnectionPool pool, int maxEntries, long ttlMillis) {
+		this.pool = pool;
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+	}
+
+	public static AccountIdentityCache forPool(ConnectionPool pool) {
+		return CACHES.computeIfAbsent(pool,
+				p -> new AccountIdentityCache(p, DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS));
+	}
+
+	// Returns the identity for this account number, or null if no such account exists
+	public Identity get(int accountNumber) throws SQLException {
+		Identity identity;
+		synchronized (this) {
+			identity = fresh(byAccountNumber.get(accountNumber));
+		}
+		if (identity != null) {
+			hits.increment();
+			return identity;
+		}
+		misses.increment();
+		return load(BY_ACCOUNT_NUMBER, accountNumber);
+	}
+
+	// Returns the identity for this userId, or null if no such account exists
+	public Identity get(String userId) throws SQLException {
+		Identity identity;
+		synchronized (this) {
+			identity = fresh(byUserId.get(userId));
+		}
+		if (identity != null) {
+			hits.increment();
+			return identity;
+		}
+		misses.increment();
+		return load(BY_USER_ID, userId);
+	}
+
+	// Seeds the cache with an identity read by a checkpoint catch-up; it stays fresh while the
+	// catch-ups continue (see caughtUp), and nothing already cached is evicted to make room for it.
+	// false if the cache was full.
+	public synchronized boolean warm(int accountNumber, String userId, boolean active) {
+		if (byAccountNumber.size() >= maxEntries && !byAccountNumber.containsKey(accountNumber)) {
+			return false;
+		}
+		put(new Identity(accountNumber, userId, active, true));
+		return true;
+	}
+
+	// Replaces a cached entry with the row a checkpoint catch-up started reading at readAt (a
+	// System.currentTimeMillis() time). Entries loaded after that are newer than the row and kept;
+	// accounts not cached are not added.
+	public synchronized void refresh(int accountNumber, String userId, boolean active, long readAt) {
+		Identity cached = byAccountNumber.get(accountNumber);
+		if (cached != null && cached.loadedAt <= readAt) {
+			put(new Identity(accountNumber, userId, active, true));
+		}
+	}
+
+	// A checkpoint catch-up has just refreshed every changed row; warmed entries stay fresh for
+	// validMillis more, by when the next catch-up is due
+	public synchronized void caughtUp(long validMillis) {
+		warmedUntil = Math.max(warmedUntil, System.currentTimeMillis() + validMillis);
+	}
+
+	// As caughtUp, for as long as a loaded entry would stay fresh
+	public void caughtUp() {
+		caughtUp(ttlMillis);
+	}
+
+	public synchronized void invalidate(int accountNumber) {
+		Identity removed = byAccountNumber.remove(accountNumber);
+		if (removed != null) {
+			byUserId.remove(removed.userId);
+		}
+	}
+
+	public synchronized void invalidate(String userId) {
+		Identity removed = byUserId.remove(userId);
+		if (removed != null) {
+			byAccountNumber.remove(removed.accountNumber);
+		}
+	}
+
+	public synchronized void clear() {
+		byAccountNumber.clear();
+		byUserId.clear();
+	}
+
+	private Identity fresh(Identity identity) {
+		if (identity == null) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		if (identity.warmed ? now > warmedUntil : now - identity.loadedAt > ttlMillis) {
+			byAccountNumber.remove(identity.accountNumber);
+			byUserId.remove(identity.userId);
+			return null;
+		}
+		return identity;
+	}
+
+	// Misses are not cached, so a newly created account is visible immediately
+	private Identity load(String sql, Object key) throws SQLException {
+		Identity identity = null;
+		try (Connection connection = pool.getConnection();
+				PreparedStatement ps = connection.prepareStatement(sql)) {
+			ps.setObject(1, key);
+			try (ResultSet rs = ps.executeQuery()) {
+				if (rs.next()) {
+					identity = new Identity(rs.getInt("accountnumber"), rs.getString("userid"),
+							rs.getInt("isActive") == 1, false);
+				}
+			}
+		}
+		if (identity != null) {
+			put(identity);
+		}
+		return identity;
+	}
+
+	private synchronized void put(Identity identity) {
+		Identity previous = byAccountNumber.put(identity.accountNumber, identity);
+		if (previous != null && !previous.userId.equals(identity.userId)) {
+			byUserId.remove(previous.userId);
+		}
+		byUserId.put(identity.userId, identity);
+		Iterator<Identity> eldest = byAccountNumber.values().iterator();
+		while (byAccountNumber.size() > maxEntries && eldest.hasNext()) {
+			Identity evicted = eldest.next();
+			eldest.remove();
+			byUserId.remove(evicted.userId);
+			evictions.increment();
+		}
+	}
+
+	public synchronized int size() {
+		return byAccountNumber.size();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public double getHitRate() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	public String getStats() {
+		return String.format("size=%d hits=%d misses=%d evictions=%d hitRate=%.1f%%", size(), getHits(),
+				getMisses(), getEvictions(), getHitRate() * 100);
+	}
+
+	public static class Identity {
+		private final int accountNumber;
+		private final String userId;
+		private final boolean active;
+		// Read by a checkpoint catch-up rather than loaded on a miss
+		private final boolean warmed;
+		private final long loadedAt = System.currentTimeMillis();
+
+		Identity(int accountNumber, String userId, boolean active, boolean warmed) {
+			this.accountNumber = accountNumber;
+			this.userId = userId;
+			this.active = active;
+			this.warmed = warmed;
+		}
+
+		public int getAccountNumber() {
+			return accountNumber;
+		}
+
+		public String getUserId() {
+			return userId;
+		}
+
+		public boolean isActive() {
+			return active;
+		}
+	}
+}
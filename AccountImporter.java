@@ -0,0 +1,460 @@
+package com.testlab.model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Bulk onboarding (a branch migration) from a CSV of
+//
+//   name,middle_name,surname,userid,password,pin,opening_balance
+//
+// with the opening balance in rupees (e.g. 1500.50). Password rules forbid ',' so no field needs
+// quoting; blank lines, '#' comments and a header row are skipped. The file is streamed a chunk at a
+// time. Each chunk is validated in parallel with the same rules as Account.createAccount, checked
+// for userIds already taken with one set-based query, hashed in parallel, and inserted in one
+// transaction with three multi-row INSERTs: the accounts, their opening postings and their deposit
+// log rows. Rejected rows are reported with the reason and never stop the import.
+//
+// Hashing dominates: every row needs two PBKDF2 hashes. They run on the importer's own hasher, sized
+// by threads, rather than the shared one, whose small queue is there to keep logins from starving
+// transactions and would shed an import.
+public class AccountImporter {
+
+	public static final int DEFAULT_CHUNK_SIZE = 1_000;
+
+	private static final int FIELDS = 7;
+	private static final String INSERT_ACCOUNTS = "INSERT INTO account (accountnumber, name, middle_name, surname, balance, userid, password, transaction_pin, posting_seq) VALUES ";
+	private static final String ACCOUNT_ROW = "(?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	private static final String INSERT_DEPOSITS = "INSERT INTO transaction (type, amount, destination_account, destination_userid, description) VALUES ";
+	private static final String DEPOSIT_ROW = "('deposit', ?, ?, ?, 'Initial deposit during account creation')";
+
+	private final ConnectionPool pool;
+	private final AccountNumberAllocator allocator;
+	private final int chunkSize;
+	private final int threads;
+
+	public AccountImporter(ConnectionPool pool) {
+		this(pool, DEFAULT_CHUNK_SIZE, Runtime.getRuntime().availableProcessors());
+	}
+
+	public AccountImporter(ConnectionPool pool, int chunkSize, int threads) {
+		if (chunkSize <= 0 || threads <= 0) {
+			throw new IllegalArgumentException("Chunk size and threads must be positive");
+		}
+		this.pool = pool;
+		this.allocator = AccountNumberAllocator.forPool(pool);
+		this.chunkSize = chunkSize;
+		this.threads = threads;
+	}
+
+	@SuppressWarnings("try")
+	public Report run(Path file) throws IOException {
+		Report report = new Report();
+		// userIds seen earlier in the file; the database check only sees committed chunks
+		Set<String> seen = new HashSet<>();
+		AtomicInteger count = new AtomicInteger();
+		ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "account-import-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		CredentialHasher hasher = new CredentialHasher(CredentialHasher.get().getIterations(), threads, threads);
+		try (OperationMetrics.Scope ignored = OperationMetrics.start("AccountImporter.run");
+				BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			List<Row> chunk = new ArrayList<>(chunkSize);
+			String text;
+			int lineNumber = 0;
+			while ((text = reader.readLine()) != null) {
+				lineNumber++;
+				text = text.trim();
+				if (text.isEmpty() || text.startsWith("#")
+						|| (lineNumber == 1 && text.toLowerCase().startsWith("name,"))) {
+					continue;
+				}
+				chunk.add(new Row(lineNumber, text.split(",", -1)));
+				if (chunk.size() == chunkSize) {
+					importChunk(chunk, seen, workers, hasher, report);
+					chunk = new ArrayList<>(chunkSize);
+				}
+			}
+			if (!chunk.isEmpty()) {
+				importChunk(chunk, seen, workers, hasher, report);
+			}
+		} finally {
+			workers.shutdownNow();
+			hasher.close();
+		}
+		report.results.sort(Comparator.comparingInt(r -> r.lineNumber));
+		return report;
+	}
+
+	private void importChunk(List<Row> chunk, Set<String> seen, ExecutorService workers, CredentialHasher hasher,
+			Report report) {
+		List<Row> checked;
+		try {
+			checked = parallel(workers, chunk, row -> {
+				row.problem = validate(row);
+				return row;
+			});
+		} catch (ExecutionException e) {
+			rejectAll(chunk, report, "Import failed: " + e.getCause().getMessage());
+			return;
+		}
+		List<Row> valid = new ArrayList<>(chunk.size());
+		for (Row row : checked) {
+			if (row.problem != null) {
+				report.reject(row, row.problem);
+			} else if (!seen.add(row.userId)) {
+				report.reject(row, "Duplicate userId earlier in the file.");
+			} else {
+				valid.add(row);
+			}
+		}
+		if (valid.isEmpty()) {
+			return;
+		}
+
+		// a userId can be taken between the check and the insert; such a chunk is re-checked once
+		for (int attempt = 1;; attempt++) {
+			List<Row> fresh;
+			try {
+				fresh = dropTaken(valid, report);
+				if (fresh.isEmpty()) {
+					return;
+				}
+				if (attempt == 1) {
+					for (Row row : parallel(workers, fresh, row -> {
+						row.passwordHash = hasher.hash(row.password);
+						row.pinHash = hasher.hash(row.pin);
+						return row;
+					})) {
+						row.password = null;
+						row.pin = null;
+					}
+				}
+				// fresh numbers on every attempt: the violation may have been a number taken meanwhile
+				for (Row row : fresh) {
+					row.accountNumber = allocator.next();
+				}
+				insert(fresh);
+			} catch (SQLIntegrityConstraintViolationException e) {
+				if (attempt < 2) {
+					continue;
+				}
+				rejectAll(valid, report, "Import failed: " + e.getMessage());
+				return;
+			} catch (SQLException | ExecutionException e) {
+				Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+				rejectAll(valid, report, "Import failed: " + cause.getMessage());
+				return;
+			}
+			for (Row row : fresh) {
+				report.created(row);
+			}
+			return;
+		}
+	}
+
+	// null if the row can be imported, else why not
+	private static String validate(Row row) {
+		if (row.fields.length != FIELDS) {
+			return "Expected " + FIELDS + " fields, found " + row.fields.length + ".";
+		}
+		String name = row.fields[0].trim();
+		String middleName = row.fields[1].trim();
+		String surname = row.fields[2].trim();
+		row.userId = row.fields[3].trim();
+		if (!Account.isValidName(name) || !Account.isValidName(surname)
+				|| (!middleName.isEmpty() && !Account.isValidName(middleName))) {
+			return "Invalid name: only letters allowed.";
+		}
+		if (!Account.isValidUserId(row.userId, name, surname)) {
+			return "Invalid userId: expected " + name.toLowerCase() + "." + surname.toLowerCase() + "@XXXX.";
+		}
+		String password = row.fields[4];
+		if (!Account.isValidPassword(password)) {
+			return "Invalid password: at least 6 characters, no '.' or ','.";
+		}
+		String pin = row.fields[5].trim();
+		if (!Account.isValidPin(pin)) {
+			return "Invalid PIN: must be exactly 4 numeric digits.";
+		}
+		long balance;
+		try {
+			balance = Money.parse(row.fields[6]);
+		} catch (NumberFormatException e) {
+			return "Invalid opening balance: " + row.fields[6].trim();
+		}
+		if (balance < 0) {
+			return "Opening balance cannot be negative.";
+		}
+		row.name = name;
+		row.middleName = middleName;
+		row.surname = surname;
+		row.password = password;
+		row.pin = pin;
+		row.balance = balance;
+		return null;
+	}
+
+	// Rejects the rows whose userId is already in the database, with one query for the whole chunk
+	private List<Row> dropTaken(List<Row> rows, Report report) throws SQLException {
+		Set<String> taken = new HashSet<>();
+		String sql = "SELECT userid FROM account WHERE userid IN ("
+				+ String.join(", ", Collections.nCopies(rows.size(), "?")) + ")";
+		try (Connection connection = pool.getConnection();
+				// built per size, so it bypasses the statement cache on purpose
+				PreparedStatement ps = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+						ResultSet.CONCUR_READ_ONLY)) {
+			for (int i = 0; i < rows.size(); i++) {
+				ps.setString(i + 1, rows.get(i).userId);
+			}
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					taken.add(rs.getString(1));
+				}
+			}
+		}
+		List<Row> fresh = new ArrayList<>(rows.size());
+		for (Row row : rows) {
+			if (taken.contains(row.userId)) {
+				if (!row.rejected) {
+					report.reject(row, "That userId is already taken.");
+				}
+			} else {
+				fresh.add(row);
+			}
+		}
+		return fresh;
+	}
+
+	// The chunk's accounts, opening postings and deposit log rows in one transaction
+	private void insert(List<Row> rows) throws SQLException {
+		List<Row> funded = new ArrayList<>(rows.size());
+		for (Row row : rows) {
+			if (row.balance > 0) {
+				funded.add(row);
+			}
+		}
+		try (Connection connection = pool.getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				try (PreparedStatement ps = multiRow(connection, INSERT_ACCOUNTS, ACCOUNT_ROW, rows.size())) {
+					int i = 0;
+					for (Row row : rows) {
+						ps.setInt(++i, row.accountNumber);
+						ps.setString(++i, row.name);
+						ps.setString(++i, row.middleName);
+						ps.setString(++i, row.surname);
+						ps.setLong(++i, row.balance);
+						ps.setString(++i, row.userId);
+						ps.setString(++i, row.passwordHash);
+						ps.setString(++i, row.pinHash);
+						ps.setLong(++i, row.balance > 0 ? 1 : 0);
+					}
+					ps.executeUpdate();
+				}
+				if (!funded.isEmpty()) {
+					try (PreparedStatement ps = connection.prepareStatement(
+							AccountLedger.openingBalances(funded.size()), ResultSet.TYPE_FORWARD_ONLY,
+							ResultSet.CONCUR_READ_ONLY)) {
+						int i = 0;
+						for (Row row : funded) {
+							ps.setInt(++i, row.accountNumber);
+							ps.setLong(++i, row.balance);
+							ps.setLong(++i, row.balance);
+						}
+						ps.executeUpdate();
+					}
+					try (PreparedStatement ps = multiRow(connection, INSERT_DEPOSITS, DEPOSIT_ROW, funded.size())) {
+						int i = 0;
+						for (Row row : funded) {
+							ps.setLong(++i, row.balance);
+							ps.setInt(++i, row.accountNumber);
+							ps.setString(++i, row.userId);
+						}
+						ps.executeUpdate();
+					}
+				}
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			}
+		}
+		for (Row row : rows) {
+			AccountStore.opened(pool, row.accountNumber, row.userId, row.balance, row.pinHash);
+		}
+	}
+
+	private static PreparedStatement multiRow(Connection connection, String insert, String values, int rows)
+			throws SQLException {
+		return connection.prepareStatement(insert + String.join(", ", Collections.nCopies(rows, values)),
+				ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+	}
+
+	private static List<Row> parallel(ExecutorService workers, List<Row> rows, Step step)
+			throws ExecutionException {
+		List<Future<Row>> futures = new ArrayList<>(rows.size());
+		for (Row row : rows) {
+			futures.add(workers.submit((Callable<Row>) () -> step.apply(row)));
+		}
+		List<Row> done = new ArrayList<>(rows.size());
+		try {
+			for (Future<Row> future : futures) {
+				done.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ExecutionException("Interrupted", e);
+		}
+		return done;
+	}
+
+	private static void rejectAll(List<Row> rows, Report report, String message) {
+		for (Row row : rows) {
+			if (!row.rejected) {
+				report.reject(row, message);
+			}
+		}
+	}
+
+	@FunctionalInterface
+	private interface Step {
+		Row apply(Row row) throws Exception;
+	}
+
+	private static class Row {
+		final int lineNumber;
+		final String[] fields;
+		String problem;
+		String name;
+		String middleName;
+		String surname;
+		String userId;
+		String password;
+		String pin;
+		String passwordHash;
+		String pinHash;
+		long balance;
+		int accountNumber;
+		boolean rejected;
+
+		Row(int lineNumber, String[] fields) {
+			this.lineNumber = lineNumber;
+			this.fields = fields;
+		}
+	}
+
+	// The outcome for one line of the file
+	public static class LineResult {
+		private final int lineNumber;
+		private final String userId;
+		private final int accountNumber;
+		private final String message;
+
+		LineResult(int lineNumber, String userId, int accountNumber, String message) {
+			this.lineNumber = lineNumber;
+			this.userId = userId;
+			this.accountNumber = accountNumber;
+			this.message = message;
+		}
+
+		public int getLineNumber() {
+			return lineNumber;
+		}
+
+		// null if the line was rejected before its userId could be read
+		public String getUserId() {
+			return userId;
+		}
+
+		// 0 for a rejected line
+		public int getAccountNumber() {
+			return accountNumber;
+		}
+
+		public boolean isCreated() {
+			return accountNumber != 0;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			return lineNumber + "," + (userId == null ? "" : userId) + ","
+					+ (accountNumber == 0 ? "" : String.format("%04d", accountNumber)) + "," + message;
+		}
+	}
+
+	public static class Report {
+		private final List<LineResult> results = new ArrayList<>();
+		private long created;
+		private long totalOpening;
+
+		void created(Row row) {
+			results.add(new LineResult(row.lineNumber, row.userId, row.accountNumber, "OK"));
+			created++;
+			totalOpening += row.balance;
+		}
+
+		void reject(Row row, String message) {
+			row.rejected = true;
+			results.add(new LineResult(row.lineNumber, row.userId, 0, message));
+		}
+
+		public List<LineResult> getResults() {
+			return results;
+		}
+
+		public List<LineResult> getRejects() {
+			List<LineResult> rejects = new ArrayList<>();
+			for (LineResult result : results) {
+				if (!result.isCreated()) {
+					rejects.add(result);
+				}
+			}
+			return rejects;
+		}
+
+		public long getCreated() {
+			return created;
+		}
+
+		public long getRejected() {
+			return results.size() - created;
+		}
+
+		// paise
+		public long getTotalOpeningBalance() {
+			return totalOpening;
+		}
+
+		@Override
+		public String toString() {
+			return "Account import: " + created + " created, " + getRejected() + " rejected, opening balances "
+					+ Money.format(totalOpening) + " ₹.";
+		}
+	}
+}
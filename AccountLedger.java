@@ -0,0 +1,136 @@
+package com.testlab.model;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Per-account postings: every money movement writes one account_posting row per account it touches,
+// in the same DB transaction as the balance update. The key is (accountnumber, seq), so an account's
+// history is one primary key range scan, newest first, with the running balance already on each row.
+//
+// Writers bump account.posting_seq in their balance UPDATE and then copy seq and balance from the
+// (still locked) account row with INSERT ... SELECT, so no extra read is needed. When several
+// postings hit one account in a single transaction, seqBack and balanceBack step back from the final
+// values to the ones each posting had.
+public class AccountLedger {
+
+	private static final String PAGE = "SELECT seq, datetime, type, amount, balance_after, counterparty, description "
+			+ "FROM account_posting WHERE accountnumber = ? AND seq < ? ORDER BY seq DESC LIMIT ?";
+
+	private static final String OPENING_INSERT = "INSERT INTO account_posting (accountnumber, seq, type, amount, balance_after, description) VALUES ";
+	private static final String OPENING_ROW = "(?, 1, 'deposit', ?, ?, 'Opening balance')";
+	private static final String OPENING = OPENING_INSERT + OPENING_ROW;
+
+	private final ConnectionPool pool;
+
+	public AccountLedger(ConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	public List<Posting> latest(int accountNumber, int limit) throws SQLException {
+		return before(accountNumber, Long.MAX_VALUE, limit);
+	}
+
+	// Postings older than seq, newest first; pass the last seq of one page to get the next
+	public List<Posting> before(int accountNumber, long seq, int limit) throws SQLException {
+		List<Posting> postings = new ArrayList<>(limit);
+		try (Connection connection = pool.getConnection(); PreparedStatement ps = connection.prepareStatement(PAGE)) {
+			ps.setInt(1, accountNumber);
+			ps.setLong(2, seq);
+			ps.setInt(3, limit);
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					Posting posting = new Posting();
+					posting.seq = rs.getLong("seq");
+					posting.datetime = rs.getTimestamp("datetime");
+					posting.type = rs.getString("type");
+					posting.amount = rs.getLong("amount");
+					posting.balanceAfter = rs.getLong("balance_after");
+					int counterparty = rs.getInt("counterparty");
+					posting.counterparty = rs.wasNull() ? null : counterparty;
+					posting.description = rs.getString("description");
+					postings.add(posting);
+				}
+			}
+		}
+		return postings;
+	}
+
+	// Seq 1 of a new account; run in the transaction that inserts the account with posting_seq = 1
+	static void recordOpeningBalance(Connection connection, int accountNumber, long balance) throws SQLException {
+		try (PreparedStatement ps = connection.prepareStatement(OPENING)) {
+			ps.setInt(1, accountNumber);
+			ps.setLong(2, balance);
+			ps.setLong(3, balance);
+			ps.executeUpdate();
+		}
+	}
+
+	// One statement inserting the opening posting of rows new accounts; bind accountnumber, balance,
+	// balance for each
+	static String openingBalances(int rows) {
+		return OPENING_INSERT + String.join(", ", Collections.nCopies(rows, OPENING_ROW));
+	}
+
+	// Binds BankService.POSTING; amount is signed (negative for debits)
+	static void bindPosting(PreparedStatement ps, int accountNumber, int seqBack, long balanceBack, String type,
+			long amount, Integer counterparty, String description) throws SQLException {
+		ps.setInt(1, seqBack);
+		ps.setString(2, type);
+		ps.setLong(3, amount);
+		ps.setLong(4, balanceBack);
+		if (counterparty == null) {
+			ps.setNull(5, Types.INTEGER);
+		} else {
+			ps.setInt(5, counterparty);
+		}
+		ps.setString(6, description);
+		ps.setInt(7, accountNumber);
+	}
+
+	public static class Posting {
+		private long seq;
+		private Timestamp datetime;
+		private String type;
+		private long amount;
+		private long balanceAfter;
+		private Integer counterparty;
+		private String description;
+
+		public long getSeq() {
+			return seq;
+		}
+
+		public Timestamp getDatetime() {
+			return datetime;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		// paise, negative for money leaving the account
+		public long getAmount() {
+			return amount;
+		}
+
+		public long getBalanceAfter() {
+			return balanceAfter;
+		}
+
+		// The other account for transfers, null for deposits and withdrawals
+		public Integer getCounterparty() {
+			return counterparty;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package com.testlab.model;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Hands out account numbers from blocks reserved in the account_number_sequence table (created by
+// SchemaMigrator). Reserving a block is one short transaction (row lock on the sequence row, bump,
+// commit), so every creator in every JVM gets disjoint blocks and numbers within a block cost no
+// round trip at all. Numbers left in a block when the JVM exits are simply never used.
+//
+// The sequence starts above the highest existing account number, so the legacy random 4-digit
+// accounts (1001 - 9999) are never collided with; "%04d" keeps displaying those as before.
+public class AccountNumberAllocator {
+
+	public static final int DEFAULT_BLOCK_SIZE = 50;
+	// accountnumber is an INT column, so 9 digits is the widest that always fits
+	public static final int DEFAULT_DIGITS = 8;
+	public static final int MAX_DIGITS = 9;
+	public static final int FIRST_ACCOUNT_NUMBER = 1001;
+
+	private static final String SEQUENCE_NAME = "account";
+	private static final String LOCK = "SELECT next_value FROM account_number_sequence WHERE name = ? FOR UPDATE";
+	private static final String BUMP = "UPDATE account_number_sequence SET next_value = ? WHERE name = ?";
+	private static final String SEED = "INSERT INTO account_number_sequence (name, next_value) SELECT ?, COALESCE(MAX(accountnumber) + 1, ?) FROM account";
+
+	private static final Map<ConnectionPool, AccountNumberAllocator> ALLOCATORS = new ConcurrentHashMap<>();
+
+	private final ConnectionPool pool;
+	private final int blockSize;
+	private final long maxAccountNumber;
+
+	// Guarded by this: the current block is [next, limit)
+	private long next;
+	private long limit;
+
+	public AccountNumberAllocator(ConnectionPool pool, int blockSize, int digits) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+		}
+		if (digits < 4 || digits > MAX_DIGITS) {
+			throw new IllegalArgumentException("Account number width must be 4 to " + MAX_DIGITS + " digits: " + digits);
+		}
+		this.pool = pool;
+		this.blockSize = blockSize;
+		this.maxAccountNumber = (long) Math.pow(10, digits) - 1;
+	}
+
+	// Sized by -Dbank.account.block and -Dbank.account.digits
+	public static AccountNumberAllocator forPool(ConnectionPool pool) {
+		return ALLOCATORS.computeIfAbsent(pool, p -> new AccountNumberAllocator(p,
+				Integer.getInteger("bank.account.block", DEFAULT_BLOCK_SIZE),
+				Integer.getInteger("bank.account.digits", DEFAULT_DIGITS)));
+	}
+
+	public synchronized int next() throws SQLException {
+		if (next >= limit) {
+			reserveBlock();
+		}
+		return (int) next++;
+	}
+
+	public long getMaxAccountNumber() {
+		return maxAccountNumber;
+	}
+
+	private void reserveBlock() throws SQLException {
+		try (Connection connection = pool.getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				long start = lockSequence(connection);
+				if (start > maxAccountNumber) {
+					connection.rollback();
+					throw new SQLException("Account numbers exhausted: all " + maxAccountNumber
+							+ " have been allocated. Raise bank.account.digits.");
+				}
+				long end = Math.min(start + blockSize, maxAccountNumber + 1);
+				try (PreparedStatement ps = connection.prepareStatement(BUMP)) {
+					ps.setLong(1, end);
+					ps.setString(2, SEQUENCE_NAME);
+					ps.executeUpdate();
+				}
+				connection.commit();
+				next = start;
+				limit = end;
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			}
+		}
+	}
+
+	// Locks the sequence row and returns its next value, seeding it on first use
+	private long lockSequence(Connection connection) throws SQLException {
+		for (int attempt = 0;; attempt++) {
+			try (PreparedStatement ps = connection.prepareStatement(LOCK)) {
+				ps.setString(1, SEQUENCE_NAME);
+				try (ResultSet rs = ps.executeQuery()) {
+					if (rs.next()) {
+						return rs.getLong("next_value");
+					}
+				}
+			}
+			try (PreparedStatement ps = connection.prepareStatement(SEED)) {
+				ps.setString(1, SEQUENCE_NAME);
+				ps.setLong(2, FIRST_ACCOUNT_NUMBER);
+				ps.executeUpdate();
+			} catch (SQLException e) {
+				// another creator seeded it first; lock theirs instead
+				boolean duplicate = e instanceof SQLIntegrityConstraintViolationException
+						|| "23000".equals(e.getSQLState()) || "23505".equals(e.getSQLState());
+				if (!duplicate || attempt > 0) {
+					throw e;
+				}
+				connection.rollback();
+			}
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.testlab.model;
+
+import java.sql.SQLException;
+import java.util.regex.Pattern;
+
+// An account named the way a user typed it (a numeric account number or a name.surname@xxxx userId),
+// resolved once to its integer account number. Operations and the hot SQL behind them are keyed on
+// the account number alone, the narrow primary key, so a userId never reaches a WHERE clause after
+// this point and each operation has a single implementation.
+public final class AccountRef {
+
+	public static final Pattern USER_ID = Pattern.compile("^[a-z]+\\.[a-z]+@\\d{4}$");
+
+	private final int accountNumber;
+	private final String userId;
+	private final boolean active;
+
+	private AccountRef(int accountNumber, String userId, boolean active) {
+		this.accountNumber = accountNumber;
+		this.userId = userId;
+		this.active = active;
+	}
+
+	// Resolves an account number or userId; null if input is neither or there is no such account
+	public static AccountRef resolve(AccountIdentityCache identities, String input) throws SQLException {
+		input = input.trim();
+		AccountIdentityCache.Identity identity;
+		if (USER_ID.matcher(input).matches()) {
+			identity = identities.get(input);
+		} else {
+			try {
+				identity = identities.get(Integer.parseInt(input));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		return identity == null ? null : of(identity);
+	}
+
+	public static AccountRef of(AccountIdentityCache.Identity identity) {
+		return new AccountRef(identity.getAccountNumber(), identity.getUserId(), identity.isActive());
+	}
+
+	public static AccountRef of(Session session) {
+		return new AccountRef(session.getAccountNumber(), session.getUserId(), session.isActive());
+	}
+
+	public int getAccountNumber() {
+		return accountNumber;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	// As of resolution; the money statements check it again
+	public boolean isActive() {
+		return active;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof AccountRef && ((AccountRef) o).accountNumber == accountNumber;
+	}
+
+	@Override
+	public int hashCode() {
+		return Integer.hashCode(accountNumber);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%04d", accountNumber) + " (" + userId + ")";
+	}
+}
@@ -0,0 +1,74 @@
+package com.testlab.model;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Where balances live and move. BankService is the database store (guarded statements, ledger
+// postings, optional journal); InMemoryAccountStore keeps balances in primitive arrays for load
+// tests, what-if simulation and experiments that must not be capped by the database's commit rate.
+// Accounts are keyed by account number; a userId is translated once with accountNumberOf (see
+// AccountRef). Amounts are in paise, and refusals come back as TransactionResult statuses, not
+// exceptions.
+//
+// A store that keeps its own copy of the accounts hears about rows the database gains or changes
+// through the on* hooks; whatever creates an account, changes a PIN or deactivates one calls
+// opened, pinChanged or activeChanged after its commit. storedPin is the transaction_pin column's
+// value (normally a CredentialHasher hash).
+public interface AccountStore {
+
+	int NO_ACCOUNT = -1;
+
+	TransactionResult getBalance(int accountNumber);
+
+	TransactionResult deposit(int accountNumber, long amount, String pin);
+
+	TransactionResult withdraw(int accountNumber, long amount, String pin);
+
+	TransactionResult transfer(int senderAccountNumber, int receiverAccountNumber, long amount, String pin);
+
+	// The account number for a userId, or NO_ACCOUNT
+	int accountNumberOf(String userId) throws SQLException;
+
+	// The database store reads the rows themselves, so by default there is nothing to do
+	default void onOpened(int accountNumber, String userId, long balance, String storedPin, boolean active) {
+	}
+
+	default void onPinChanged(int accountNumber, String storedPin) {
+	}
+
+	default void onActiveChanged(int accountNumber, boolean active) {
+	}
+
+	static void opened(ConnectionPool pool, int accountNumber, String userId, long balance, String storedPin) {
+		for (AccountStore store : startedFor(pool)) {
+			store.onOpened(accountNumber, userId, balance, storedPin, true);
+		}
+	}
+
+	static void pinChanged(ConnectionPool pool, int accountNumber, String storedPin) {
+		for (AccountStore store : startedFor(pool)) {
+			store.onPinChanged(accountNumber, storedPin);
+		}
+	}
+
+	static void activeChanged(ConnectionPool pool, int accountNumber, boolean active) {
+		for (AccountStore store : startedFor(pool)) {
+			store.onActiveChanged(accountNumber, active);
+		}
+	}
+
+	// The stores holding their own copy of this pool's accounts
+	private static List<AccountStore> startedFor(ConnectionPool pool) {
+		List<AccountStore> stores = new ArrayList<>(2);
+		InMemoryAccountStore memory = InMemoryAccountStore.forPool(pool);
+		if (memory != null) {
+			stores.add(memory);
+		}
+		MappedAccountStore mapped = MappedAccountStore.forPool(pool);
+		if (mapped != null) {
+			stores.add(mapped);
+		}
+		return stores;
+	}
+}
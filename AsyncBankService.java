@@ -0,0 +1,219 @@
+package com.testlab.model;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// CompletableFuture versions of the BankService operations and the read-side lookups, run on a
+// bounded executor so independent lookups overlap and callers can pipeline instead of waiting on each
+// round trip. Size the executor to the connection pool (-Dbank.async.threads, default the pool's
+// default size): more threads than connections only queue inside the pool. When the queue
+// (-Dbank.async.queue) is full the submitting thread runs the call itself, which slows producers
+// down instead of dropping work. SQLExceptions complete the future exceptionally, wrapped in a
+// CompletionException. When deposits and withdrawals are coalesced (see CommitCoalescer), the PIN is
+// checked on the executor and the commit is then awaited without holding one of its threads.
+//
+// Nothing in the console menus or BankServer calls this class: it is a library facade for code that
+// drives the service concurrently, such as load generators and batch jobs.
+public class AsyncBankService implements AutoCloseable {
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 1_000;
+
+	private final BankService service;
+	private final TransactionStatement statements;
+	private final AccountLedger ledger;
+	private final ThreadPoolExecutor executor;
+
+	public AsyncBankService(BankService service) {
+		this(service, Integer.getInteger("bank.async.threads", ConnectionPool.DEFAULT_MAX_SIZE),
+				Integer.getInteger("bank.async.queue", DEFAULT_QUEUE_CAPACITY));
+	}
+
+	public AsyncBankService(BankService service, int threads, int queueCapacity) {
+		if (threads <= 0 || queueCapacity <= 0) {
+			throw new IllegalArgumentException("Threads and queue capacity must be positive");
+		}
+		this.service = service;
+		this.statements = new TransactionStatement(service.getPool());
+		this.ledger = new AccountLedger(service.getPool());
+		AtomicInteger count = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), r -> {
+					Thread t = new Thread(r, "bank-async-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	public BankService getService() {
+		return service;
+	}
+
+	public CompletableFuture<TransactionResult> getBalance(int accountNumber) {
+		return CompletableFuture.supplyAsync(() -> service.getBalance(accountNumber), executor);
+	}
+
+	public CompletableFuture<TransactionResult> getBalance(String userId) {
+		return CompletableFuture.supplyAsync(() -> service.getBalance(userId), executor);
+	}
+
+	public CompletableFuture<TransactionResult> deposit(int accountNumber, long amount, String pin) {
+		CommitCoalescer coalescer = service.getCoalescer();
+		if (coalescer != null) {
+			return coalesced(() -> coalescer.deposit(accountNumber, amount, pin));
+		}
+		return CompletableFuture.supplyAsync(() -> service.deposit(accountNumber, amount, pin), executor);
+	}
+
+	public CompletableFuture<TransactionResult> deposit(String userId, long amount, String pin) {
+		CommitCoalescer coalescer = service.getCoalescer();
+		if (coalescer != null) {
+			return coalesced(() -> coalescer.deposit(userId, amount, pin));
+		}
+		return CompletableFuture.supplyAsync(() -> service.deposit(userId, amount, pin), executor);
+	}
+
+	public CompletableFuture<TransactionResult> withdraw(int accountNumber, long amount, String pin) {
+		CommitCoalescer coalescer = service.getCoalescer();
+		if (coalescer != null) {
+			return coalesced(() -> coalescer.withdraw(accountNumber, amount, pin));
+		}
+		return CompletableFuture.supplyAsync(() -> service.withdraw(accountNumber, amount, pin), executor);
+	}
+
+	public CompletableFuture<TransactionResult> withdraw(String userId, long amount, String pin) {
+		CommitCoalescer coalescer = service.getCoalescer();
+		if (coalescer != null) {
+			return coalesced(() -> coalescer.withdraw(userId, amount, pin));
+		}
+		return CompletableFuture.supplyAsync(() -> service.withdraw(userId, amount, pin), executor);
+	}
+
+	// Submits on the executor (the PIN check can be slow) and completes when the batch does; a batch
+	// that threw fails the operation the way BankService reports it
+	private CompletableFuture<TransactionResult> coalesced(Supplier<CompletableFuture<TransactionResult>> submit) {
+		return CompletableFuture.supplyAsync(submit, executor).thenCompose(result -> result)
+				.exceptionally(e -> BankService.coalesceFailed());
+	}
+
+	public CompletableFuture<TransactionResult> transfer(int senderAccountNumber, int receiverAccountNumber,
+			long amount, String pin) {
+		return CompletableFuture.supplyAsync(
+				() -> service.transfer(senderAccountNumber, receiverAccountNumber, amount, pin), executor);
+	}
+
+	public CompletableFuture<TransactionResult> transfer(String senderUserId, String receiverUserId, long amount,
+			String pin) {
+		return CompletableFuture.supplyAsync(() -> service.transfer(senderUserId, receiverUserId, amount, pin),
+				executor);
+	}
+
+	public CompletableFuture<BankService.Profile> getProfile(int accountNumber) {
+		return supply(() -> service.getProfile(accountNumber));
+	}
+
+	public CompletableFuture<BankService.Profile> getProfile(String userId) {
+		return supply(() -> service.getProfile(userId));
+	}
+
+	public CompletableFuture<TransactionStatement.Page> latestTransactions(int accountNumber, int pageSize) {
+		return supply(() -> statements.firstPage(accountNumber, pageSize));
+	}
+
+	public CompletableFuture<TransactionStatement.Page> latestTransactions(String userId, int pageSize) {
+		return supply(() -> statements.firstPage(userId, pageSize));
+	}
+
+	public CompletableFuture<List<AccountLedger.Posting>> latestPostings(int accountNumber, int limit) {
+		return supply(() -> ledger.latest(accountNumber, limit));
+	}
+
+	// Profile, recent transactions and recent postings fetched in parallel; completes with a null
+	// profile (and empty lists) if the account does not exist
+	public CompletableFuture<Overview> overview(int accountNumber, int recent) {
+		CompletableFuture<BankService.Profile> profile = getProfile(accountNumber);
+		CompletableFuture<TransactionStatement.Page> transactions = latestTransactions(accountNumber, recent);
+		CompletableFuture<List<AccountLedger.Posting>> postings = latestPostings(accountNumber, recent);
+		return CompletableFuture.allOf(profile, transactions, postings)
+				.thenApply(done -> new Overview(profile.join(), transactions.join(), postings.join()));
+	}
+
+	// Runs any JDBC call on this executor, so callers can compose their own pipelines
+	public <T> CompletableFuture<T> supply(SqlCall<T> call) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return call.call();
+			} catch (SQLException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+
+	// Waits for every future and returns their results in order; fails if any of them fails
+	public static <T> CompletableFuture<List<T>> all(List<CompletableFuture<T>> futures) {
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+			List<T> results = new ArrayList<>(futures.size());
+			for (CompletableFuture<T> future : futures) {
+				results.add(future.join());
+			}
+			return results;
+		});
+	}
+
+	public int getQueuedTasks() {
+		return executor.getQueue().size();
+	}
+
+	public int getActiveThreads() {
+		return executor.getActiveCount();
+	}
+
+	// Lets queued calls finish, then stops the threads
+	@Override
+	public void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@FunctionalInterface
+	public interface SqlCall<T> {
+		T call() throws SQLException;
+	}
+
+	public static class Overview {
+		private final BankService.Profile profile;
+		private final TransactionStatement.Page transactions;
+		private final List<AccountLedger.Posting> postings;
+
+		Overview(BankService.Profile profile, TransactionStatement.Page transactions,
+				List<AccountLedger.Posting> postings) {
+			this.profile = profile;
+			this.transactions = transactions;
+			this.postings = postings;
+		}
+
+		public BankService.Profile getProfile() {
+			return profile;
+		}
+
+		public TransactionStatement.Page getTransactions() {
+			return transactions;
+		}
+
+		public List<AccountLedger.Posting> getPostings() {
+			return postings;
+		}
+	}
+}
@@ -1,20 +1,20 @@
 package com.testlab.model;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Scanner;
 
 public class Authentication {
 
-    private Connection connection;
+    private ConnectionPool pool;
+    private Credentials credentials;
 
-    public Authentication(Connection connection) {
-        this.connection = connection;
+    public Authentication(ConnectionPool pool) {
+        this.pool = pool;
+        this.credentials = Credentials.forPool(pool);
     }
 
-    public String loginByUserId(Scanner scanner) {
+    @SuppressWarnings("try")
+    public Session loginByUserId(Scanner scanner) {
         String regex = "^[a-z]+\\.[a-z]+@\\d{4}$";
         String userId = "";
 
@@ -25,80 +25,95 @@ public class Authentication {
                 System.out.println("Please enter User ID in correct format: name.surname@xxxx (e.g., john.doe@1234)");
                 continue;
             }
-            // Check DB existence
-            String query = "SELECT password FROM account WHERE userid = ?";
-            try (PreparedStatement ps = connection.prepareStatement(query)) {
-                ps.setString(1, userId);
-                ResultSet rs = ps.executeQuery();
-                if (rs.next()) {
-                    String dbPass = rs.getString("password");
-                    // 3 tries logic for password
-                    for (int i = 0; i < 3; ++i) {
-                        System.out.print("Enter Password: ");
-                        String password = scanner.nextLine();
-                        if (password.equals(dbPass)) {
-                            System.out.println("Login successful! Welcome, " + userId);
-                            return userId;
-                        } else if (i < 2) {
-                            System.out.println("Invalid password. Attempts left: " + (2-i));
-                        }
-                    }
-                    System.out.println("Login failed: 3 incorrect password attempts.");
-                    return null;
-                } else {
-                    System.out.println("User ID not found.");
-                    return null;
-                }
+            // One query loads the whole row; the password attempts are checked against it
+            Session session;
+            try (OperationMetrics.Scope ignored = OperationMetrics.start("Authentication.loginByUserId")) {
+                session = Session.open(pool, userId);
             } catch (SQLException e) {
                 System.out.println("Database error: " + e.getMessage());
                 return null;
             }
+            if (session == null) {
+                System.out.println("User ID not found.");
+                return null;
+            }
+            // 3 tries logic for password
+            for (int i = 0; i < 3; ++i) {
+                System.out.print("Enter Password: ");
+                String password = scanner.nextLine();
+                if (passwordMatches(session, password)) {
+                    System.out.println("Login successful! Welcome, " + userId);
+                    return session;
+                } else if (i < 2) {
+                    System.out.println("Invalid password. Attempts left: " + (2-i));
+                }
+            }
+            System.out.println("Login failed: 3 incorrect password attempts.");
+            return null;
         }
     }
 
-    public Integer loginByAccountNumber(Scanner scanner) {
+    @SuppressWarnings("try")
+    public Session loginByAccountNumber(Scanner scanner) {
         int accountNumber = -1;
         while (true) {
-            System.out.print("Enter 4-digit Account Number: ");
+            System.out.print("Enter Account Number: ");
             String input = scanner.nextLine().trim();
             try {
                 accountNumber = Integer.parseInt(input);
             } catch (NumberFormatException e) {
-                System.out.println("Invalid format! Please enter a 4-digit number.");
+                System.out.println("Invalid format! Please enter digits only.");
                 continue;
             }
-            // Check existence and get password
-            String query = "SELECT password FROM account WHERE accountnumber = ?";
-            try (PreparedStatement ps = connection.prepareStatement(query)) {
-                ps.setInt(1, accountNumber);
-                ResultSet rs = ps.executeQuery();
-                if (rs.next()) {
-                    String dbPass = rs.getString("password");
-                    // 3 tries logic for password
-                    for (int i = 0; i < 3; ++i) {
-                        System.out.print("Enter Password: ");
-                        String password = scanner.nextLine();
-                        if (password.equals(dbPass)) {
-                            System.out.println("Login successful! Welcome, Account " + String.format("%04d", accountNumber));
-                            return accountNumber;
-                        } else if (i < 2) {
-                            System.out.println("Invalid password. Attempts left: " + (2-i));
-                        }
-                    }
-                    System.out.println("Login failed: 3 incorrect password attempts.");
-                    return null;
-                } else {
-                    System.out.println("Account number not found.");
-                    return null;
-                }
+            // One query loads the whole row; the password attempts are checked against it
+            Session session;
+            try (OperationMetrics.Scope ignored = OperationMetrics.start("Authentication.loginByAccountNumber")) {
+                session = Session.open(pool, accountNumber);
             } catch (SQLException e) {
                 System.out.println("Database error: " + e.getMessage());
                 return null;
             }
+            if (session == null) {
+                System.out.println("Account number not found.");
+                return null;
+            }
+            // 3 tries logic for password
+            for (int i = 0; i < 3; ++i) {
+                System.out.print("Enter Password: ");
+                String password = scanner.nextLine();
+                if (passwordMatches(session, password)) {
+                    System.out.println("Login successful! Welcome, Account " + String.format("%04d", accountNumber));
+                    return session;
+                } else if (i < 2) {
+                    System.out.println("Invalid password. Attempts left: " + (2-i));
+                }
+            }
+            System.out.println("Login failed: 3 incorrect password attempts.");
+            return null;
         }
         
         
     }
   
+    // Password check for callers without a console (BankServer); false if the account does not exist
+    public boolean verifyPassword(int accountNumber, String password) throws SQLException {
+        return OperationMetrics.call("Authentication.verifyPassword",
+                () -> credentials.checkPassword(accountNumber, password));
+    }
+
+    public boolean verifyPassword(String userId, String password) throws SQLException {
+        return OperationMetrics.call("Authentication.verifyPassword",
+                () -> credentials.checkPassword(userId, password));
+    }
+
+    // Console logins count an unavailable check (database error, hashing overloaded) as a failed attempt
+    private boolean passwordMatches(Session session, String password) {
+        try {
+            return OperationMetrics.call("Authentication.verifyPassword", () -> session.checkPassword(password));
+        } catch (SQLException e) {
+            System.out.println("Could not check password: " + e.getMessage());
+            return false;
+        }
+    }
 }
 
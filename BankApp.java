@@ -1,23 +1,41 @@
 package com.testlab.test;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 import com.testlab.model.Account;
+import com.testlab.model.AccountCheckpoint;
+import com.testlab.model.AccountImporter;
+import com.testlab.model.AccountRef;
 import com.testlab.model.Authentication;
 import com.testlab.model.BankOperations;
+import com.testlab.model.CommitCoalescer;
+import com.testlab.model.ConnectionPool;
+import com.testlab.model.CredentialHasher;
+import com.testlab.model.InMemoryAccountStore;
+import com.testlab.model.JournaledBankService;
+import com.testlab.model.MappedAccountStore;
+import com.testlab.model.OperationMetrics;
+import com.testlab.model.SchemaMigrator;
+import com.testlab.model.Session;
 
 public class BankApp {
-	private static void showUserIdSessionMenu(Connection connection, Scanner scanner, String userId) throws Exception {
-		BankOperations bankOps = new BankOperations(connection);
+	// SESSION MENU: one menu whichever way the user logged in; every operation runs on the account number
+	private static void showSessionMenu(ConnectionPool pool, Scanner scanner, Session session) throws Exception {
+		int accountNumber = session.getAccountNumber();
+		BankOperations bankOps = new BankOperations(pool, session);
 		boolean active = true;
 		while (active) {
-			System.out.println("\n--- LENA Bank - UserID Session Menu ---");
-			System.out.println("Logged in as: " + userId);
+			System.out.println("\n--- LENA Bank - Session Menu ---");
+			System.out.println("Logged in as: " + AccountRef.of(session));
 			System.out.println("1. Check Balance");
 			System.out.println("2. Transfer Money");
 			System.out.println("3. Deposit Money");
@@ -38,22 +56,22 @@ public class BankApp {
 
 			switch (choice) {
 			case 1:
-				bankOps.checkBalanceonUserid(userId);
+				bankOps.checkBalance(accountNumber);
 				break;
 			case 2:
-				bankOps.transferMoneyUsingUserID(scanner, userId);
+				bankOps.transferMoney(scanner, accountNumber);
 				break;
 			case 3:
-				bankOps.depositMoneyUsingUserID(scanner, userId);
+				bankOps.depositMoney(scanner, accountNumber);
 				break;
 			case 4:
-				bankOps.withdrawMoneyUsingUserID(scanner, userId);
+				bankOps.withdrawMoney(scanner, accountNumber);
 				break;
 			case 5:
-				bankOps.viewTransactionsForUserId(scanner, userId);
+				bankOps.viewTransactions(scanner, accountNumber);
 				break;
 			case 6:
-				bankOps.showProfileMenuByUserId(scanner, userId);
+				bankOps.showProfileMenu(scanner, accountNumber);
 				break;
 			case 7:
 				System.out.println("Logging out...");
@@ -65,62 +83,24 @@ public class BankApp {
 		}
 	}
 
-	// SESSION MENU—ACCOUNTNUMBER
-	private static void showAccountNumberSessionMenu(Connection connection, Scanner scanner, int accountNumber)
-			throws Exception {
-		BankOperations bankOps = new BankOperations(connection);
-		boolean active = true;
-		while (active) {
-			System.out.println("\n--- LENA Bank - AccountNumber Session Menu ---");
-			System.out.println("Logged in as: " + String.format("%04d", accountNumber));
-			System.out.println("1. Check Balance");
-			System.out.println("2. Transfer Money");
-			System.out.println("3. Deposit Money");
-			System.out.println("4. Withdraw Money");
-			System.out.println("5. View Transaction Statement");
-			System.out.println("6. View Profile");
-			System.out.println("7. Logout");
-			System.out.print("Select option: ");
-
-			String optStr = scanner.nextLine().trim();
-			int choice;
-			try {
-				choice = Integer.parseInt(optStr);
-			} catch (Exception e) {
-				System.out.println("Invalid option.");
-				continue;
-			}
-
-			switch (choice) {
-			case 1:
-				bankOps.checkBalanceonAccountnumber(accountNumber);
-				break;
-			case 2:
-				bankOps.transferMoneyUsingAccountNumber(scanner, accountNumber);
-				break;
-			case 3:
-				bankOps.depositMoneyUsingAccountNumber(scanner, accountNumber);
-				break;
-			case 4:
-				bankOps.withdrawMoneyUsingAccountNumber(scanner, accountNumber);
-				break;
-			case 5:
-				bankOps.viewTransactionsForAccountNumber(scanner, accountNumber);
-				break;
-			case 6:
-				bankOps.showProfileMenuByAccountNumber(scanner, accountNumber);
-				break;
-			case 7:
-				System.out.println("Logging out...");
-				active = false;
-				break;
-			default:
-				System.out.println("Invalid option. Please enter 1-7.");
-			}
+	// BULK IMPORT: creates the accounts in file and writes one result line per row next to it
+	private static void importAccounts(ConnectionPool pool, Path file) throws Exception {
+		AccountImporter importer = new AccountImporter(pool,
+				Integer.getInteger("bank.import.chunk", AccountImporter.DEFAULT_CHUNK_SIZE),
+				Integer.getInteger("bank.import.threads", Runtime.getRuntime().availableProcessors()));
+		AccountImporter.Report report = importer.run(file);
+		List<String> lines = new ArrayList<>();
+		lines.add("line,userid,accountnumber,result");
+		for (AccountImporter.LineResult result : report.getResults()) {
+			lines.add(result.toString());
 		}
+		Path results = file.resolveSibling(file.getFileName() + ".results.csv");
+		Files.write(results, lines);
+		System.out.println(report);
+		System.out.println("Per-row results written to " + results);
 	}
 
-	private static void forgotPasswordMenu(Scanner scanner, Connection connection) {
+	private static void forgotPasswordMenu(Scanner scanner, ConnectionPool pool) {
 	    System.out.println("Forgot Password:");
 	    System.out.println("1. By User ID");
 	    System.out.println("2. By Account Number");
@@ -157,43 +137,55 @@ public class BankApp {
 	        String lastName = scanner.nextLine().trim();
 
 	        String sql = "SELECT name, surname FROM account WHERE userid = ?";
-	        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+	        String dbFirst = null;
+	        String dbLast = null;
+	        try (Connection connection = pool.getConnection();
+	                PreparedStatement ps = connection.prepareStatement(sql)) {
 	            ps.setString(1, userId);
 	            try (ResultSet rs = ps.executeQuery()) {
 	                if (rs.next()) {
-	                    String dbFirst = rs.getString("name");
-	                    String dbLast = rs.getString("surname");
-	                    if (dbFirst.equalsIgnoreCase(firstName) && dbLast.equalsIgnoreCase(lastName)) {
-	                        String newPass = null;
-	                        while (true) {
-	                            System.out.print("Enter new password: ");
-	                            newPass = scanner.nextLine();
-	                            if (!newPass.matches("^[^.,]+$") || newPass.length() < 6) {
-	                                System.out.println("Password must be at least 6 characters, no '.' or ','");
-	                                continue;
-	                            }
-	                            System.out.print("Confirm new password: ");
-	                            String cpass = scanner.nextLine();
-	                            if (!newPass.equals(cpass)) {
-	                                System.out.println("Passwords do not match.");
-	                                continue;
-	                            }
-	                            break;
-	                        }
-	                        String updateSql = "UPDATE account SET password=? WHERE userid=?";
-	                        try (PreparedStatement ups = connection.prepareStatement(updateSql)) {
-	                            ups.setString(1, newPass);
-	                            ups.setString(2, userId);
-	                            ups.executeUpdate();
-	                        }
-	                        System.out.println("Password has been reset! You can now login with your new password.");
-	                    } else {
-	                        System.out.println("Verification failed. Cannot reset password.");
-	                    }
-	                } else {
-	                    System.out.println("User ID not found.");
+	                    dbFirst = rs.getString("name");
+	                    dbLast = rs.getString("surname");
 	                }
 	            }
+	        } catch (SQLException e) {
+	            System.out.println("Database error: " + e.getMessage());
+	            return;
+	        }
+	        if (dbFirst == null) {
+	            System.out.println("User ID not found.");
+	            return;
+	        }
+	        if (!dbFirst.equalsIgnoreCase(firstName) || !dbLast.equalsIgnoreCase(lastName)) {
+	            System.out.println("Verification failed. Cannot reset password.");
+	            return;
+	        }
+	        String newPass = null;
+	        while (true) {
+	            System.out.print("Enter new password: ");
+	            newPass = scanner.nextLine();
+	            if (!newPass.matches("^[^.,]+$") || newPass.length() < 6) {
+	                System.out.println("Password must be at least 6 characters, no '.' or ','");
+	                continue;
+	            }
+	            System.out.print("Confirm new password: ");
+	            String cpass = scanner.nextLine();
+	            if (!newPass.equals(cpass)) {
+	                System.out.println("Passwords do not match.");
+	                continue;
+	            }
+	            break;
+	        }
+	        String updateSql = "UPDATE account SET password=? WHERE userid=?";
+	        try {
+	            String hashed = CredentialHasher.get().hash(newPass);
+	            try (Connection connection = pool.getConnection();
+	                    PreparedStatement ups = connection.prepareStatement(updateSql)) {
+	                ups.setString(1, hashed);
+	                ups.setString(2, userId);
+	                ups.executeUpdate();
+	                System.out.println("Password has been reset! You can now login with your new password.");
+	            }
 	        } catch (SQLException e) {
 	            System.out.println("Database error: " + e.getMessage());
 	        }
@@ -212,43 +204,55 @@ public class BankApp {
 	        System.out.print("Enter your Last Name: ");
 	        String lastName = scanner.nextLine().trim();
 	        String sql = "SELECT name, surname FROM account WHERE accountnumber = ?";
-	        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+	        String dbFirst = null;
+	        String dbLast = null;
+	        try (Connection connection = pool.getConnection();
+	                PreparedStatement ps = connection.prepareStatement(sql)) {
 	            ps.setInt(1, accNum);
 	            try (ResultSet rs = ps.executeQuery()) {
 	                if (rs.next()) {
-	                    String dbFirst = rs.getString("name");
-	                    String dbLast = rs.getString("surname");
-	                    if (dbFirst.equalsIgnoreCase(firstName) && dbLast.equalsIgnoreCase(lastName)) {
-	                        String newPass = null;
-	                        while (true) {
-	                            System.out.print("Enter new password: ");
-	                            newPass = scanner.nextLine();
-	                            if (!newPass.matches("^[^.,]+$") || newPass.length() < 6) {
-	                                System.out.println("Password must be at least 6 characters, no '.' or ','");
-	                                continue;
-	                            }
-	                            System.out.print("Confirm new password: ");
-	                            String cpass = scanner.nextLine();
-	                            if (!newPass.equals(cpass)) {
-	                                System.out.println("Passwords do not match.");
-	                                continue;
-	                            }
-	                            break;
-	                        }
-	                        String updateSql = "UPDATE account SET password=? WHERE accountnumber=?";
-	                        try (PreparedStatement ups = connection.prepareStatement(updateSql)) {
-	                            ups.setString(1, newPass);
-	                            ups.setInt(2, accNum);
-	                            ups.executeUpdate();
-	                        }
-	                        System.out.println("Password has been reset! You can now login with your new password.");
-	                    } else {
-	                        System.out.println("Verification failed. Cannot reset password.");
-	                    }
-	                } else {
-	                    System.out.println("Account number not found.");
+	                    dbFirst = rs.getString("name");
+	                    dbLast = rs.getString("surname");
 	                }
 	            }
+	        } catch (SQLException e) {
+	            System.out.println("Database error: " + e.getMessage());
+	            return;
+	        }
+	        if (dbFirst == null) {
+	            System.out.println("Account number not found.");
+	            return;
+	        }
+	        if (!dbFirst.equalsIgnoreCase(firstName) || !dbLast.equalsIgnoreCase(lastName)) {
+	            System.out.println("Verification failed. Cannot reset password.");
+	            return;
+	        }
+	        String newPass = null;
+	        while (true) {
+	            System.out.print("Enter new password: ");
+	            newPass = scanner.nextLine();
+	            if (!newPass.matches("^[^.,]+$") || newPass.length() < 6) {
+	                System.out.println("Password must be at least 6 characters, no '.' or ','");
+	                continue;
+	            }
+	            System.out.print("Confirm new password: ");
+	            String cpass = scanner.nextLine();
+	            if (!newPass.equals(cpass)) {
+	                System.out.println("Passwords do not match.");
+	                continue;
+	            }
+	            break;
+	        }
+	        String updateSql = "UPDATE account SET password=? WHERE accountnumber=?";
+	        try {
+	            String hashed = CredentialHasher.get().hash(newPass);
+	            try (Connection connection = pool.getConnection();
+	                    PreparedStatement ups = connection.prepareStatement(updateSql)) {
+	                ups.setString(1, hashed);
+	                ups.setInt(2, accNum);
+	                ups.executeUpdate();
+	                System.out.println("Password has been reset! You can now login with your new password.");
+	            }
 	        } catch (SQLException e) {
 	            System.out.println("Database error: " + e.getMessage());
 	        }
@@ -267,7 +271,59 @@ public class BankApp {
 
 		try {
 			Class.forName("com.mysql.cj.jdbc.Driver");
-			Connection connection = DriverManager.getConnection(link, dbname, dbpass);
+			int poolSize = Integer.getInteger("bank.pool.size", ConnectionPool.DEFAULT_MAX_SIZE);
+			ConnectionPool pool = new ConnectionPool(link, dbname, dbpass, poolSize,
+					ConnectionPool.DEFAULT_BORROW_TIMEOUT_MILLIS, ConnectionPool.DEFAULT_IDLE_TIMEOUT_MILLIS,
+					ConnectionPool.DEFAULT_LEAK_THRESHOLD_MILLIS);
+			SchemaMigrator.migrate(pool);
+			String importFile = System.getProperty("bank.import.file");
+			if (importFile != null) {
+				importAccounts(pool, Paths.get(importFile));
+				pool.close();
+				return;
+			}
+			if (Boolean.getBoolean("bank.coalesce")) {
+				CommitCoalescer.start(pool);
+			}
+			String journalDir = System.getProperty("bank.journal.dir");
+			if (journalDir != null) {
+				JournaledBankService.start(pool, Paths.get(journalDir));
+			}
+			String checkpointDir = System.getProperty("bank.checkpoint.dir");
+			if (checkpointDir != null) {
+				long started = System.nanoTime();
+				AccountCheckpoint.State restored = AccountCheckpoint.restore(pool, Paths.get(checkpointDir));
+				if (restored != null) {
+					System.out.println("Restored " + restored.size() + " accounts from checkpoints as of "
+							+ restored.getAsOf() + " (" + restored.getCaughtUp() + " changed since) in "
+							+ (System.nanoTime() - started) / 1_000_000 + " ms; cached the identities of "
+							+ restored.getWarmed() + " of them. Balances are still read from the account store.");
+				}
+				AccountCheckpoint.start(pool, Paths.get(checkpointDir), restored,
+						Long.getLong("bank.checkpoint.snapshotSeconds", AccountCheckpoint.DEFAULT_SNAPSHOT_SECONDS),
+						Long.getLong("bank.checkpoint.deltaSeconds", AccountCheckpoint.DEFAULT_DELTA_SECONDS));
+			}
+			if ("memory".equals(System.getProperty("bank.store"))) {
+				InMemoryAccountStore store = InMemoryAccountStore.start(pool,
+						Integer.getInteger("bank.store.headroom", 1024));
+				System.out.println("Using an in-memory copy of " + store.size()
+						+ " accounts; deposits, withdrawals and transfers are not written back to the database.");
+			} else if ("mapped".equals(System.getProperty("bank.store"))) {
+				MappedAccountStore store = MappedAccountStore.start(pool,
+						Paths.get(System.getProperty("bank.store.file", "bank-balances.dat")),
+						Integer.getInteger("bank.store.headroom", 1024));
+				System.out.println("Balances are kept in " + store.recoverySummary());
+			}
+			long metricsSeconds = Long.getLong("bank.metrics.dumpSeconds", 0);
+			if (metricsSeconds > 0) {
+				OperationMetrics.startDump(Paths.get(System.getProperty("bank.metrics.file", "bank-metrics.log")),
+						metricsSeconds);
+			}
+			if (Boolean.getBoolean("bank.http")) {
+				BankServer server = new BankServer(pool);
+				server.start(Integer.getInteger("bank.http.port", BankServer.DEFAULT_PORT));
+				System.out.println("HTTP API listening on port " + server.getPort());
+			}
 			Scanner scanner = new Scanner(System.in);
 
 			while (true) {
@@ -287,11 +343,12 @@ public class BankApp {
 				}
 
 				if (option == 1) {
-					Account account = new Account(connection);
+					Account account = new Account(pool);
 					String newUserId = account.createAccount(scanner);
-					if (newUserId != null) {
+					Session session = newUserId != null ? Session.open(pool, newUserId) : null;
+					if (session != null) {
 						System.out.println("Logging you in automatically as " + newUserId);
-						showUserIdSessionMenu(connection, scanner, newUserId);
+						showSessionMenu(pool, scanner, session);
 					} else {
 						System.out.println("Account creation failed. Returning to main menu.");
 					}
@@ -313,19 +370,19 @@ public class BankApp {
 							System.out.println("Invalid option. Please enter 1-6.");
 							continue;
 						}
-						Authentication auth = new Authentication(connection);
-						BankOperations bankOps = new BankOperations(connection);
+						Authentication auth = new Authentication(pool);
+						BankOperations bankOps = new BankOperations(pool);
 
 						if (loginType == 1) {
-							String userId = auth.loginByUserId(scanner);
-							if (userId != null) {
-								showUserIdSessionMenu(connection, scanner, userId);
+							Session session = auth.loginByUserId(scanner);
+							if (session != null) {
+								showSessionMenu(pool, scanner, session);
 							}
 							break;
 						} else if (loginType == 2) {
-							Integer accountNumber = auth.loginByAccountNumber(scanner);
-							if (accountNumber != null) {
-								showAccountNumberSessionMenu(connection, scanner, accountNumber);
+							Session session = auth.loginByAccountNumber(scanner);
+							if (session != null) {
+								showSessionMenu(pool, scanner, session);
 							}
 							break;
 						} else if (loginType == 3) { 
@@ -333,7 +390,7 @@ public class BankApp {
 						} else if (loginType == 4) { 
 							bankOps.findAccountNumberByUserId(scanner);
 						} else if (loginType == 5) { 
-							forgotPasswordMenu(scanner, connection); 
+							forgotPasswordMenu(scanner, pool); 
 						} else if (loginType == 6) {
 							break;
 						} else {
@@ -349,7 +406,23 @@ public class BankApp {
 			}
 
 			scanner.close();
-			connection.close();
+			CommitCoalescer coalescer = CommitCoalescer.forPool(pool);
+			if (coalescer != null) {
+				coalescer.close();
+			}
+			JournaledBankService journaled = JournaledBankService.forPool(pool);
+			if (journaled != null) {
+				journaled.close();
+			}
+			MappedAccountStore mapped = MappedAccountStore.forPool(pool);
+			if (mapped != null) {
+				mapped.close();
+			}
+			AccountCheckpoint checkpoint = AccountCheckpoint.forPool(pool);
+			if (checkpoint != null) {
+				checkpoint.close();
+			}
+			pool.close();
 
 		} catch (Exception e) {
 			System.out.println("Error starting application: " + e.getMessage());
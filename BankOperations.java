@@ -1,24 +1,89 @@
 package com.testlab.model;
 
 import java.sql.*;
-import java.util.InputMismatchException;
+import java.util.List;
 import java.util.Scanner;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
 public class BankOperations {
 
-	private Connection connection;
+	// Statement queries, public so the benchmarks measure exactly what the menus run. Bind the
+	// account three times; see TransactionStatement.eitherSide. The menus only run the account number
+	// form now; the userId form stays for the benchmarks' comparison.
+	public static final String LATEST_TRANSACTIONS_BY_ACCOUNT_SQL = TransactionStatement.eitherSide("source_account",
+			"destination_account", "", TransactionStatement.NEWEST_FIRST, " LIMIT 5");
+	public static final String LATEST_TRANSACTIONS_BY_USER_ID_SQL = TransactionStatement.eitherSide("source_userid",
+			"destination_userid", "", TransactionStatement.NEWEST_FIRST, " LIMIT 5");
+
+	private ConnectionPool pool;
+	private BankService service;
+	// Where deposits, withdrawals, transfers and balances go: service, or an InMemoryAccountStore or
+	// MappedAccountStore started for the pool
+	private AccountStore store;
+	// Non-null when balances live in an InMemoryAccountStore or MappedAccountStore rather than
+	// account.balance; memory wins when both are started
+	private InMemoryAccountStore memory;
+	private MappedAccountStore mapped;
+	private AccountIdentityCache identities;
+	private TransactionStatement statements;
+	private AccountLedger ledger;
+	private Credentials credentials;
+	// The logged-in account, or null outside a session
+	private Session session;
+
+	public BankOperations(ConnectionPool pool) {
+		this(pool, null);
+	}
+
+	// Operations on the session's own account take the active flag, password and PIN from the session
+	// instead of the database
+	public BankOperations(ConnectionPool pool, Session session) {
+		this.pool = pool;
+		this.session = session;
+		JournaledBankService journaled = JournaledBankService.forPool(pool);
+		this.service = journaled != null ? journaled : new BankService(pool);
+		this.memory = InMemoryAccountStore.forPool(pool);
+		this.mapped = MappedAccountStore.forPool(pool);
+		this.store = memory != null ? memory : mapped != null ? mapped : service;
+		this.identities = AccountIdentityCache.forPool(pool);
+		this.statements = new TransactionStatement(pool);
+		this.ledger = new AccountLedger(pool);
+		this.credentials = Credentials.forPool(pool);
+	}
+
+	public BankService getService() {
+		return service;
+	}
+
+	// Where balances live and move; the HTTP server goes through the same store as the menus
+	public AccountStore getStore() {
+		return store;
+	}
 
-	public BankOperations(Connection connection) {
-		this.connection = connection;
+	// The profile row, with the balance from the store when it is not the database's
+	public BankService.Profile getProfile(int accountNumber) throws SQLException {
+		return OperationMetrics.call("BankOperations.getProfile", () -> {
+			BankService.Profile profile = service.getProfile(accountNumber);
+			if (profile != null && store != service) {
+				profile.setBalance(Math.max(0, storeBalance(accountNumber)));
+			}
+			return profile;
+		});
 	}
 
-	// Generates a random 4-digit account number (1001 - 9999)
-	public static int generateAccountnumber() {
-		return (int) (Math.random() * (9999 - 1001 + 1)) + 1001;
+	// -1 if the store does not hold the account
+	private long storeBalance(int accountNumber) {
+		return memory != null ? memory.balanceOf(accountNumber) : mapped.balanceOf(accountNumber);
+	}
+
+	// Next unused account number from the shared allocator
+	public int generateAccountnumber() throws SQLException {
+		return AccountNumberAllocator.forPool(pool).next();
 	}
 
 	// Create account with transaction PIN
+	@SuppressWarnings("try")
 	public String createAccount(Scanner scanner) {
 		try {
 			String name = "", surname = "";
@@ -93,36 +158,49 @@ public class BankOperations {
 				break;
 			}
 
-			double balance;
+			long balance; // paise
 			while (true) {
 				System.out.print("Balance: ");
 				try {
-					balance = scanner.nextDouble();
-					scanner.nextLine(); // consume newline
+					balance = Money.parse(scanner.nextLine());
 					if (balance < 0) {
 						System.out.println("Balance cannot be negative.");
 						continue;
 					}
 					break;
-				} catch (InputMismatchException ime) {
-					System.out.println("Invalid input! Please enter a number.");
-					scanner.nextLine(); // clear buffer
+				} catch (NumberFormatException e) {
+					System.out.println("Invalid input! Please enter an amount like 1500 or 1500.50.");
 				}
 			}
 
 			int accountNumber = generateAccountnumber();
 
-			String insertData = "INSERT INTO account (accountnumber, name, surname, balance, userid, password, transaction_pin) VALUES (?, ?, ?, ?, ?, ?, ?)";
-			try (PreparedStatement ps = connection.prepareStatement(insertData)) {
-				ps.setInt(1, accountNumber);
-				ps.setString(2, name);
-				ps.setString(3, surname);
-				ps.setDouble(4, balance);
-				ps.setString(5, userId);
-				ps.setString(6, password);
-				ps.setString(7, transactionPin);
-				ps.executeUpdate();
+			String insertData = "INSERT INTO account (accountnumber, name, surname, balance, userid, password, transaction_pin, posting_seq) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+			String passwordHash = CredentialHasher.get().hash(password);
+			String pinHash = CredentialHasher.get().hash(transactionPin);
+			try (OperationMetrics.Scope ignored = OperationMetrics.start("BankOperations.createAccount");
+					Connection connection = pool.getConnection()) {
+				connection.setAutoCommit(false);
+				try (PreparedStatement ps = connection.prepareStatement(insertData)) {
+					ps.setInt(1, accountNumber);
+					ps.setString(2, name);
+					ps.setString(3, surname);
+					ps.setLong(4, balance);
+					ps.setString(5, userId);
+					ps.setString(6, passwordHash);
+					ps.setString(7, pinHash);
+					ps.setLong(8, balance > 0 ? 1 : 0);
+					ps.executeUpdate();
+					if (balance > 0) {
+						AccountLedger.recordOpeningBalance(connection, accountNumber, balance);
+					}
+					connection.commit();
+				} catch (SQLException e) {
+					connection.rollback();
+					throw e;
+				}
 			}
+			AccountStore.opened(pool, accountNumber, userId, balance, pinHash);
 
 			System.out.println("New account created! Account No: " + String.format("%04d", accountNumber));
 			System.out.println("UserId: " + userId);
@@ -136,70 +214,31 @@ public class BankOperations {
 		}
 	}
 
-	// Verify PIN for User ID (3 attempts)
-	public boolean verifyTransactionPinByUserId(String userId, Scanner scanner) throws SQLException {
+	// Verify PIN (3 attempts)
+	public boolean verifyTransactionPin(int accountNumber, Scanner scanner) throws SQLException {
 		
-		String sql = "SELECT transaction_pin FROM account WHERE userid = ?";
-		try (PreparedStatement ps = connection.prepareStatement(sql)) {
-			ps.setString(1, userId);
-			try (ResultSet rs = ps.executeQuery()) {
-				if (rs.next()) {
-					String storedPin = rs.getString("transaction_pin");
-					for (int i = 0; i < 3; i++) {
-						System.out.print("Enter your 4-digit Transaction PIN: ");
-						String enteredPin = scanner.nextLine().trim();
-						if (!enteredPin.matches("^\\d{4}$")) {
-							System.out.println("PIN must be exactly 4 digits and numeric.");
-							continue;
-						}
-						if (enteredPin.equals(storedPin))
-							return true;
-						else
-							System.out.println("Incorrect PIN." + (i < 2 ? " Attempts left: " + (2 - i) : ""));
-					}
-					System.out.println("Transaction cancelled: Too many wrong attempts.");
-				}
-			}
-		}
-		return false;
-	}
-
-	// Verify PIN for Account Number (3 attempts)
-	public boolean verifyTransactionPinByAccountNumber(int accountNumber, Scanner scanner) throws SQLException {
-		
-		String sql = "SELECT transaction_pin FROM account WHERE accountnumber = ?";
-		try (PreparedStatement ps = connection.prepareStatement(sql)) {
-			ps.setInt(1, accountNumber);
-			try (ResultSet rs = ps.executeQuery()) {
-				if (rs.next()) {
-					String storedPin = rs.getString("transaction_pin");
-					for (int i = 0; i < 3; i++) {
-						System.out.print("Enter your 4-digit Transaction PIN: ");
-						String enteredPin = scanner.nextLine().trim();
-						if (!enteredPin.matches("^\\d{4}$")) {
-							System.out.println("PIN must be exactly 4 digits and numeric.");
-							continue;
-						}
-						if (enteredPin.equals(storedPin))
-							return true;
-						else
-							System.out.println("Incorrect PIN." + (i < 2 ? " Attempts left: " + (2 - i) : ""));
-					}
-					System.out.println("Transaction cancelled: Too many wrong attempts.");
-				}
+		if (!doesAccountExist(accountNumber))
+			return false;
+		for (int i = 0; i < 3; i++) {
+			System.out.print("Enter your 4-digit Transaction PIN: ");
+			String enteredPin = scanner.nextLine().trim();
+			if (!enteredPin.matches("^\\d{4}$")) {
+				System.out.println("PIN must be exactly 4 digits and numeric.");
+				continue;
 			}
+			if (checkPin(accountNumber, enteredPin))
+				return true;
+			else
+				System.out.println("Incorrect PIN." + (i < 2 ? " Attempts left: " + (2 - i) : ""));
 		}
+		System.out.println("Transaction cancelled: Too many wrong attempts.");
 		return false;
 	}
 
 	// Check if an account exists by account number
 	public boolean doesAccountExist(int accountnumber) {
-		String sql = "SELECT 1 FROM account WHERE accountnumber = ?";
-		try (PreparedStatement ps = connection.prepareStatement(sql)) {
-			ps.setInt(1, accountnumber);
-			try (ResultSet rs = ps.executeQuery()) {
-				return rs.next();
-			}
+		try {
+			return identities.get(accountnumber) != null;
 		} catch (SQLException e) {
 			return false;
 		}
@@ -207,25 +246,27 @@ public class BankOperations {
 
 	// Check if an account exists by userId
 	public boolean doesAccountExist(String userid) {
-		String sql = "SELECT 1 FROM account WHERE userid = ?";
-		try (PreparedStatement ps = connection.prepareStatement(sql)) {
-			ps.setString(1, userid);
-			try (ResultSet rs = ps.executeQuery()) {
-				return rs.next();
-			}
+		try {
+			return identities.get(userid) != null;
 		} catch (SQLException e) {
 			return false;
 		}
 	}
 
 	// Get balance by account number
-	public double getAccountBalance(int accountnumber) {
+	@SuppressWarnings("try")
+	public long getAccountBalance(int accountnumber) {
+		if (store != service) {
+			return storeBalance(accountnumber);
+		}
 		String sql = "SELECT balance FROM account WHERE accountnumber = ?";
-		try (PreparedStatement ps = connection.prepareStatement(sql)) {
+		try (OperationMetrics.Scope ignored = OperationMetrics.start("BankOperations.getAccountBalance");
+				Connection connection = pool.getConnection();
+				PreparedStatement ps = connection.prepareStatement(sql)) {
 			ps.setInt(1, accountnumber);
 			try (ResultSet rs = ps.executeQuery()) {
 				if (rs.next())
-					return rs.getDouble("balance");
+					return rs.getLong("balance");
 			}
 		} catch (SQLException e) {
 			System.out.println("Error getting balance: " + e.getMessage());
@@ -233,387 +274,189 @@ public class BankOperations {
 		return -1;
 	}
 
-	// Get balance by userId
-	public double getAccountBalance(String userid) {
-		String sql = "SELECT balance FROM account WHERE userid = ?";
-		try (PreparedStatement ps = connection.prepareStatement(sql)) {
-			ps.setString(1, userid);
-			try (ResultSet rs = ps.executeQuery()) {
-				if (rs.next())
-					return rs.getDouble("balance");
-			}
+	// Get balance by userId, resolved to the account number once
+	public long getAccountBalance(String userid) {
+		try {
+			AccountIdentityCache.Identity identity = identities.get(userid);
+			return identity == null ? -1 : getAccountBalance(identity.getAccountNumber());
 		} catch (SQLException e) {
 			System.out.println("Error getting balance: " + e.getMessage());
+			return -1;
 		}
-		return -1;
 	}
 
-	public boolean isAccountActiveByUserId(String userId) throws SQLException {
-		String sql = "SELECT isActive FROM account WHERE userid=?";
-		try (PreparedStatement ps = connection.prepareStatement(sql)) {
-			ps.setString(1, userId);
-			try (ResultSet rs = ps.executeQuery()) {
-				return rs.next() && rs.getInt("isActive") == 1;
-			}
-		}
+	public boolean isAccountActive(int accountNumber) throws SQLException {
+		if (sessionFor(accountNumber) != null)
+			return session.isActive();
+		AccountIdentityCache.Identity identity = identities.get(accountNumber);
+		return identity != null && identity.isActive();
 	}
 
-	public boolean isAccountActiveByAccountNumber(Connection connection, int accountNumber) throws SQLException {
-		String sql = "SELECT isActive FROM account WHERE accountnumber = ?";
-		try (PreparedStatement ps = connection.prepareStatement(sql)) {
-			ps.setInt(1, accountNumber);
-			try (ResultSet rs = ps.executeQuery()) {
-				return rs.next() && rs.getInt("isActive") == 1;
-			}
-		}
+	// The session, if accountNumber is the logged-in account
+	private Session sessionFor(int accountNumber) {
+		return session != null && session.getAccountNumber() == accountNumber ? session : null;
 	}
 
-	// Deposit money by UserId, with PIN validation
-	public void depositMoneyUsingUserID(Scanner scanner, String userId) throws SQLException {
-		if (!isAccountActiveByUserId(userId)) {
-			System.out.println("Account is inactive. Transaction not allowed.");
-			return;
-		}
+	private boolean checkPassword(int accountNumber, String password) throws SQLException {
+		if (sessionFor(accountNumber) != null)
+			return session.checkPassword(password);
+		return credentials.checkPassword(accountNumber, password);
+	}
 
-		double amount;
-		while (true) {
-			System.out.print("Enter the amount to deposit: ");
-			try {
-				amount = Double.parseDouble(scanner.nextLine().trim());
-				if (amount <= 0) {
-					System.out.println("Deposit amount must be positive!");
-					continue;
-				}
-				if (!verifyTransactionPinByUserId(userId, scanner))
-					return;
-				break;
-			} catch (NumberFormatException e) {
-				System.out.println("Invalid amount! Please enter a valid number.");
-			}
-		}
+	private boolean checkPin(int accountNumber, String pin) throws SQLException {
+		if (sessionFor(accountNumber) != null)
+			return session.checkPin(pin);
+		return credentials.checkPin(accountNumber, pin);
+	}
 
-		String sql = "UPDATE account SET balance = balance + ? WHERE userid = ?";
-		try (PreparedStatement ps = connection.prepareStatement(sql)) {
-			ps.setDouble(1, amount);
-			ps.setString(2, userId);
-			int updated = ps.executeUpdate();
-			if (updated == 1)
-				System.out.println("Deposit successful! Amount deposited: " + amount + " ₹.");
-			else
-				System.out.println("Deposit failed. Please try again.");
+	// Prompts for the transaction PIN (3 attempts) and runs the operation on the account with each
+	// well-formed entry; in a session a wrong PIN is caught locally, without a round trip. Returns null
+	// when the user runs out of attempts.
+	private TransactionResult withTransactionPin(Scanner scanner, int accountNumber,
+			Function<String, TransactionResult> operation) throws SQLException {
+		Session own = sessionFor(accountNumber);
+		for (int i = 0; i < 3; i++) {
+			System.out.print("Enter your 4-digit Transaction PIN: ");
+			String enteredPin = scanner.nextLine().trim();
+			if (!enteredPin.matches("^\\d{4}$")) {
+				System.out.println("PIN must be exactly 4 digits and numeric.");
+				continue;
+			}
+			if (own != null && !own.checkPin(enteredPin)) {
+				System.out.println("Incorrect PIN." + (i < 2 ? " Attempts left: " + (2 - i) : ""));
+				continue;
+			}
+			TransactionResult result = operation.apply(enteredPin);
+			if (own != null && (result.getStatus() == TransactionResult.Status.ACCOUNT_INACTIVE
+					|| result.getStatus() == TransactionResult.Status.ACCOUNT_NOT_FOUND
+					|| result.getStatus() == TransactionResult.Status.INVALID_PIN)) {
+				// the row changed under the session (deactivated, or PIN changed elsewhere)
+				own.refresh();
+			}
+			if (result.getStatus() != TransactionResult.Status.INVALID_PIN)
+				return result;
+			System.out.println("Incorrect PIN." + (i < 2 ? " Attempts left: " + (2 - i) : ""));
 		}
+		System.out.println("Transaction cancelled: Too many wrong attempts.");
+		return null;
 	}
 
-	// Deposit money by Account Number, with PIN validation
-	public void depositMoneyUsingAccountNumber(Scanner scanner, int accountNumber) throws SQLException {
-		if (!isAccountActiveByAccountNumber(connection, accountNumber)) {
-			System.out.println("Account is inactive. Transaction not allowed.");
-			return;
-		}
-		double amount;
+	// Reads a positive amount in rupees and returns it in paise; the prompt repeats until the input parses
+	private long readAmount(Scanner scanner, String prompt, String notPositive) {
 		while (true) {
-			System.out.print("Enter the amount to deposit: ");
+			System.out.print(prompt);
 			try {
-				amount = Double.parseDouble(scanner.nextLine().trim());
+				long amount = Money.parse(scanner.nextLine());
 				if (amount <= 0) {
-					System.out.println("Deposit amount must be positive!");
+					System.out.println(notPositive);
 					continue;
 				}
-				break;
+				return amount;
 			} catch (NumberFormatException e) {
-				System.out.println("Invalid amount! Please enter a valid number.");
+				System.out.println("Invalid amount! Please enter an amount like 1500 or 1500.50.");
 			}
 		}
-		if (!verifyTransactionPinByAccountNumber(accountNumber, scanner))
+	}
+
+	private void printResult(TransactionResult result, String successMessage) {
+		if (result == null)
 			return;
-		String sql = "UPDATE account SET balance = balance + ? WHERE accountnumber = ?";
-		try (PreparedStatement ps = connection.prepareStatement(sql)) {
-			ps.setDouble(1, amount);
-			ps.setInt(2, accountNumber);
-			int updated = ps.executeUpdate();
-			if (updated == 1)
-				System.out.println("Deposit successful! Amount deposited: " + amount + " ₹.");
-			else
-				System.out.println("Deposit failed. Please try again.");
-		}
+		if (result.isSuccess())
+			System.out.println(successMessage + Money.format(result.getAmount()) + " ₹.");
+		else
+			System.out.println(result.getMessage());
 	}
 
-	// Withdraw money by UserId, with PIN validation
-	public void withdrawMoneyUsingUserID(Scanner scanner, String userId) throws SQLException {
-		if (!isAccountActiveByUserId(userId)) {
+	// Deposit money, with PIN validation
+	public void depositMoney(Scanner scanner, int accountNumber) throws SQLException {
+		if (!isAccountActive(accountNumber)) {
 			System.out.println("Account is inactive. Transaction not allowed.");
 			return;
 		}
-
-		double balance = getAccountBalance(userId);
-		double amount;
-
-		while (true) {
-		    System.out.print("Enter the amount to withdraw: ");
-		    if (!scanner.hasNextDouble()) {
-		        System.out.println("Invalid input! Please enter a valid amount.");
-		        scanner.nextLine();
-		        continue;
-		    }
-		    amount = scanner.nextDouble();
-		    scanner.nextLine();
-		    if (amount <= 0) {
-		        System.out.println("Withdrawal amount must be positive!");
-		        continue;
-		    }
-		    if (balance < amount) {
-		        System.out.println("Insufficient funds! Current balance: " + balance + " ₹.");
-		        continue;
-		    }
-		    break;
-		}
-
-
-		String sql = "UPDATE account SET balance = balance - ? WHERE userid = ?";
-		try (PreparedStatement ps = connection.prepareStatement(sql)) {
-			ps.setDouble(1, amount);
-			ps.setString(2, userId);
-			int updated = ps.executeUpdate();
-			if (updated == 1)
-				System.out.println("Withdrawal successful! Amount withdrawn: " + amount + " ₹.");
-			else
-				System.out.println("Withdrawal failed. Please try again.");
-		}
+		long amount = readAmount(scanner, "Enter the amount to deposit: ", "Deposit amount must be positive!");
+		TransactionResult result = withTransactionPin(scanner, accountNumber,
+				pin -> store.deposit(accountNumber, amount, pin));
+		printResult(result, "Deposit successful! Amount deposited: ");
 	}
 
-	// Withdraw money by Account Number, with PIN validation
-	public void withdrawMoneyUsingAccountNumber(Scanner scanner, int accountNumber) throws SQLException {
-		if (!isAccountActiveByAccountNumber(connection, accountNumber)) {
+	// Withdraw money, with PIN validation
+	public void withdrawMoney(Scanner scanner, int accountNumber) throws SQLException {
+		if (!isAccountActive(accountNumber)) {
 			System.out.println("Account is inactive. Transaction not allowed.");
 			return;
 		}
-		double balance = getAccountBalance(accountNumber);
-		double amount;
-
-		while (true) {
-		    System.out.print("Enter the amount to withdraw: ");
-		    if (!scanner.hasNextDouble()) {
-		        System.out.println("Invalid input! Please enter a valid amount.");
-		        scanner.nextLine();
-		        continue;
-		    }
-		    amount = scanner.nextDouble();
-		    scanner.nextLine();
-		    if (amount <= 0) {
-		        System.out.println("Withdrawal amount must be positive!");
-		        continue;
-		    }
-		    if (balance < amount) {
-		        System.out.println("Insufficient funds! Current balance: " + balance + " ₹.");
-		        continue;
-		    }
-		    break;
-		}
+		long amount = readAmount(scanner, "Enter the amount to withdraw: ", "Withdrawal amount must be positive!");
+		TransactionResult result = withTransactionPin(scanner, accountNumber,
+				pin -> store.withdraw(accountNumber, amount, pin));
+		printResult(result, "Withdrawal successful! Amount withdrawn: ");
+	}
 
-		if (!verifyTransactionPinByAccountNumber(accountNumber, scanner))
+	// Transfer money with PIN; the receiver may be given by account number or userId
+	public void transferMoney(Scanner scanner, int senderAccountNumber) throws SQLException {
+		if (!isAccountActive(senderAccountNumber)) {
+			System.out.println("Account is inactive. Transaction not allowed.");
 			return;
-		String sql = "UPDATE account SET balance = balance - ? WHERE accountnumber = ?";
-		try (PreparedStatement ps = connection.prepareStatement(sql)) {
-			ps.setDouble(1, amount);
-			ps.setInt(2, accountNumber);
-			int updated = ps.executeUpdate();
-			if (updated == 1)
-				System.out.println("Withdrawal successful! Amount withdrawn: " + amount + " ₹.");
-			else
-				System.out.println("Withdrawal failed. Please try again.");
 		}
-	}
-
-	// Transfer money by UserId session with PIN
-	public void transferMoneyUsingUserID(Scanner scanner, String senderUserId) throws SQLException {
-		
-		String receiverUserId;
+		AccountRef receiver;
 		while (true) {
-			System.out.print("Enter Receiver User ID (name.surname@xxxx): ");
-			receiverUserId = scanner.nextLine().trim();
-			String regex = "^[a-z]+\\.[a-z]+@\\d{4}$";
-			if (!receiverUserId.matches(regex)) {
-				System.out.println("Invalid format! Please enter as name.surname@xxxx.");
+			System.out.print("Enter Receiver Account Number or User ID (name.surname@xxxx): ");
+			String input = scanner.nextLine().trim();
+			if (!input.matches("^\\d+$") && !AccountRef.USER_ID.matcher(input).matches()) {
+				System.out.println("Invalid format! Enter an account number or name.surname@xxxx.");
 				continue;
 			}
-			if (receiverUserId.equals(senderUserId)) {
-				System.out.println("Sender and Receiver IDs must be different!");
+			receiver = AccountRef.resolve(identities, input);
+			if (receiver == null) {
+				System.out.println("Receiver not found!");
 				continue;
 			}
-			if (!doesAccountExist(receiverUserId)) {
-				System.out.println("Receiver ID not found!");
+			if (receiver.getAccountNumber() == senderAccountNumber) {
+				System.out.println("Sender and Receiver accounts must be different!");
 				continue;
 			}
-			if (!isAccountActiveByUserId(receiverUserId)) {
-				System.out.println("Account is inactive. Transaction not allowed.");
+			if (!receiver.isActive()) {
+				System.out.println("Receiver account is inactive. Transaction not allowed.");
 				return;
 			}
 			break;
 		}
 
-		double senderBalance = getAccountBalance(senderUserId);
-		double amount;
-
-		while (true) {
-			System.out.print("Enter amount to transfer: ");
-			try {
-				amount = Double.parseDouble(scanner.nextLine().trim());
-				if (amount <= 0) {
-					System.out.println("Amount must be positive!");
-					continue;
-				}
-				if (senderBalance < amount) {
-					System.out.println("Insufficient funds!");
-					continue;
-				}
-				break;
-			} catch (NumberFormatException e) {
-				System.out.println("Invalid amount!");
-			}
-		}
-		if (!verifyTransactionPinByUserId(senderUserId, scanner))
-			return;
-		connection.setAutoCommit(false);
-		try {
-			String deduct = "UPDATE account SET balance = balance - ? WHERE userid = ?";
-			String add = "UPDATE account SET balance = balance + ? WHERE userid = ?";
-			try (PreparedStatement ps1 = connection.prepareStatement(deduct);
-					PreparedStatement ps2 = connection.prepareStatement(add)) {
-				ps1.setDouble(1, amount);
-				ps1.setString(2, senderUserId);
-				int updated1 = ps1.executeUpdate();
-
-				ps2.setDouble(1, amount);
-				ps2.setString(2, receiverUserId);
-				int updated2 = ps2.executeUpdate();
-
-				if (updated1 == 1 && updated2 == 1) {
-					connection.commit();
-					System.out.println("Transfer successful! Amount sent: " + amount + " ₹.");
-				} else {
-					connection.rollback();
-					System.out.println("Transfer failed! Try again.");
-				}
-			}
-		} catch (Exception e) {
-			connection.rollback();
-			System.out.println("Transaction failed: " + e.getMessage());
-		}
-		connection.setAutoCommit(true);
-	}
-
-	// Transfer money by Account Number session with PIN
-	public void transferMoneyUsingAccountNumber(Scanner scanner, int senderAccountNumber) throws SQLException {
-		if (!isAccountActiveByAccountNumber(connection, senderAccountNumber)) {
-			System.out.println("Account is inactive. Transaction not allowed.");
-			return;
-		}
-		int receiverAccountNumber;
-		while (true) {
-			System.out.print("Enter Receiver Account Number: ");
-			try {
-				receiverAccountNumber = Integer.parseInt(scanner.nextLine().trim());
-				if (receiverAccountNumber == senderAccountNumber) {
-					System.out.println("Sender and Receiver accounts must be different!");
-					continue;
-				}
-				if (!doesAccountExist(receiverAccountNumber)) {
-					System.out.println("Account not found!");
-					continue;
-				}
-				break;
-			} catch (NumberFormatException e) {
-				System.out.println("Invalid account number!");
-			}
-		}
-
-		double senderBalance = getAccountBalance(senderAccountNumber);
-		double amount;
-
-		while (true) {
-			System.out.print("Enter amount to transfer: ");
-			try {
-				amount = Double.parseDouble(scanner.nextLine().trim());
-				if (amount <= 0) {
-					System.out.println("Amount must be positive!");
-					continue;
-				}
-				if (senderBalance < amount) {
-					System.out.println("Insufficient funds!");
-					continue;
-				}
-				break;
-			} catch (NumberFormatException e) {
-				System.out.println("Invalid amount!");
-			}
-		}
-		if (!verifyTransactionPinByAccountNumber(senderAccountNumber, scanner))
-			return;
-		connection.setAutoCommit(false);
-		try {
-			String deduct = "UPDATE account SET balance = balance - ? WHERE accountnumber = ?";
-			String add = "UPDATE account SET balance = balance + ? WHERE accountnumber = ?";
-			try (PreparedStatement ps1 = connection.prepareStatement(deduct);
-					PreparedStatement ps2 = connection.prepareStatement(add)) {
-				ps1.setDouble(1, amount);
-				ps1.setInt(2, senderAccountNumber);
-				int updated1 = ps1.executeUpdate();
-
-				ps2.setDouble(1, amount);
-				ps2.setInt(2, receiverAccountNumber);
-				int updated2 = ps2.executeUpdate();
-
-				if (updated1 == 1 && updated2 == 1) {
-					connection.commit();
-					System.out.println("Transfer successful! Amount sent: " + amount + " ₹.");
-				} else {
-					connection.rollback();
-					System.out.println("Transfer failed! Try again.");
-				}
-			}
-		} catch (Exception e) {
-			connection.rollback();
-			System.out.println("Transaction failed: " + e.getMessage());
-		}
-		connection.setAutoCommit(true);
+		int receiverAccountNumber = receiver.getAccountNumber();
+		long amount = readAmount(scanner, "Enter amount to transfer: ", "Amount must be positive!");
+		TransactionResult result = withTransactionPin(scanner, senderAccountNumber,
+				pin -> store.transfer(senderAccountNumber, receiverAccountNumber, amount, pin));
+		printResult(result, "Transfer successful! Amount sent: ");
 	}
 
-	// Existing check balance on userId
-	public void checkBalanceonUserid(String accuserid) throws SQLException {
-		String balanceQuery = "SELECT balance FROM account WHERE userid = ?";
-		if (!isAccountActiveByUserId(accuserid)) {
+	// Displays the balance for given account number
+	@SuppressWarnings("try")
+	public void checkBalance(int accountnumber) throws SQLException {
+		if (!isAccountActive(accountnumber)) {
 			System.out.println("Account is inactive. Transaction not allowed.");
 			return;
 		}
-
-		try (PreparedStatement ps = connection.prepareStatement(balanceQuery)) {
-			ps.setString(1, accuserid);
-			try (ResultSet rs = ps.executeQuery()) {
-				if (rs.next()) {
-					double balance = rs.getDouble("balance");
-					System.out.println("Current balance for user " + accuserid + " is: " + balance + " ₹.");
-					System.out.println("-------------------------------------------------------------------------");
-				} else {
-					System.out.println("User Id " + accuserid + " not found.");
-				}
+		if (store != service) {
+			TransactionResult result = OperationMetrics.call("BankOperations.checkBalance",
+					() -> store.getBalance(accountnumber));
+			if (result.isSuccess()) {
+				System.out.println("Current balance for account " + String.format("%04d", accountnumber) + " is: "
+						+ Money.format(result.getBalance()) + " ₹.");
+				System.out.println("-------------------------------------------------------------------------");
+			} else {
+				System.out.println(result.getMessage());
 			}
-		}
-	}
-
-	// Displays the balance for given account number
-	public void checkBalanceonAccountnumber(int accountnumber) throws SQLException {
-		if (!isAccountActiveByAccountNumber(connection, accountnumber)) {
-			System.out.println("Account is inactive. Transaction not allowed.");
 			return;
 		}
 		String balanceQuery = "SELECT balance FROM account WHERE accountnumber = ?";
-		try (PreparedStatement ps = connection.prepareStatement(balanceQuery)) {
+		try (OperationMetrics.Scope ignored = OperationMetrics.start("BankOperations.checkBalance");
+				Connection connection = pool.getConnection();
+				PreparedStatement ps = connection.prepareStatement(balanceQuery)) {
 			ps.setInt(1, accountnumber);
 			try (ResultSet rs = ps.executeQuery()) {
 				if (rs.next()) {
-					double balance = rs.getDouble("balance");
+					long balance = rs.getLong("balance");
 					System.out.println("Current balance for account " + String.format("%04d", accountnumber) + " is: "
-							+ balance + " ₹.");
+							+ Money.format(balance) + " ₹.");
 					System.out.println("-------------------------------------------------------------------------");
 				} else {
 					System.out.println("Account number " + accountnumber + " not found.");
@@ -622,9 +465,11 @@ public class BankOperations {
 		}
 	}
 
-	public void viewTransactionsForAccountNumber(Scanner scanner, int accountNumber) {
+	// Each fetch is timed on its own, without the browsing in between
+	@SuppressWarnings("try")
+	public void viewTransactions(Scanner scanner, int accountNumber) {
 		try {
-			if (!isAccountActiveByAccountNumber(connection, accountNumber)) {
+			if (!isAccountActive(accountNumber)) {
 				System.out.println("Account is inactive. Transaction not allowed.");
 				return;
 			}
@@ -636,24 +481,27 @@ public class BankOperations {
 			System.out.println("\nView Transactions Menu");
 			System.out.println("1. View latest 5 transactions");
 			System.out.println("2. View last 30 days transactions");
-			System.out.println("3. Back");
+			System.out.println("3. Browse all transactions");
+			System.out.println("4. View account ledger");
+			System.out.println("5. Back");
 			System.out.print("Input: ");
 			String input = scanner.nextLine().trim();
 			int choice;
 			try {
 				choice = Integer.parseInt(input);
 			} catch (NumberFormatException e) {
-				System.out.println("Please enter 1, 2 or 3.");
+				System.out.println("Please enter a number from 1 to 5.");
 				continue;
 			}
 
 			if (choice == 1) {
-				String sql = "SELECT datetime, type, amount, source_account, destination_account, description "
-						+ "FROM transaction " + "WHERE source_account = ? OR destination_account = ? "
-						+ "ORDER BY datetime DESC LIMIT 5";
-				try (PreparedStatement ps = connection.prepareStatement(sql)) {
+				String sql = LATEST_TRANSACTIONS_BY_ACCOUNT_SQL;
+				try (OperationMetrics.Scope ignored = OperationMetrics.start(VIEW_TRANSACTIONS);
+						Connection connection = pool.getConnection();
+						PreparedStatement ps = connection.prepareStatement(sql)) {
 					ps.setInt(1, accountNumber);
 					ps.setInt(2, accountNumber);
+					ps.setInt(3, accountNumber);
 					try (ResultSet rs = ps.executeQuery()) {
 						boolean found = false;
 						System.out.println(
@@ -664,11 +512,11 @@ public class BankOperations {
 							found = true;
 							String dt = rs.getTimestamp("datetime").toString();
 							String type = rs.getString("type");
-							double amount = rs.getDouble("amount");
-							String src = rs.getString("source_account");
-							String dst = rs.getString("destination_account");
+							String amount = Money.format(rs.getLong("amount"));
+							String src = rs.getString("source");
+							String dst = rs.getString("destination");
 							String desc = rs.getString("description");
-							System.out.printf("%-19s | %-8s | %8.2f | %-10s | %-10s | %s\n", dt, type, amount, src, dst,
+							System.out.printf("%-19s | %-8s | %8s | %-10s | %-10s | %s\n", dt, type, amount, src, dst,
 									desc);
 						}
 						if (!found) {
@@ -679,142 +527,120 @@ public class BankOperations {
 					System.out.println("Error querying transactions: " + e.getMessage());
 				}
 			} else if (choice == 2) {
-				String sql = "SELECT datetime, type, amount, source_account, destination_account, description "
-						+ "FROM transaction " + "WHERE (source_account = ? OR destination_account = ?) "
-						+ "AND datetime >= NOW() - INTERVAL 30 DAY " + "ORDER BY datetime DESC";
-				try (PreparedStatement ps = connection.prepareStatement(sql)) {
-					ps.setInt(1, accountNumber);
-					ps.setInt(2, accountNumber);
-					try (ResultSet rs = ps.executeQuery()) {
-						boolean found = false;
-						System.out.println(
-								"\nDATE & TIME         | TYPE     | AMOUNT   | FROM       | TO         | DESC");
-						System.out.println(
-								"-------------------------------------------------------------------------------");
-						while (rs.next()) {
-							found = true;
-							String dt = rs.getTimestamp("datetime").toString();
-							String type = rs.getString("type");
-							double amount = rs.getDouble("amount");
-							String src = rs.getString("source_account");
-							String dst = rs.getString("destination_account");
-							String desc = rs.getString("description");
-							System.out.printf("%-19s | %-8s | %8.2f | %-10s | %-10s | %s\n", dt, type, amount, src, dst,
-									desc);
-						}
-						if (!found) {
-							System.out.println("No transactions in last 30 days.");
-						}
+				Timestamp since = new Timestamp(System.currentTimeMillis() - THIRTY_DAYS_MILLIS);
+				try (OperationMetrics.Scope ignored = OperationMetrics.start(VIEW_TRANSACTIONS)) {
+					printStatementHeader();
+					int rows = statements.stream(accountNumber, since, entry -> printStatementRow(entry));
+					if (rows == 0) {
+						System.out.println("No transactions in last 30 days.");
 					}
 				} catch (Exception e) {
 					System.out.println("Error querying transactions: " + e.getMessage());
 				}
 			} else if (choice == 3) {
+				try {
+					browseTransactions(scanner, OperationMetrics.call(VIEW_TRANSACTIONS,
+							() -> statements.firstPage(accountNumber, statementPageSize())));
+				} catch (Exception e) {
+					System.out.println("Error querying transactions: " + e.getMessage());
+				}
+			} else if (choice == 4) {
+				try {
+					browseLedger(scanner, accountNumber);
+				} catch (Exception e) {
+					System.out.println("Error querying ledger: " + e.getMessage());
+				}
+			} else if (choice == 5) {
 				return;
 			} else {
-				System.out.println("Invalid choice! Enter 1-3.");
+				System.out.println("Invalid choice! Enter 1-5.");
 			}
 		}
 	}
 
-	// Display transaction history by user ID
-	public void viewTransactionsForUserId(Scanner scanner, String userId) {
-		try {
-			if (!isAccountActiveByUserId(userId)) {
-				System.out.println("Account is inactive. Transaction not allowed.");
+	private static final long THIRTY_DAYS_MILLIS = 30L * 24 * 60 * 60 * 1000;
+	private static final String VIEW_TRANSACTIONS = "BankOperations.viewTransactions";
+
+	// Rows per page when browsing, from -Dbank.statement.pageSize
+	private static int statementPageSize() {
+		return Math.max(1, Integer.getInteger("bank.statement.pageSize", TransactionStatement.DEFAULT_PAGE_SIZE));
+	}
+
+	private static void printStatementHeader() {
+		System.out.println("\nDATE & TIME         | TYPE     | AMOUNT   | FROM       | TO         | DESC");
+		System.out.println("-------------------------------------------------------------------------------");
+	}
+
+	private static void printStatementRow(TransactionStatement.Entry entry) {
+		System.out.printf("%-19s | %-8s | %8s | %-10s | %-10s | %s\n", entry.getDatetime(), entry.getType(), Money.format(entry.getAmount()), entry.getSource(),
+				entry.getDestination(), entry.getDescription());
+	}
+
+	// Shows one page at a time and moves by keyset cursor, so every page costs the same to fetch
+	private void browseTransactions(Scanner scanner, TransactionStatement.Page page) throws SQLException {
+		if (page.getEntries().isEmpty()) {
+			System.out.println("No transactions found.");
+			return;
+		}
+		while (true) {
+			printStatementHeader();
+			for (TransactionStatement.Entry entry : page.getEntries()) {
+				printStatementRow(entry);
+			}
+			System.out.println((page.hasOlder() ? "O. Older  " : "") + (page.hasNewer() ? "N. Newer  " : "") + "B. Back");
+			System.out.print("Input: ");
+			String input = scanner.nextLine().trim().toUpperCase();
+			TransactionStatement.Page shown = page;
+			if (input.equals("O") && page.hasOlder()) {
+				page = OperationMetrics.call(VIEW_TRANSACTIONS, () -> statements.older(shown));
+			} else if (input.equals("N") && page.hasNewer()) {
+				page = OperationMetrics.call(VIEW_TRANSACTIONS, () -> statements.newer(shown));
+			} else if (input.equals("B")) {
 				return;
+			} else {
+				System.out.println("Invalid choice!");
 			}
-		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		}
+	}
 
+	// Per-account postings with the running balance, newest first, one primary key range per page
+	private void browseLedger(Scanner scanner, int accountNumber) throws SQLException {
+		List<AccountLedger.Posting> postings = OperationMetrics.call(VIEW_TRANSACTIONS,
+				() -> ledger.latest(accountNumber, statementPageSize()));
+		if (postings.isEmpty()) {
+			System.out.println("No postings found.");
+			return;
+		}
 		while (true) {
-			System.out.println("\nView Transactions Menu");
-			System.out.println("1. View latest 5 transactions");
-			System.out.println("2. View last 30 days transactions");
-			System.out.println("3. Back");
+			System.out.println("\nSEQ      | DATE & TIME         | TYPE     | AMOUNT     | BALANCE      | OTHER      | DESC");
+			System.out.println("----------------------------------------------------------------------------------------------");
+			for (AccountLedger.Posting p : postings) {
+				System.out.printf("%-8d | %-19s | %-8s | %10s | %12s | %-10s | %s\n", p.getSeq(), p.getDatetime(),
+						p.getType(), Money.format(p.getAmount()), Money.format(p.getBalanceAfter()),
+						p.getCounterparty() == null ? "" : String.format("%04d", p.getCounterparty()),
+						p.getDescription());
+			}
+			long oldest = postings.get(postings.size() - 1).getSeq();
+			boolean hasOlder = oldest > 1;
+			System.out.println((hasOlder ? "O. Older  " : "") + "B. Back");
 			System.out.print("Input: ");
-			String input = scanner.nextLine().trim();
-			int choice;
-			try {
-				choice = Integer.parseInt(input);
-			} catch (NumberFormatException e) {
-				System.out.println("Please enter 1, 2 or 3.");
-				continue;
-			}
-
-			if (choice == 1) {
-				String sql = "SELECT datetime, type, amount, source_userid, destination_userid, description "
-						+ "FROM transaction " + "WHERE source_userid = ? OR destination_userid = ? "
-						+ "ORDER BY datetime DESC LIMIT 5";
-				try (PreparedStatement ps = connection.prepareStatement(sql)) {
-					ps.setString(1, userId);
-					ps.setString(2, userId);
-					try (ResultSet rs = ps.executeQuery()) {
-						boolean found = false;
-						System.out.println(
-								"\nDATE & TIME         | TYPE     | AMOUNT   | FROM                | TO                  | DESC");
-						System.out.println(
-								"----------------------------------------------------------------------------------------------------");
-						while (rs.next()) {
-							found = true;
-							String dt = rs.getTimestamp("datetime").toString();
-							String type = rs.getString("type");
-							double amount = rs.getDouble("amount");
-							String src = rs.getString("source_userid");
-							String dst = rs.getString("destination_userid");
-							String desc = rs.getString("description");
-							System.out.printf("%-19s | %-8s | %8.2f | %-19s | %-19s | %s\n", dt, type, amount, src, dst,
-									desc);
-						}
-						if (!found) {
-							System.out.println("No transactions found.");
-						}
-					}
-				} catch (Exception e) {
-					System.out.println("Error querying transactions: " + e.getMessage());
-				}
-			} else if (choice == 2) {
-				String sql = "SELECT datetime, type, amount, source_userid, destination_userid, description "
-						+ "FROM transaction " + "WHERE (source_userid = ? OR destination_userid = ?) "
-						+ "AND datetime >= NOW() - INTERVAL 30 DAY " + "ORDER BY datetime DESC";
-				try (PreparedStatement ps = connection.prepareStatement(sql)) {
-					ps.setString(1, userId);
-					ps.setString(2, userId);
-					try (ResultSet rs = ps.executeQuery()) {
-						boolean found = false;
-						System.out.println(
-								"\nDATE & TIME         | TYPE     | AMOUNT   | FROM                | TO                  | DESC");
-						System.out.println(
-								"----------------------------------------------------------------------------------------------------");
-						while (rs.next()) {
-							found = true;
-							String dt = rs.getTimestamp("datetime").toString();
-							String type = rs.getString("type");
-							double amount = rs.getDouble("amount");
-							String src = rs.getString("source_userid");
-							String dst = rs.getString("destination_userid");
-							String desc = rs.getString("description");
-							System.out.printf("%-19s | %-8s | %8.2f | %-19s | %-19s | %s\n", dt, type, amount, src, dst,
-									desc);
-						}
-						if (!found) {
-							System.out.println("No transactions in last 30 days.");
-						}
-					}
-				} catch (Exception e) {
-					System.out.println("Error querying transactions: " + e.getMessage());
-				}
-			} else if (choice == 3) {
+			String input = scanner.nextLine().trim().toUpperCase();
+			if (input.equals("O") && hasOlder) {
+				List<AccountLedger.Posting> older = OperationMetrics.call(VIEW_TRANSACTIONS,
+						() -> ledger.before(accountNumber, oldest, statementPageSize()));
+				if (!older.isEmpty()) {
+					postings = older;
+				}
+			} else if (input.equals("B")) {
 				return;
 			} else {
-				System.out.println("Invalid choice! Enter 1-3.");
+				System.out.println("Invalid choice!");
 			}
 		}
 	}
 
 	// Find account number by user ID
+	@SuppressWarnings("try")
 	public void findAccountNumberByUserId(Scanner scanner) {
 		String regex = "^[a-z]+\\.[a-z]+@\\d{4}$";
 		while (true) {
@@ -823,28 +649,18 @@ public class BankOperations {
 			if (!userId.matches(regex)) {
 				System.out.println("Invalid format! Please enter as name.surname@xxxx.");
 				continue;
-			} try {
-				if (!isAccountActiveByUserId(userId)) {
-				    System.out.println("Your account is inactive and cannot perform transactions.");
-				    return;
-				}
-			} catch (SQLException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
 			}
-			String sql = "SELECT accountnumber FROM account WHERE userid = ?";
-			try (PreparedStatement ps = connection.prepareStatement(sql)) {
-				ps.setString(1, userId);
-				try (ResultSet rs = ps.executeQuery()) {
-					if (rs.next()) {
-						int accNum = rs.getInt("accountnumber");
-						System.out.println(
-								"Account number for user ID '" + userId + "' is: " + String.format("%04d", accNum));
-					} else {
-						System.out.println("No account found for this User ID.");
-					}
-					return;
+			try (OperationMetrics.Scope ignored = OperationMetrics.start("BankOperations.findAccountNumberByUserId")) {
+				AccountIdentityCache.Identity identity = identities.get(userId);
+				if (identity == null) {
+					System.out.println("No account found for this User ID.");
+				} else if (!identity.isActive()) {
+					System.out.println("Your account is inactive and cannot perform transactions.");
+				} else {
+					System.out.println("Account number for user ID '" + userId + "' is: "
+							+ String.format("%04d", identity.getAccountNumber()));
 				}
+				return;
 			} catch (Exception e) {
 				System.out.println("Error: " + e.getMessage());
 				return;
@@ -853,80 +669,37 @@ public class BankOperations {
 	}
 
 	// Find user ID by account number
+	@SuppressWarnings("try")
 	public void findUserIdByAccountNumber(Scanner scanner) {
 		while (true) {
-			System.out.print("Enter the 4-digit account number: ");
+			System.out.print("Enter the account number: ");
 			String input = scanner.nextLine().trim();
 			int accountNumber;
 			try {
 				accountNumber = Integer.parseInt(input);
 			} catch (NumberFormatException e) {
-				System.out.println("Invalid account number! Please enter 4 digits.");
+				System.out.println("Invalid account number! Please enter digits only.");
 				continue;
 			}
-			try {
-				if (!isAccountActiveByAccountNumber(connection, accountNumber)) {
+			try (OperationMetrics.Scope ignored = OperationMetrics.start("BankOperations.findUserIdByAccountNumber")) {
+				AccountIdentityCache.Identity identity = identities.get(accountNumber);
+				if (identity == null) {
+					System.out.println("No user found for this account number.");
+				} else if (!identity.isActive()) {
 					System.out.println("Account is inactive. Transaction not allowed.");
-					return;
-				}
-			} catch (SQLException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			String sql = "SELECT userid FROM account WHERE accountnumber = ?";
-			try (PreparedStatement ps = connection.prepareStatement(sql)) {
-				ps.setInt(1, accountNumber);
-				try (ResultSet rs = ps.executeQuery()) {
-					if (rs.next()) {
-						String userId = rs.getString("userid");
-						System.out.println("User ID for account number '" + String.format("%04d", accountNumber)
-								+ "' is: " + userId);
-					} else {
-						System.out.println("No user found for this account number.");
-					}
-					return;
+				} else {
+					System.out.println("User ID for account number '" + String.format("%04d", accountNumber)
+							+ "' is: " + identity.getUserId());
 				}
+				return;
 			} catch (Exception e) {
 				System.out.println("Error: " + e.getMessage());
 				return;
 			}
 		}
 	}
-	public void deleteAccountByUserId(Scanner scanner, String userId) throws SQLException {
-		if (!isAccountActiveByUserId(userId)) {
-			System.out.println("Account is inactive. Transaction not allowed.");
-			return;
-		}
-		System.out.println("\n--- Delete Account ---");
-		System.out.println(
-				"Are you sure you want to delete (deactivate) your account? This cannot be undone from the app.");
-		System.out.print("Enter your password to confirm: ");
-		String passwordInput = scanner.nextLine();
-
-		String checkSql = "SELECT password FROM account WHERE userid=? AND isActive=1";
-		try (PreparedStatement ps = connection.prepareStatement(checkSql)) {
-			ps.setString(1, userId);
-			try (ResultSet rs = ps.executeQuery()) {
-				if (!rs.next() || !rs.getString("password").equals(passwordInput)) {
-					System.out.println("Incorrect password or account not active. Account not deleted.");
-					return;
-				}
-			}
-		}
-
-		String updateSql = "UPDATE account SET isActive=0 WHERE userid=?";
-		try (PreparedStatement ps = connection.prepareStatement(updateSql)) {
-			ps.setString(1, userId);
-			int updated = ps.executeUpdate();
-			if (updated > 0) {
-				System.out.println("Your account has been deactivated (deleted). We’re sorry to see you go.");
-			} else {
-				System.out.println("Account could not be deleted.");
-			}
-		}
-	}
-	
-	public void deleteAccountByAccountNumber(Scanner scanner, int accountNumber) throws SQLException {
+	@SuppressWarnings("try")
+	public void deleteAccount(Scanner scanner, int accountNumber) throws SQLException {
 	    
 		System.out.println("\n--- Delete Account ---");
 	    System.out.println("Are you sure you want to delete (deactivate) your account? This cannot be undone from the app.");
@@ -934,22 +707,22 @@ public class BankOperations {
 	    String passwordInput = scanner.nextLine();
 
 	    // Confirm password and active status
-	    String checkSql = "SELECT password FROM account WHERE accountnumber = ? AND isActive = 1";
-	    try (PreparedStatement ps = connection.prepareStatement(checkSql)) {
-	        ps.setInt(1, accountNumber);
-	        try (ResultSet rs = ps.executeQuery()) {
-	            if (!rs.next() || !rs.getString("password").equals(passwordInput)) {
-	                System.out.println("Incorrect password or account not active. Account not deleted.");
-	                return;
-	            }
-	        }
+	    if (!isAccountActive(accountNumber) || !checkPassword(accountNumber, passwordInput)) {
+	    	System.out.println("Incorrect password or account not active. Account not deleted.");
+	    	return;
 	    }
 
 	    String updateSql = "UPDATE account SET isActive = 0 WHERE accountnumber = ?";
-	    try (PreparedStatement ps = connection.prepareStatement(updateSql)) {
+	    try (OperationMetrics.Scope ignored = OperationMetrics.start("BankOperations.deleteAccount");
+	    		Connection connection = pool.getConnection();
+	    		PreparedStatement ps = connection.prepareStatement(updateSql)) {
 	        ps.setInt(1, accountNumber);
 	        int updated = ps.executeUpdate();
+	        identities.invalidate(accountNumber);
+	        if (sessionFor(accountNumber) != null)
+	        	session.deactivated();
 	        if (updated > 0) {
+	            AccountStore.activeChanged(pool, accountNumber, false);
 	            System.out.println("Your account has been deactivated (deleted). We’re sorry to see you go.");
 	        } else {
 	            System.out.println("Account could not be deleted.");
@@ -957,8 +730,16 @@ public class BankOperations {
 	    }
 	}
 
-	public void showProfileMenuByAccountNumber(Scanner scanner, int accountNumber) throws SQLException {
-		if (!isAccountActiveByAccountNumber(connection, accountNumber)) {
+	private static void printAccountDetails(BankService.Profile profile) {
+		System.out.println("\n--- Account Details ---");
+		System.out.println("Account Number   : " + String.format("%04d", profile.getAccountNumber()));
+		System.out.println("User ID          : " + profile.getUserId());
+		System.out.println("Name             : " + profile.getName() + " " + profile.getSurname());
+		System.out.println("Balance          : " + Money.format(profile.getBalance()));
+	}
+
+	public void showProfileMenu(Scanner scanner, int accountNumber) throws SQLException {
+		if (!isAccountActive(accountNumber)) {
 			System.out.println("Account is inactive. Transaction not allowed.");
 			return;
 		}
@@ -973,34 +754,20 @@ public class BankOperations {
 			String opt = scanner.nextLine().trim();
 
 			if (opt.equals("1")) {
-				if (!isAccountActiveByAccountNumber(connection, accountNumber)) {
+				// one round trip: the profile row carries the active flag too
+				BankService.Profile profile = getProfile(accountNumber);
+				if (profile == null || !profile.isActive()) {
 					System.out.println("Account is inactive. Transaction not allowed.");
 					return;
 				}
-				String sql = "SELECT accountnumber, name, surname, balance, userid, transaction_pin FROM account WHERE accountnumber = ?";
-				try (PreparedStatement ps = connection.prepareStatement(sql)) {
-					ps.setInt(1, accountNumber);
-					try (ResultSet rs = ps.executeQuery()) {
-						if (rs.next()) {
-							System.out.println("\n--- Account Details ---");
-							System.out
-									.println("Account Number   : " + String.format("%04d", rs.getInt("accountnumber")));
-							System.out.println("User ID          : " + rs.getString("userid"));
-							System.out.println(
-									"Name             : " + rs.getString("name") + " " + rs.getString("surname"));
-							System.out.println("Balance          : " + rs.getDouble("balance"));
-						} else {
-							System.out.println("Account info not found!");
-						}
-					}
-				}
+				printAccountDetails(profile);
 			} else if (opt.equals("2")) {
-				changePinOrPasswordByAccountnumber(scanner, accountNumber);
+				changePinOrPassword(scanner, accountNumber);
 			} else if (opt.equals("3")) {
-				editNameByAccountNumber(scanner, accountNumber);
+				editName(scanner, accountNumber);
 
 			}else if(opt.equals("4")) {
-				deleteAccountByAccountNumber(scanner, accountNumber);
+				deleteAccount(scanner, accountNumber);
 			}
 
 			else if (opt.equals("5")) {
@@ -1011,60 +778,9 @@ public class BankOperations {
 		}
 	}
 
-	public void showProfileMenuByUserId(Scanner scanner, String userId) throws SQLException {
-		
-		while (true) {
-			System.out.println("\n--- Profile Menu ---");
-			System.out.println("1. View Account Details");
-			System.out.println("2. Change PIN or Password");
-			System.out.println("3. Edit name ");
-			System.out.println("4. Delete Account");
-			System.out.println("5. Back");
-			System.out.print("Select option: ");
-			String opt = scanner.nextLine().trim();
-
-			if (opt.equals("1")) {
-				if (!isAccountActiveByUserId(userId)) {
-					System.out.println("Account is inactive. Transaction not allowed.");
-					return;
-				}
-				String sql = "SELECT accountnumber, name, surname, balance, userid, transaction_pin FROM account WHERE userid = ?";
-				try (PreparedStatement ps = connection.prepareStatement(sql)) {
-					ps.setString(1, userId);
-					try (ResultSet rs = ps.executeQuery()) {
-						if (rs.next()) {
-							System.out.println("\n--- Account Details ---");
-							System.out
-									.println("Account Number   : " + String.format("%04d", rs.getInt("accountnumber")));
-							System.out.println("User ID          : " + rs.getString("userid"));
-							System.out.println(
-									"Name             : " + rs.getString("name") + " " + rs.getString("surname"));
-							System.out.println("Balance          : " + rs.getDouble("balance"));
-						} else {
-							System.out.println("Account info not found!");
-						}
-					}
-				}
-			} else if (opt.equals("2")) {
-				changePinOrPasswordByUserId(scanner, userId);
-			} else if (opt.equals("3")) {
-				editNameByUserId(scanner, userId);
-			} else if (opt.equals("4")) {
-				deleteAccountByUserId(scanner, userId);
-			}
-
-			else if (opt.equals("5")) {
-				return;
-			} else {
-				System.out.println("Invalid option. Please enter 1-3.");
-			}
-		}
-	}
-
-	
-
-	public void changePinOrPasswordByUserId(Scanner scanner, String userId) throws SQLException {
-		if (!isAccountActiveByUserId(userId)) {
+	@SuppressWarnings("try")
+	public void changePinOrPassword(Scanner scanner, int accountNumber) throws SQLException {
+		if (!isAccountActive(accountNumber)) {
 			System.out.println("Account is inactive. Transaction not allowed.");
 			return;
 		}
@@ -1078,126 +794,11 @@ public class BankOperations {
 
 			if (ch.equals("1")) {
 				// Verify old password
-				String sql = "SELECT password FROM account WHERE userid = ?";
-				try (PreparedStatement ps = connection.prepareStatement(sql)) {
-					ps.setString(1, userId);
-					try (ResultSet rs = ps.executeQuery()) {
-						if (rs.next()) {
-							String oldPass = rs.getString("password");
-							System.out.print("Enter current password: ");
-							String enteredOld = scanner.nextLine();
-							if (!enteredOld.equals(oldPass)) {
-								System.out.println("Incorrect password.");
-								continue;
-							}
-						}
-					}
-				}
-				// Set new password
-				String newPassword;
-				while (true) {
-					System.out.print("Enter new password: ");
-					newPassword = scanner.nextLine();
-					if (!newPassword.matches("^[^.,]+$") || newPassword.length() < 6) {
-						System.out.println("Password must be at least 6 chars, no '.' or ','.");
-						continue;
-					}
-					System.out.print("Confirm password: ");
-					String cpass = scanner.nextLine();
-					if (!newPassword.equals(cpass)) {
-						System.out.println("Passwords do not match.");
-						continue;
-					}
-					break;
-				}
-				String updateSql = "UPDATE account SET password = ? WHERE userid = ?";
-				try (PreparedStatement ps = connection.prepareStatement(updateSql)) {
-					ps.setString(1, newPassword);
-					ps.setString(2, userId);
-					ps.executeUpdate();
-					System.out.println("Password changed successfully!");
-				}
-			} else if (ch.equals("2")) {
-				// Verify old PIN
-				String sql = "SELECT transaction_pin FROM account WHERE userid = ?";
-				try (PreparedStatement ps = connection.prepareStatement(sql)) {
-					ps.setString(1, userId);
-					try (ResultSet rs = ps.executeQuery()) {
-						if (rs.next()) {
-							String oldPin = rs.getString("transaction_pin");
-							System.out.print("Enter current PIN: ");
-							String enteredOld = scanner.nextLine().trim();
-							if (!enteredOld.equals(oldPin)) {
-								System.out.println("Incorrect PIN.");
-								continue;
-							}
-						}
-					}
-				}
-				// Set new PIN
-				String newPin;
-				while (true) {
-					System.out.print("Enter new 4-digit PIN: ");
-					newPin = scanner.nextLine().trim();
-					if (!newPin.matches("^\\d{4}$")) {
-						System.out.println("PIN must be exactly 4 numeric digits.");
-						continue;
-					}
-					System.out.print("Confirm PIN: ");
-					String cpin = scanner.nextLine().trim();
-					if (!newPin.equals(cpin)) {
-						System.out.println("PINs do not match.");
-						continue;
-					}
-					break;
-				}
-				String updateSql = "UPDATE account SET transaction_pin = ? WHERE userid = ?";
-				try (PreparedStatement ps = connection.prepareStatement(updateSql)) {
-					ps.setString(1, newPin);
-					ps.setString(2, userId);
-					ps.executeUpdate();
-					System.out.println("PIN changed successfully!");
-				}
-			} else if (ch.equals("3")) {
-				return;
-			} else {
-				System.out.println("Invalid choice. Enter 1-3.");
-			}
-		}
-	}
-
-	public void changePinOrPasswordByAccountnumber(Scanner scanner, int accountNumber) throws SQLException {
-		if (!isAccountActiveByAccountNumber(connection, accountNumber)) {
-			System.out.println("Account is inactive. Transaction not allowed.");
-			return;
-		}
-		while (true) {
-			System.out.println("\nChange:");
-			System.out.println("1. Password");
-			System.out.println("2. Transaction PIN");
-			System.out.println("3. Back");
-			System.out.print("Choose: ");
-			String ch = scanner.nextLine().trim();
-
-			if (ch.equals("1")) {
-				// Verify old password
-				String sql = "SELECT password FROM account WHERE accountnumber = ?";
-				try (PreparedStatement ps = connection.prepareStatement(sql)) {
-					ps.setInt(1, accountNumber);
-					try (ResultSet rs = ps.executeQuery()) {
-						if (rs.next()) {
-							String oldPass = rs.getString("password");
-							System.out.print("Enter current password: ");
-							String enteredOld = scanner.nextLine();
-							if (!enteredOld.equals(oldPass)) {
-								System.out.println("Incorrect password.");
-								continue;
-							}
-						} else {
-							System.out.println("Account not found.");
-							return;
-						}
-					}
+				System.out.print("Enter current password: ");
+				String enteredOld = scanner.nextLine();
+				if (!checkPassword(accountNumber, enteredOld)) {
+					System.out.println("Incorrect password.");
+					continue;
 				}
 				// Set new password
 				String newPassword;
@@ -1217,11 +818,16 @@ public class BankOperations {
 					break;
 				}
 				String updateSql = "UPDATE account SET password = ? WHERE accountnumber = ?";
-				try (PreparedStatement ps = connection.prepareStatement(updateSql)) {
-					ps.setString(1, newPassword);
+				String hashed = CredentialHasher.get().hash(newPassword);
+				try (OperationMetrics.Scope ignored = OperationMetrics.start("BankOperations.changePinOrPassword");
+						Connection connection = pool.getConnection();
+						PreparedStatement ps = connection.prepareStatement(updateSql)) {
+					ps.setString(1, hashed);
 					ps.setInt(2, accountNumber);
 					int updated = ps.executeUpdate();
 					if (updated == 1) {
+						if (sessionFor(accountNumber) != null)
+							session.passwordChanged(hashed);
 						System.out.println("Password changed successfully!");
 					} else {
 						System.out.println("Failed to change password. Please try again.");
@@ -1229,23 +835,11 @@ public class BankOperations {
 				}
 			} else if (ch.equals("2")) {
 				// Verify old PIN
-				String sql = "SELECT transaction_pin FROM account WHERE accountnumber = ?";
-				try (PreparedStatement ps = connection.prepareStatement(sql)) {
-					ps.setInt(1, accountNumber);
-					try (ResultSet rs = ps.executeQuery()) {
-						if (rs.next()) {
-							String oldPin = rs.getString("transaction_pin");
-							System.out.print("Enter current PIN: ");
-							String enteredOld = scanner.nextLine().trim();
-							if (!enteredOld.equals(oldPin)) {
-								System.out.println("Incorrect PIN.");
-								continue; // return to change menu
-							}
-						} else {
-							System.out.println("Account not found.");
-							return; // exit method
-						}
-					}
+				System.out.print("Enter current PIN: ");
+				String enteredOld = scanner.nextLine().trim();
+				if (!checkPin(accountNumber, enteredOld)) {
+					System.out.println("Incorrect PIN.");
+					continue;
 				}
 				// Set new PIN
 				String newPin;
@@ -1265,11 +859,18 @@ public class BankOperations {
 					break;
 				}
 				String updateSql = "UPDATE account SET transaction_pin = ? WHERE accountnumber = ?";
-				try (PreparedStatement ps = connection.prepareStatement(updateSql)) {
-					ps.setString(1, newPin);
+				String hashed = CredentialHasher.get().hash(newPin);
+				try (OperationMetrics.Scope ignored = OperationMetrics.start("BankOperations.changePinOrPassword");
+						Connection connection = pool.getConnection();
+						PreparedStatement ps = connection.prepareStatement(updateSql)) {
+					ps.setString(1, hashed);
 					ps.setInt(2, accountNumber);
 					int updated = ps.executeUpdate();
 					if (updated == 1) {
+						credentials.forgetPin(accountNumber);
+						if (sessionFor(accountNumber) != null)
+							session.pinChanged(hashed);
+						AccountStore.pinChanged(pool, accountNumber, hashed);
 						System.out.println("PIN changed successfully!");
 					} else {
 						System.out.println("Failed to change PIN. Please try again.");
@@ -1283,76 +884,18 @@ public class BankOperations {
 		}
 	}
 
-	public void editNameByUserId(Scanner scanner, String userId) throws SQLException {
-		if (!isAccountActiveByUserId(userId)) {
-		    System.out.println("Account is inactive. Transaction not allowed.");
-		    return;
-		}
-
-		// Ask password to validate
-		System.out.print("Enter your current password to proceed: ");
-		String passwordInput = scanner.nextLine();
-		String sqlCheck = "SELECT password FROM account WHERE userid=?";
-		try (PreparedStatement ps = connection.prepareStatement(sqlCheck)) {
-			ps.setString(1, userId);
-			try (ResultSet rs = ps.executeQuery()) {
-				if (!rs.next() || !rs.getString("password").equals(passwordInput)) {
-					System.out.println("Incorrect password. Cannot update name.");
-					return;
-				}
-			}
-		}
-		// Now allow update
-		String newFirst = "", newMiddle = "", newLast = "";
-		while (true) {
-			System.out.print("Enter new First Name: ");
-			newFirst = scanner.nextLine().trim();
-			if (!newFirst.matches("[A-Za-z]+")) {
-				System.out.println("Invalid! Only letters allowed.");
-				continue;
-			}
-			System.out.print("Enter new Middle Name (leave blank if none): ");
-			newMiddle = scanner.nextLine().trim();
-			if (!newMiddle.isEmpty() && !newMiddle.matches("[A-Za-z]+")) {
-				System.out.println("Invalid! Only letters allowed.");
-				continue;
-			}
-			System.out.print("Enter new Last Name: ");
-			newLast = scanner.nextLine().trim();
-			if (!newLast.matches("[A-Za-z]+")) {
-				System.out.println("Invalid! Only letters allowed.");
-				continue;
-			}
-			break;
-		}
-		String sqlUpdate = "UPDATE account SET name=?, middle_name=?, surname=? WHERE userid=?";
-		try (PreparedStatement ps = connection.prepareStatement(sqlUpdate)) {
-			ps.setString(1, newFirst);
-			ps.setString(2, newMiddle);
-			ps.setString(3, newLast);
-			ps.setString(4, userId);
-			ps.executeUpdate();
-			System.out.println("Name updated successfully!");
-		}
-	}
-
-	public void editNameByAccountNumber(Scanner scanner, int accountNumber) throws SQLException {
-		if (!isAccountActiveByAccountNumber(connection, accountNumber)) {
+	@SuppressWarnings("try")
+	public void editName(Scanner scanner, int accountNumber) throws SQLException {
+		if (!isAccountActive(accountNumber)) {
 			System.out.println("Account is inactive. Transaction not allowed.");
 			return;
 		}
 		// Ask password to validate
 		System.out.print("Enter your current password to proceed: ");
 		String passwordInput = scanner.nextLine();
-		String sqlCheck = "SELECT password FROM account WHERE accountnumber=?";
-		try (PreparedStatement ps = connection.prepareStatement(sqlCheck)) {
-			ps.setInt(1, accountNumber);
-			try (ResultSet rs = ps.executeQuery()) {
-				if (!rs.next() || !rs.getString("password").equals(passwordInput)) {
-					System.out.println("Incorrect password. Cannot update name.");
-					return;
-				}
-			}
+		if (!checkPassword(accountNumber, passwordInput)) {
+			System.out.println("Incorrect password. Cannot update name.");
+			return;
 		}
 		// Now allow update
 		String newFirst = "", newMiddle = "", newLast = "";
@@ -1378,12 +921,17 @@ public class BankOperations {
 			break;
 		}
 		String sqlUpdate = "UPDATE account SET name=?, middle_name=?, surname=? WHERE accountnumber=?";
-		try (PreparedStatement ps = connection.prepareStatement(sqlUpdate)) {
+		try (OperationMetrics.Scope ignored = OperationMetrics.start("BankOperations.editName");
+				Connection connection = pool.getConnection();
+				PreparedStatement ps = connection.prepareStatement(sqlUpdate)) {
 			ps.setString(1, newFirst);
 			ps.setString(2, newMiddle);
 			ps.setString(3, newLast);
 			ps.setInt(4, accountNumber);
 			ps.executeUpdate();
+			identities.invalidate(accountNumber);
+			if (sessionFor(accountNumber) != null)
+				session.renamed(newFirst, newMiddle, newLast);
 			System.out.println("Name updated successfully!");
 		}
 	}
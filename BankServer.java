@@ -0,0 +1,667 @@
+package com.testlab.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.testlab.model.AccountIdentityCache;
+import com.testlab.model.AccountStore;
+import com.testlab.model.Authentication;
+import com.testlab.model.BankOperations;
+import com.testlab.model.BankService;
+import com.testlab.model.ConnectionPool;
+import com.testlab.model.Money;
+import com.testlab.model.TransactionResult;
+import com.testlab.model.TransactionStatement;
+
+// JSON over HTTP for the same operations the session menus offer, so many clients can use the bank
+// at once. Each request runs on its own virtual thread when the runtime has them (Java 21+), else on
+// a cached thread pool; connections are kept alive by the JDK server. Money is sent as rupee strings
+// ("1500.50") both ways.
+//
+//   POST /api/login       {"userId" or "accountNumber", "password"} -> {"token", ...}
+//   POST /api/logout
+//   GET  /api/balance
+//   POST /api/deposit     {"amount", "pin"}
+//   POST /api/withdraw    {"amount", "pin"}
+//   POST /api/transfer    {"to" (account number), "amount", "pin"}
+//   GET  /api/statement   ?size=10&before=<cursor from the previous page>
+//   GET  /api/profile
+//
+// Everything but login needs "Authorization: Bearer <token>". Like the console's three tries,
+// failed logins are limited: an account is locked for a while after bank.http.maxFailedLogins
+// failures in a row, and a client address after bank.http.maxFailedLoginsPerAddress (which also
+// covers guessing across many accounts); a locked login gets 429 with Retry-After. Wrong PINs on
+// the money endpoints are counted the same way, per account, up to bank.http.maxFailedPins.
+public class BankServer {
+
+	public static final int DEFAULT_PORT = 8080;
+	public static final long DEFAULT_SESSION_IDLE_MINUTES = 15;
+	public static final int DEFAULT_MAX_FAILED_LOGINS = 3;
+	public static final int DEFAULT_MAX_FAILED_LOGINS_PER_ADDRESS = 20;
+	public static final int DEFAULT_MAX_FAILED_PINS = 3;
+	public static final long DEFAULT_LOCKOUT_MINUTES = 15;
+
+	private static final int MAX_BODY_BYTES = 16 * 1024;
+	private static final int MAX_PAGE_SIZE = 100;
+	private static final String LOGINS_LOCKED = "Too many failed logins. Try again later.";
+
+	// Balances and money movements go through the same store as the menus (see BankOperations)
+	private final BankOperations operations;
+	private final AccountStore store;
+	private final Authentication authentication;
+	private final AccountIdentityCache identities;
+	private final TransactionStatement statements;
+	private final long sessionIdleMillis;
+	private final int maxFailedLogins;
+	private final int maxFailedLoginsPerAddress;
+	private final int maxFailedPins;
+	private final long lockoutMillis;
+	private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+	// keyed "account:<number>", "address:<client address>" and "pin:<number>"
+	private final Map<String, Failures> failures = new ConcurrentHashMap<>();
+	private final SecureRandom random = new SecureRandom();
+
+	private HttpServer server;
+	private ExecutorService requests;
+	private ScheduledExecutorService sweeper;
+
+	public BankServer(ConnectionPool pool) {
+		this.operations = new BankOperations(pool);
+		this.store = operations.getStore();
+		this.authentication = new Authentication(pool);
+		this.identities = AccountIdentityCache.forPool(pool);
+		this.statements = new TransactionStatement(pool);
+		this.sessionIdleMillis = TimeUnit.MINUTES
+				.toMillis(Long.getLong("bank.http.sessionIdleMinutes", DEFAULT_SESSION_IDLE_MINUTES));
+		this.maxFailedLogins = Integer.getInteger("bank.http.maxFailedLogins", DEFAULT_MAX_FAILED_LOGINS);
+		this.maxFailedLoginsPerAddress = Integer.getInteger("bank.http.maxFailedLoginsPerAddress",
+				DEFAULT_MAX_FAILED_LOGINS_PER_ADDRESS);
+		this.maxFailedPins = Integer.getInteger("bank.http.maxFailedPins", DEFAULT_MAX_FAILED_PINS);
+		this.lockoutMillis = TimeUnit.MINUTES
+				.toMillis(Long.getLong("bank.http.lockoutMinutes", DEFAULT_LOCKOUT_MINUTES));
+	}
+
+	public void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/api/", this::handle);
+		requests = requestExecutor();
+		server.setExecutor(requests);
+		sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "session-sweeper");
+			t.setDaemon(true);
+			return t;
+		});
+		sweeper.scheduleWithFixedDelay(this::expireSessions, 1, 1, TimeUnit.MINUTES);
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(1);
+		requests.shutdown();
+		sweeper.shutdownNow();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	// Looked up reflectively because the build targets Java 17, which has no virtual threads
+	private static ExecutorService requestExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "http-request");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String path = exchange.getRequestURI().getPath();
+			String method = exchange.getRequestMethod();
+			if (path.equals("/api/login") && method.equals("POST")) {
+				login(exchange);
+				return;
+			}
+			Session session = authenticate(exchange);
+			if (session == null) {
+				send(exchange, 401, error("Not logged in or session expired."));
+				return;
+			}
+			switch (method + " " + path) {
+			case "POST /api/logout":
+				sessions.remove(session.token);
+				send(exchange, 200, "{}");
+				break;
+			case "GET /api/balance":
+				reply(exchange, store.getBalance(session.accountNumber));
+				break;
+			case "POST /api/deposit": {
+				Map<String, String> body = readJson(exchange);
+				withPin(exchange, session, () -> store.deposit(session.accountNumber, amount(body), body.get("pin")));
+				break;
+			}
+			case "POST /api/withdraw": {
+				Map<String, String> body = readJson(exchange);
+				withPin(exchange, session, () -> store.withdraw(session.accountNumber, amount(body), body.get("pin")));
+				break;
+			}
+			case "POST /api/transfer": {
+				Map<String, String> body = readJson(exchange);
+				int to = Integer.parseInt(required(body, "to"));
+				withPin(exchange, session,
+						() -> store.transfer(session.accountNumber, to, amount(body), body.get("pin")));
+				break;
+			}
+			case "GET /api/statement":
+				statement(exchange, session);
+				break;
+			case "GET /api/profile":
+				profile(exchange, session);
+				break;
+			default:
+				send(exchange, 404, error("No such endpoint: " + method + " " + path));
+			}
+		} catch (IllegalArgumentException e) {
+			// malformed JSON, missing fields and unparseable numbers (NumberFormatException)
+			send(exchange, 400, error(e.getMessage()));
+		} catch (SQLException e) {
+			System.out.println("HTTP " + exchange.getRequestURI().getPath() + ": database error: " + e.getMessage());
+			send(exchange, 503, error("Database unavailable. Try again later."));
+		} catch (RuntimeException e) {
+			System.out.println("HTTP " + exchange.getRequestURI().getPath() + ": internal error: " + e);
+			e.printStackTrace();
+			send(exchange, 500, error("Internal error."));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void login(HttpExchange exchange) throws IOException, SQLException {
+		Map<String, String> body = readJson(exchange);
+		String password = required(body, "password");
+		String address = "address:" + exchange.getRemoteAddress().getAddress().getHostAddress();
+		long now = System.currentTimeMillis();
+		if (refuseLocked(exchange, address, now, LOGINS_LOCKED)) {
+			return;
+		}
+		// The account is resolved first so both ways of naming it share one failure count
+		AccountIdentityCache.Identity identity = body.containsKey("userId") ? identities.get(body.get("userId"))
+				: identities.get(Integer.parseInt(required(body, "accountNumber")));
+		if (identity == null) {
+			failed(address, maxFailedLoginsPerAddress, now);
+			send(exchange, 401, error("Invalid credentials."));
+			return;
+		}
+		String account = "account:" + identity.getAccountNumber();
+		if (refuseLocked(exchange, account, now, LOGINS_LOCKED)) {
+			return;
+		}
+		if (!authentication.verifyPassword(identity.getAccountNumber(), password)) {
+			failed(account, maxFailedLogins, now);
+			failed(address, maxFailedLoginsPerAddress, now);
+			send(exchange, 401, error("Invalid credentials."));
+			return;
+		}
+		failures.remove(account);
+		if (!identity.isActive()) {
+			send(exchange, 403, error("Account is inactive."));
+			return;
+		}
+		byte[] bytes = new byte[32];
+		random.nextBytes(bytes);
+		Session session = new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes),
+				identity.getAccountNumber(), identity.getUserId());
+		sessions.put(session.token, session);
+		send(exchange, 200, new Json().field("token", session.token).field("accountNumber", session.accountNumber)
+				.field("userId", session.userId).end());
+	}
+
+	// Runs a PIN-checked operation; wrong PINs count against the account as failed logins do
+	private void withPin(HttpExchange exchange, Session session, Supplier<TransactionResult> operation)
+			throws IOException {
+		String key = "pin:" + session.accountNumber;
+		long now = System.currentTimeMillis();
+		if (refuseLocked(exchange, key, now, "Too many incorrect PINs. Try again later.")) {
+			return;
+		}
+		TransactionResult result = operation.get();
+		if (result.getStatus() == TransactionResult.Status.INVALID_PIN) {
+			failed(key, maxFailedPins, now);
+		} else if (result.isSuccess()) {
+			failures.remove(key);
+		}
+		reply(exchange, result);
+	}
+
+	// Answers 429 and returns true while key is locked out
+	private boolean refuseLocked(HttpExchange exchange, String key, long now, String message) throws IOException {
+		Failures f = failures.get(key);
+		long wait = f == null ? 0 : f.lockedUntil - now;
+		if (wait <= 0) {
+			return false;
+		}
+		exchange.getResponseHeaders().set("Retry-After",
+				String.valueOf(TimeUnit.MILLISECONDS.toSeconds(wait) + 1));
+		send(exchange, 429, error(message));
+		return true;
+	}
+
+	// Counts a failure against key, locking it out once it reaches limit; a count with no failure for
+	// a lockout period starts over
+	private void failed(String key, int limit, long now) {
+		failures.compute(key, (k, f) -> {
+			if (f == null || now - f.lastFailure > lockoutMillis) {
+				f = new Failures();
+			}
+			f.lastFailure = now;
+			if (++f.count >= limit) {
+				f.count = 0;
+				f.lockedUntil = now + lockoutMillis;
+			}
+			return f;
+		});
+	}
+
+	private void statement(HttpExchange exchange, Session session) throws IOException, SQLException {
+		Map<String, String> query = readQuery(exchange);
+		int size = Math.min(MAX_PAGE_SIZE, Integer.parseInt(query.getOrDefault("size",
+				String.valueOf(TransactionStatement.DEFAULT_PAGE_SIZE))));
+		TransactionStatement.Page page;
+		String before = query.get("before");
+		if (before == null) {
+			page = statements.firstPage(session.accountNumber, size);
+		} else {
+			// cursor is "<epoch millis>.<transaction id>" of the last entry the client has
+			int dot = before.indexOf('.');
+			if (dot < 0) {
+				throw new IllegalArgumentException("Malformed cursor: " + before);
+			}
+			page = statements.olderThan(session.accountNumber, size,
+					new Timestamp(Long.parseLong(before.substring(0, dot))), Long.parseLong(before.substring(dot + 1)));
+		}
+		StringBuilder entries = new StringBuilder("[");
+		for (TransactionStatement.Entry entry : page.getEntries()) {
+			if (entries.length() > 1) {
+				entries.append(',');
+			}
+			entries.append(new Json().field("id", entry.getId()).field("datetime", entry.getDatetime().toString())
+					.field("type", entry.getType()).field("amount", Money.format(entry.getAmount()))
+					.field("source", entry.getSource()).field("destination", entry.getDestination())
+					.field("description", entry.getDescription()).end());
+		}
+		entries.append(']');
+		Json json = new Json().raw("entries", entries.toString());
+		if (page.hasOlder()) {
+			TransactionStatement.Entry last = page.getEntries().get(page.getEntries().size() - 1);
+			json.field("next", last.getDatetime().getTime() + "." + last.getId());
+		}
+		send(exchange, 200, json.end());
+	}
+
+	private void profile(HttpExchange exchange, Session session) throws IOException, SQLException {
+		BankService.Profile profile = operations.getProfile(session.accountNumber);
+		if (profile == null) {
+			send(exchange, 404, error("Account info not found!"));
+			return;
+		}
+		send(exchange, 200, new Json().field("accountNumber", profile.getAccountNumber())
+				.field("userId", profile.getUserId()).field("name", profile.getName())
+				.field("surname", profile.getSurname()).field("balance", Money.format(profile.getBalance()))
+				.field("active", profile.isActive()).end());
+	}
+
+	private Session authenticate(HttpExchange exchange) {
+		String header = exchange.getRequestHeaders().getFirst("Authorization");
+		if (header == null || !header.startsWith("Bearer ")) {
+			return null;
+		}
+		Session session = sessions.get(header.substring("Bearer ".length()).trim());
+		long now = System.currentTimeMillis();
+		if (session == null || now - session.lastUsed > sessionIdleMillis) {
+			return null;
+		}
+		session.lastUsed = now;
+		return session;
+	}
+
+	private void expireSessions() {
+		long now = System.currentTimeMillis();
+		sessions.values().removeIf(s -> now - s.lastUsed > sessionIdleMillis);
+		failures.values().removeIf(f -> now > f.lockedUntil && now - f.lastFailure > lockoutMillis);
+	}
+
+	private static void reply(HttpExchange exchange, TransactionResult result) throws IOException {
+		Json json = new Json().field("status", result.getStatus().name()).field("message", result.getMessage());
+		if (result.isSuccess()) {
+			json.field("amount", Money.format(result.getAmount()));
+			if (result.getBalance() >= 0) {
+				json.field("balance", Money.format(result.getBalance()));
+			}
+		}
+		send(exchange, statusCode(result.getStatus()), json.end());
+	}
+
+	private static int statusCode(TransactionResult.Status status) {
+		switch (status) {
+		case SUCCESS:
+			return 200;
+		case INVALID_AMOUNT:
+		case SAME_ACCOUNT:
+			return 400;
+		case INVALID_PIN:
+			return 403;
+		case ACCOUNT_NOT_FOUND:
+		case RECEIVER_NOT_FOUND:
+			return 404;
+		case ACCOUNT_INACTIVE:
+		case RECEIVER_INACTIVE:
+		case INSUFFICIENT_FUNDS:
+			return 409;
+		default:
+			return 503;
+		}
+	}
+
+	private static long amount(Map<String, String> body) {
+		return Money.parse(required(body, "amount"));
+	}
+
+	private static String required(Map<String, String> body, String name) {
+		String value = body.get(name);
+		if (value == null) {
+			throw new IllegalArgumentException("Missing field: " + name);
+		}
+		return value;
+	}
+
+	private static String error(String message) {
+		return new Json().field("error", message).end();
+	}
+
+	private static void send(HttpExchange exchange, int code, String json) throws IOException {
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(code, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private static Map<String, String> readQuery(HttpExchange exchange) {
+		Map<String, String> query = new HashMap<>();
+		String raw = exchange.getRequestURI().getRawQuery();
+		if (raw != null) {
+			for (String pair : raw.split("&")) {
+				int eq = pair.indexOf('=');
+				if (eq > 0) {
+					query.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+							URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+				}
+			}
+		}
+		return query;
+	}
+
+	private static Map<String, String> readJson(HttpExchange exchange) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try (InputStream in = exchange.getRequestBody()) {
+			byte[] buffer = new byte[4096];
+			for (int n; (n = in.read(buffer)) > 0;) {
+				body.write(buffer, 0, n);
+				if (body.size() > MAX_BODY_BYTES) {
+					throw new IllegalArgumentException("Request body too large");
+				}
+			}
+		}
+		return new JsonReader(body.toString(StandardCharsets.UTF_8)).readObject();
+	}
+
+	private static class Session {
+		final String token;
+		final int accountNumber;
+		final String userId;
+		volatile long lastUsed = System.currentTimeMillis();
+
+		Session(String token, int accountNumber, String userId) {
+			this.token = token;
+			this.accountNumber = accountNumber;
+			this.userId = userId;
+		}
+	}
+
+	// Failed logins for one account or client address; only touched inside failures.compute
+	private static class Failures {
+		int count;
+		long lastFailure;
+		volatile long lockedUntil;
+	}
+
+	// Builds one flat JSON object
+	private static class Json {
+		private final StringBuilder sb = new StringBuilder("{");
+
+		Json field(String name, String value) {
+			key(name);
+			if (value == null) {
+				sb.append("null");
+			} else {
+				quote(value);
+			}
+			return this;
+		}
+
+		Json field(String name, long value) {
+			key(name);
+			sb.append(value);
+			return this;
+		}
+
+		Json field(String name, boolean value) {
+			key(name);
+			sb.append(value);
+			return this;
+		}
+
+		Json raw(String name, String json) {
+			key(name);
+			sb.append(json);
+			return this;
+		}
+
+		String end() {
+			return sb.append('}').toString();
+		}
+
+		private void key(String name) {
+			if (sb.length() > 1) {
+				sb.append(',');
+			}
+			quote(name);
+			sb.append(':');
+		}
+
+		private void quote(String s) {
+			sb.append('"');
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				switch (c) {
+				case '"':
+					sb.append("\\\"");
+					break;
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						sb.append(String.format("\\u%04x", (int) c));
+					} else {
+						sb.append(c);
+					}
+				}
+			}
+			sb.append('"');
+		}
+	}
+
+	// Reads one flat JSON object of strings, numbers, booleans and nulls; every value comes back as
+	// its text (null for JSON null), which is all the request bodies above need
+	private static class JsonReader {
+		private final String s;
+		private int i;
+
+		JsonReader(String s) {
+			this.s = s;
+		}
+
+		Map<String, String> readObject() {
+			Map<String, String> fields = new HashMap<>();
+			expect('{');
+			if (peek() == '}') {
+				i++;
+			} else {
+				do {
+					skipSpace();
+					String name = readString();
+					expect(':');
+					fields.put(name, readValue());
+				} while (next() == ',');
+				i--;
+				expect('}');
+			}
+			skipSpace();
+			if (i != s.length()) {
+				throw new IllegalArgumentException("Unexpected content after JSON object at " + i);
+			}
+			return fields;
+		}
+
+		private String readValue() {
+			char c = peek();
+			if (c == '"') {
+				return readString();
+			}
+			int start = i;
+			while (i < s.length() && ",}] \t\r\n".indexOf(s.charAt(i)) < 0) {
+				i++;
+			}
+			String token = s.substring(start, i);
+			if (token.equals("null")) {
+				return null;
+			}
+			if (token.equals("true") || token.equals("false") || token.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?")) {
+				return token;
+			}
+			throw new IllegalArgumentException("Unsupported JSON value at " + start + ": " + token);
+		}
+
+		private String readString() {
+			expect('"');
+			StringBuilder sb = new StringBuilder();
+			while (true) {
+				if (i >= s.length()) {
+					throw new IllegalArgumentException("Unterminated JSON string");
+				}
+				char c = s.charAt(i++);
+				if (c == '"') {
+					return sb.toString();
+				}
+				if (c != '\\') {
+					sb.append(c);
+					continue;
+				}
+				if (i >= s.length()) {
+					throw new IllegalArgumentException("Unterminated JSON string");
+				}
+				char e = s.charAt(i++);
+				switch (e) {
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+					if (i + 4 > s.length()) {
+						throw new IllegalArgumentException("Bad JSON escape");
+					}
+					sb.append((char) Integer.parseInt(s.substring(i, i + 4), 16));
+					i += 4;
+					break;
+				default:
+					sb.append(e); // \" \\ \/
+				}
+			}
+		}
+
+		private void expect(char c) {
+			if (next() != c) {
+				throw new IllegalArgumentException("Expected '" + c + "' at " + (i - 1));
+			}
+		}
+
+		private char next() {
+			char c = peek();
+			i++;
+			return c;
+		}
+
+		private char peek() {
+			skipSpace();
+			if (i >= s.length()) {
+				throw new IllegalArgumentException("Unexpected end of JSON");
+			}
+			return s.charAt(i);
+		}
+
+		private void skipSpace() {
+			while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+				i++;
+			}
+		}
+	}
+}
@@ -0,0 +1,523 @@
+package com.testlab.model;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import com.testlab.model.TransactionResult.Status;
+
+// Programmatic banking operations with no console I/O. The Scanner-driven methods in
+// BankOperations collect input and delegate here; batch jobs and servers can call it directly.
+//
+// Money-moving statements carry their own checks (active, PIN, sufficient balance) in the WHERE
+// clause, so two concurrent withdrawals can never both pass a stale balance check. Each balance
+// change commits together with its ledger posting (see AccountLedger). The account row is only
+// read back when a guarded statement matches nothing, to report which condition failed. Amounts
+// are in paise (see Money). The userId entry points resolve to the account number once (through
+// AccountIdentityCache), so the statements themselves always run on the integer primary key.
+// This is the database implementation of AccountStore.
+public class BankService implements AccountStore {
+
+	private static final String MARK_JOURNAL_ENTRY = "INSERT INTO journal_applied (lsn) VALUES (?)";
+
+	// Shared with TransferExecutor, CommitCoalescer and BatchTransferEngine
+	static final String ACCOUNT_STATE = "SELECT accountnumber, userid, isActive, transaction_pin, balance FROM account "
+			+ "WHERE accountnumber = ?";
+	static final String PROFILE = "SELECT accountnumber, userid, name, surname, balance, isActive FROM account "
+			+ "WHERE accountnumber = ?";
+	static final String GUARDED_DEBIT = "UPDATE account SET balance = balance - ?, posting_seq = posting_seq + ? "
+			+ "WHERE accountnumber = ? AND isActive = 1 AND transaction_pin = ? AND balance >= ?";
+	static final String CREDIT_WITH_PIN = "UPDATE account SET balance = balance + ?, posting_seq = posting_seq + 1 "
+			+ "WHERE accountnumber = ? AND isActive = 1 AND transaction_pin = ?";
+	static final String CREDIT_ACTIVE = "UPDATE account SET balance = balance + ?, posting_seq = posting_seq + ? "
+			+ "WHERE accountnumber = ? AND isActive = 1";
+	// see AccountLedger
+	static final String POSTING = "INSERT INTO account_posting (accountnumber, seq, type, amount, balance_after, "
+			+ "counterparty, description) SELECT accountnumber, posting_seq - ?, ?, ?, balance - ?, ?, ? FROM account "
+			+ "WHERE accountnumber = ?";
+
+	private final ConnectionPool pool;
+	private final TransferExecutor transfers;
+	private final AccountIdentityCache identities;
+	private final Credentials credentials;
+	// null unless CommitCoalescer.start was called for the pool
+	private final CommitCoalescer coalescer;
+
+	public BankService(ConnectionPool pool) {
+		this(pool, new TransferExecutor(pool));
+	}
+
+	public BankService(ConnectionPool pool, TransferExecutor transfers) {
+		this.pool = pool;
+		this.transfers = transfers;
+		this.identities = AccountIdentityCache.forPool(pool);
+		this.credentials = Credentials.forPool(pool);
+		this.coalescer = CommitCoalescer.forPool(pool);
+	}
+
+	public TransferExecutor getTransferExecutor() {
+		return transfers;
+	}
+
+	// The coalescer deposits and withdrawals go through, or null if they commit one at a time
+	CommitCoalescer getCoalescer() {
+		return coalescer;
+	}
+
+	public ConnectionPool getPool() {
+		return pool;
+	}
+
+	@Override
+	public TransactionResult getBalance(int accountNumber) {
+		return OperationMetrics.call("BankService.getBalance", () -> readBalance(accountNumber));
+	}
+
+	public TransactionResult getBalance(String userId) {
+		return OperationMetrics.call("BankService.getBalance", () -> {
+			AccountIdentityCache.Identity identity;
+			try {
+				identity = identities.get(userId);
+			} catch (SQLException e) {
+				return TransactionResult.error(e);
+			}
+			return identity == null ? notFound() : readBalance(identity.getAccountNumber());
+		});
+	}
+
+	@Override
+	public TransactionResult deposit(int accountNumber, long amount, String pin) {
+		return OperationMetrics.call("BankService.deposit", () -> {
+			if (coalescer != null) {
+				return coalesced(coalescer.deposit(accountNumber, amount, pin));
+			}
+			return deposit(accountNumber, amount, pin, 0);
+		});
+	}
+
+	public TransactionResult deposit(String userId, long amount, String pin) {
+		return OperationMetrics.call("BankService.deposit", () -> {
+			AccountIdentityCache.Identity identity;
+			try {
+				identity = identities.get(userId);
+			} catch (SQLException e) {
+				return TransactionResult.error(e);
+			}
+			if (identity == null) {
+				return notFound();
+			}
+			if (coalescer != null) {
+				return coalesced(coalescer.deposit(identity.getAccountNumber(), amount, pin));
+			}
+			return deposit(identity.getAccountNumber(), amount, pin, 0);
+		});
+	}
+
+	@Override
+	public TransactionResult withdraw(int accountNumber, long amount, String pin) {
+		return OperationMetrics.call("BankService.withdraw", () -> {
+			if (coalescer != null) {
+				return coalesced(coalescer.withdraw(accountNumber, amount, pin));
+			}
+			return withdraw(accountNumber, amount, pin, 0);
+		});
+	}
+
+	public TransactionResult withdraw(String userId, long amount, String pin) {
+		return OperationMetrics.call("BankService.withdraw", () -> {
+			AccountIdentityCache.Identity identity;
+			try {
+				identity = identities.get(userId);
+			} catch (SQLException e) {
+				return TransactionResult.error(e);
+			}
+			if (identity == null) {
+				return notFound();
+			}
+			if (coalescer != null) {
+				return coalesced(coalescer.withdraw(identity.getAccountNumber(), amount, pin));
+			}
+			return withdraw(identity.getAccountNumber(), amount, pin, 0);
+		});
+	}
+
+	@Override
+	public TransactionResult transfer(int senderAccountNumber, int receiverAccountNumber, long amount, String pin) {
+		return OperationMetrics.call("BankService.transfer",
+				() -> transfer(senderAccountNumber, receiverAccountNumber, amount, pin, 0));
+	}
+
+	public TransactionResult transfer(String senderUserId, String receiverUserId, long amount, String pin) {
+		return OperationMetrics.call("BankService.transfer",
+				() -> transfer(senderUserId, receiverUserId, amount, pin, 0));
+	}
+
+	// A batch that threw completes its operations exceptionally (see CommitCoalescer); report that as a
+	// failed transaction like any other instead of letting CompletionException reach the caller
+	private static TransactionResult coalesced(CompletableFuture<TransactionResult> result) {
+		try {
+			return result.join();
+		} catch (CompletionException e) {
+			return coalesceFailed();
+		}
+	}
+
+	static TransactionResult coalesceFailed() {
+		return TransactionResult.failure(Status.FAILED,
+				"Transaction could not be completed. Check your balance before trying again.");
+	}
+
+	// journalLsn is the JournaledBankService entry being applied, or 0; see markJournalEntry
+	TransactionResult transfer(int senderAccountNumber, int receiverAccountNumber, long amount, String pin,
+			long journalLsn) {
+		if (!isValidAmount(amount)) {
+			return invalidAmount();
+		}
+		if (senderAccountNumber == receiverAccountNumber) {
+			return sameAccount();
+		}
+		return transfers.transfer(senderAccountNumber, receiverAccountNumber, amount, pin, journalLsn);
+	}
+
+	// As transfer, with the PIN already checked and turned into its guard (see Credentials.pinGuard)
+	TransactionResult transferGuarded(int senderAccountNumber, int receiverAccountNumber, long amount,
+			String pinGuard, long journalLsn) {
+		if (!isValidAmount(amount)) {
+			return invalidAmount();
+		}
+		if (senderAccountNumber == receiverAccountNumber) {
+			return sameAccount();
+		}
+		return transfers.transferGuarded(senderAccountNumber, receiverAccountNumber, amount, pinGuard, journalLsn);
+	}
+
+	TransactionResult transfer(String senderUserId, String receiverUserId, long amount, String pin, long journalLsn) {
+		if (!isValidAmount(amount)) {
+			return invalidAmount();
+		}
+		if (senderUserId.equals(receiverUserId)) {
+			return sameAccount();
+		}
+		// Transfers lock rows in account number order, so resolve both userIds first
+		AccountIdentityCache.Identity sender;
+		AccountIdentityCache.Identity receiver;
+		try {
+			sender = identities.get(senderUserId);
+			receiver = identities.get(receiverUserId);
+		} catch (SQLException e) {
+			return TransactionResult.error(e);
+		}
+		if (sender == null) {
+			return notFound();
+		}
+		if (receiver == null) {
+			return TransactionResult.failure(Status.RECEIVER_NOT_FOUND, "Receiver account not found!");
+		}
+		return transfers.transfer(sender.getAccountNumber(), receiver.getAccountNumber(), amount, pin, journalLsn);
+	}
+
+	@Override
+	public int accountNumberOf(String userId) throws SQLException {
+		AccountIdentityCache.Identity identity = identities.get(userId);
+		return identity == null ? NO_ACCOUNT : identity.getAccountNumber();
+	}
+
+	// The account's details, or null if there is no such account
+	public Profile getProfile(int accountNumber) throws SQLException {
+		return OperationMetrics.call("BankService.getProfile", () -> readProfile(accountNumber));
+	}
+
+	public Profile getProfile(String userId) throws SQLException {
+		return OperationMetrics.call("BankService.getProfile", () -> {
+			AccountIdentityCache.Identity identity = identities.get(userId);
+			return identity == null ? null : readProfile(identity.getAccountNumber());
+		});
+	}
+
+	private Profile readProfile(int accountNumber) throws SQLException {
+		try (Connection connection = pool.getConnection();
+				PreparedStatement ps = connection.prepareStatement(PROFILE)) {
+			ps.setInt(1, accountNumber);
+			try (ResultSet rs = ps.executeQuery()) {
+				if (!rs.next()) {
+					return null;
+				}
+				Profile profile = new Profile();
+				profile.accountNumber = rs.getInt("accountnumber");
+				profile.userId = rs.getString("userid");
+				profile.name = rs.getString("name");
+				profile.surname = rs.getString("surname");
+				profile.balance = rs.getLong("balance");
+				profile.active = rs.getInt("isActive") == 1;
+				return profile;
+			}
+		}
+	}
+
+	private TransactionResult readBalance(int accountNumber) {
+		try {
+			AccountState state = findAccount(accountNumber);
+			if (state == null) {
+				return notFound();
+			}
+			if (!state.active) {
+				return inactive();
+			}
+			return TransactionResult.success(0, state.balance);
+		} catch (SQLException e) {
+			return TransactionResult.error(e);
+		}
+	}
+
+	TransactionResult deposit(int accountNumber, long amount, String pin, long journalLsn) {
+		if (!isValidAmount(amount)) {
+			return invalidAmount();
+		}
+		String pinGuard;
+		try {
+			// before borrowing the transaction's connection: a cache miss needs one of its own
+			pinGuard = credentials.pinGuard(accountNumber, pin);
+		} catch (SQLException e) {
+			return TransactionResult.error(e);
+		}
+		return depositGuarded(accountNumber, amount, pinGuard, journalLsn);
+	}
+
+	TransactionResult depositGuarded(int accountNumber, long amount, String pinGuard, long journalLsn) {
+		if (!isValidAmount(amount)) {
+			return invalidAmount();
+		}
+		try (Connection connection = pool.getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				if (!markJournalEntry(connection, journalLsn)) {
+					connection.rollback();
+					return alreadyApplied();
+				}
+				TransactionResult result = credit(connection, accountNumber, amount, pinGuard);
+				connection.commit();
+				return result;
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			}
+		} catch (SQLException e) {
+			return TransactionResult.error(e);
+		}
+	}
+
+	// A guarded deposit inside the caller's transaction; a refused one changes nothing
+	static TransactionResult credit(Connection connection, int accountNumber, long amount, String pinGuard)
+			throws SQLException {
+		try (PreparedStatement ps = connection.prepareStatement(CREDIT_WITH_PIN);
+				PreparedStatement posting = connection.prepareStatement(POSTING)) {
+			ps.setLong(1, amount);
+			ps.setInt(2, accountNumber);
+			ps.setString(3, pinGuard);
+			if (ps.executeUpdate() != 1) {
+				return explainRejected(findAccount(connection, accountNumber), pinGuard, 0);
+			}
+			AccountLedger.bindPosting(posting, accountNumber, 0, 0, "deposit", amount, null, "Deposit");
+			posting.executeUpdate();
+			return TransactionResult.success(amount, -1);
+		}
+	}
+
+	TransactionResult withdraw(int accountNumber, long amount, String pin, long journalLsn) {
+		if (!isValidAmount(amount)) {
+			return invalidAmount();
+		}
+		String pinGuard;
+		try {
+			pinGuard = credentials.pinGuard(accountNumber, pin);
+		} catch (SQLException e) {
+			return TransactionResult.error(e);
+		}
+		return withdrawGuarded(accountNumber, amount, pinGuard, journalLsn);
+	}
+
+	TransactionResult withdrawGuarded(int accountNumber, long amount, String pinGuard, long journalLsn) {
+		if (!isValidAmount(amount)) {
+			return invalidAmount();
+		}
+		try (Connection connection = pool.getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				if (!markJournalEntry(connection, journalLsn)) {
+					connection.rollback();
+					return alreadyApplied();
+				}
+				TransactionResult result = debit(connection, accountNumber, amount, pinGuard);
+				connection.commit();
+				return result;
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			}
+		} catch (SQLException e) {
+			return TransactionResult.error(e);
+		}
+	}
+
+	// A guarded withdrawal inside the caller's transaction; a refused one changes nothing
+	static TransactionResult debit(Connection connection, int accountNumber, long amount, String pinGuard)
+			throws SQLException {
+		try (PreparedStatement ps = connection.prepareStatement(GUARDED_DEBIT);
+				PreparedStatement posting = connection.prepareStatement(POSTING)) {
+			bindDebit(ps, accountNumber, amount, 1, pinGuard);
+			if (ps.executeUpdate() != 1) {
+				return explainRejected(findAccount(connection, accountNumber), pinGuard, amount);
+			}
+			AccountLedger.bindPosting(posting, accountNumber, 0, 0, "withdraw", -amount, null, "Withdrawal");
+			posting.executeUpdate();
+			return TransactionResult.success(amount, -1);
+		}
+	}
+
+	// Records a journal entry as applied inside the caller's transaction, so the entry and its effect
+	// commit together; returns false if an earlier run already applied it. lsn 0 means no journal.
+	static boolean markJournalEntry(Connection connection, long lsn) throws SQLException {
+		if (lsn == 0) {
+			return true;
+		}
+		try (PreparedStatement ps = connection.prepareStatement(MARK_JOURNAL_ENTRY)) {
+			ps.setLong(1, lsn);
+			ps.executeUpdate();
+			return true;
+		} catch (SQLException e) {
+			if (e.getSQLState() != null && e.getSQLState().startsWith("23")) {
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	// postings is how many ledger postings the caller will write for this debit; pinGuard comes from
+	// Credentials.pinGuard
+	static void bindDebit(PreparedStatement ps, int accountNumber, long amount, int postings, String pinGuard)
+			throws SQLException {
+		ps.setLong(1, amount);
+		ps.setInt(2, postings);
+		ps.setInt(3, accountNumber);
+		ps.setString(4, pinGuard);
+		ps.setLong(5, amount);
+	}
+
+	// Works out which guard rejected a statement from the current row; requiredBalance is 0 for credits
+	static TransactionResult explainRejected(AccountState state, String pinGuard, long requiredBalance) {
+		if (state == null) {
+			return notFound();
+		}
+		if (!state.active) {
+			return inactive();
+		}
+		if (!pinGuard.equals(state.pin)) {
+			Credentials.refresh(state.accountNumber, state.userId, state.pin);
+			return TransactionResult.failure(Status.INVALID_PIN, "Incorrect PIN.");
+		}
+		if (state.balance < requiredBalance) {
+			return TransactionResult.insufficientFunds(state.balance);
+		}
+		// the row changed between the update and this read; let the caller retry
+		return TransactionResult.failure(Status.FAILED, "Transaction failed! Try again.");
+	}
+
+	AccountState findAccount(int accountNumber) throws SQLException {
+		try (Connection connection = pool.getConnection()) {
+			return findAccount(connection, accountNumber);
+		}
+	}
+
+	static AccountState findAccount(Connection connection, int accountNumber) throws SQLException {
+		try (PreparedStatement ps = connection.prepareStatement(ACCOUNT_STATE)) {
+			ps.setInt(1, accountNumber);
+			try (ResultSet rs = ps.executeQuery()) {
+				if (!rs.next()) {
+					return null;
+				}
+				AccountState state = new AccountState();
+				state.accountNumber = rs.getInt("accountnumber");
+				state.userId = rs.getString("userid");
+				state.active = rs.getInt("isActive") == 1;
+				state.pin = rs.getString("transaction_pin");
+				state.balance = rs.getLong("balance");
+				return state;
+			}
+		}
+	}
+
+	static boolean isValidAmount(long amount) {
+		return amount > 0;
+	}
+
+	static TransactionResult invalidAmount() {
+		return TransactionResult.failure(Status.INVALID_AMOUNT, "Amount must be positive!");
+	}
+
+	static TransactionResult sameAccount() {
+		return TransactionResult.failure(Status.SAME_ACCOUNT, "Sender and Receiver accounts must be different!");
+	}
+
+	static TransactionResult alreadyApplied() {
+		return TransactionResult.failure(Status.FAILED, "Journal entry was already applied.");
+	}
+
+	static TransactionResult notFound() {
+		return TransactionResult.failure(Status.ACCOUNT_NOT_FOUND, "Account not found.");
+	}
+
+	static TransactionResult inactive() {
+		return TransactionResult.failure(Status.ACCOUNT_INACTIVE, "Account is inactive. Transaction not allowed.");
+	}
+
+	public static class Profile {
+		private int accountNumber;
+		private String userId;
+		private String name;
+		private String surname;
+		private long balance;
+		private boolean active;
+
+		public int getAccountNumber() {
+			return accountNumber;
+		}
+
+		public String getUserId() {
+			return userId;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getSurname() {
+			return surname;
+		}
+
+		// paise
+		public long getBalance() {
+			return balance;
+		}
+
+		public boolean isActive() {
+			return active;
+		}
+
+		// For stores that keep balances outside account.balance
+		void setBalance(long balance) {
+			this.balance = balance;
+		}
+	}
+
+	// One row of the account table as seen by a single operation
+	static class AccountState {
+		int accountNumber;
+		String userId;
+		boolean active;
+		String pin;
+		long balance;
+	}
+}
@@ -0,0 +1,447 @@
+package com.testlab.model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.testlab.model.TransactionResult.Status;
+
+// Pays many destination accounts from one source account (payroll). All destinations are
+// validated with one set-based query, then each chunk of lines is applied in one transaction:
+// a single guarded debit of the chunk total from the source plus JDBC-batched credits, ledger
+// postings and transaction log rows.
+public class BatchTransferEngine {
+
+	public static final int DEFAULT_CHUNK_SIZE = 500;
+
+	// Keeps the IN (...) list under driver and server placeholder limits
+	private static final int MAX_IN_PARAMETERS = 10_000;
+	private static final String LOG_TRANSFER = "INSERT INTO transaction (type, amount, source_account, destination_account, source_userid, destination_userid, description) VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+	private final ConnectionPool pool;
+	private final Credentials credentials;
+	private final int chunkSize;
+	private final int maxAttempts;
+	// Set once the driver answers a batch with SUCCESS_NO_INFO; credits then go one row at a time
+	private volatile boolean perRowCredits;
+
+	public BatchTransferEngine(ConnectionPool pool) {
+		this(pool, DEFAULT_CHUNK_SIZE);
+	}
+
+	public BatchTransferEngine(ConnectionPool pool, int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+		}
+		this.pool = pool;
+		this.credentials = Credentials.forPool(pool);
+		this.chunkSize = chunkSize;
+		this.maxAttempts = TransferExecutor.DEFAULT_MAX_ATTEMPTS;
+	}
+
+	// Reads "destination,amount,reference" lines, amount in rupees (e.g. 1500.50); blank lines,
+	// '#' comments and a header row are skipped
+	public Report run(int sourceAccount, String pin, Path file) throws IOException {
+		List<Line> lines = new ArrayList<>();
+		List<LineResult> malformed = new ArrayList<>();
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String text;
+			int lineNumber = 0;
+			while ((text = reader.readLine()) != null) {
+				lineNumber++;
+				text = text.trim();
+				if (text.isEmpty() || text.startsWith("#")) {
+					continue;
+				}
+				String[] parts = text.split(",", 3);
+				String reference = parts.length > 2 ? parts[2].trim() : "";
+				try {
+					int destination = Integer.parseInt(parts[0].trim());
+					long amount = Money.parse(parts.length > 1 ? parts[1] : "");
+					lines.add(new Line(lineNumber, destination, amount, reference));
+				} catch (NumberFormatException e) {
+					if (lineNumber == 1) {
+						continue; // header
+					}
+					malformed.add(new LineResult(new Line(lineNumber, 0, 0, reference), Status.FAILED,
+							"Malformed line: " + text));
+				}
+			}
+		}
+		Report report = run(sourceAccount, pin, lines);
+		report.results.addAll(malformed);
+		report.results.sort(Comparator.comparingInt(r -> r.line.lineNumber));
+		return report;
+	}
+
+	public Report run(int sourceAccount, String pin, List<Line> lines) {
+		Report report = new Report();
+		List<Line> accepted = new ArrayList<>();
+		for (Line line : lines) {
+			if (line.amount <= 0) {
+				report.add(line, Status.INVALID_AMOUNT, "Amount must be positive!");
+			} else if (line.destination == sourceAccount) {
+				report.add(line, Status.SAME_ACCOUNT, "Sender and Receiver accounts must be different!");
+			} else {
+				accepted.add(line);
+			}
+		}
+
+		Map<Integer, Destination> destinations;
+		String pinGuard;
+		try {
+			// the PIN is checked once for the whole run, not once per chunk
+			pinGuard = credentials.pinGuard(sourceAccount, pin);
+			Set<Integer> ids = new LinkedHashSet<>();
+			ids.add(sourceAccount);
+			for (Line line : accepted) {
+				ids.add(line.destination);
+			}
+			destinations = loadAccounts(ids);
+		} catch (SQLException e) {
+			for (Line line : accepted) {
+				report.add(line, Status.FAILED, "Transaction failed: " + e.getMessage());
+			}
+			report.results.sort(Comparator.comparingInt(r -> r.line.lineNumber));
+			return report;
+		}
+		Destination source = destinations.get(sourceAccount);
+		String sourceUserId = source == null ? null : source.userId;
+
+		List<Line> payable = new ArrayList<>();
+		for (Line line : accepted) {
+			Destination destination = destinations.get(line.destination);
+			if (destination == null) {
+				report.add(line, Status.RECEIVER_NOT_FOUND, "Receiver account not found!");
+			} else if (!destination.active) {
+				report.add(line, Status.RECEIVER_INACTIVE, "Receiver account is inactive. Transaction not allowed.");
+			} else {
+				payable.add(line);
+			}
+		}
+
+		for (int from = 0; from < payable.size(); from += chunkSize) {
+			List<Line> chunk = payable.subList(from, Math.min(payable.size(), from + chunkSize));
+			applyChunk(sourceAccount, sourceUserId, pinGuard, chunk, destinations, report);
+		}
+		report.results.sort(Comparator.comparingInt(r -> r.line.lineNumber));
+		return report;
+	}
+
+	private void applyChunk(int sourceAccount, String sourceUserId, String pinGuard, List<Line> chunk,
+			Map<Integer, Destination> destinations, Report report) {
+		// Credits in account number order keep concurrent batches from deadlocking each other
+		List<Line> ordered = new ArrayList<>(chunk);
+		ordered.sort(Comparator.comparingInt(l -> l.destination));
+		long total = 0;
+		for (Line line : ordered) {
+			total += line.amount;
+		}
+
+		for (int attempt = 1;; attempt++) {
+			try {
+				TransactionResult rejected = applyChunkOnce(sourceAccount, sourceUserId, pinGuard, ordered, total,
+						destinations);
+				if (rejected == null) {
+					for (Line line : chunk) {
+						report.add(line, Status.SUCCESS, "OK");
+					}
+					report.totalPaid += total;
+				} else {
+					for (Line line : chunk) {
+						report.add(line, rejected.getStatus(), rejected.getMessage());
+					}
+				}
+				return;
+			} catch (CountsUnknownException e) {
+				attempt--; // rolled back before anything was decided; replay per row
+			} catch (SQLException e) {
+				if (attempt >= maxAttempts || !TransferExecutor.isRetryable(e) || !pause(attempt)) {
+					for (Line line : chunk) {
+						report.add(line, Status.FAILED, "Transaction failed: " + e.getMessage());
+					}
+					return;
+				}
+			}
+		}
+	}
+
+	private static boolean pause(int attempt) {
+		try {
+			Thread.sleep(ThreadLocalRandom.current().nextLong(10L << Math.min(attempt, 5)));
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	// Returns null when the chunk committed, or the reason the source debit was refused. Rows are
+	// locked lowest account number first, as TransferExecutor does: credits to accounts below the
+	// source, then the source debit, then the remaining credits.
+	private TransactionResult applyChunkOnce(int sourceAccount, String sourceUserId, String pinGuard, List<Line> ordered,
+			long total, Map<Integer, Destination> destinations) throws SQLException {
+		int split = 0;
+		while (split < ordered.size() && ordered.get(split).destination < sourceAccount) {
+			split++;
+		}
+		try (Connection connection = pool.getConnection()) {
+			connection.setAutoCommit(false);
+			try (PreparedStatement debit = connection.prepareStatement(BankService.GUARDED_DEBIT);
+					PreparedStatement credit = connection.prepareStatement(BankService.CREDIT_ACTIVE);
+					PreparedStatement posting = connection.prepareStatement(BankService.POSTING);
+					PreparedStatement log = connection.prepareStatement(LOG_TRANSFER)) {
+				if (!credit(credit, ordered.subList(0, split))) {
+					connection.rollback();
+					return receiverInactive();
+				}
+				BankService.bindDebit(debit, sourceAccount, total, ordered.size(), pinGuard);
+				if (debit.executeUpdate() != 1) {
+					connection.rollback();
+					return BankService.explainRejected(BankService.findAccount(connection, sourceAccount), pinGuard,
+							total);
+				}
+				if (!credit(credit, ordered.subList(split, ordered.size()))) {
+					connection.rollback();
+					return receiverInactive();
+				}
+				for (Line line : ordered) {
+					log.setString(1, "transfer");
+					log.setLong(2, line.amount);
+					log.setInt(3, sourceAccount);
+					log.setInt(4, line.destination);
+					log.setString(5, sourceUserId);
+					log.setString(6, destinations.get(line.destination).userId);
+					log.setString(7, line.reference);
+					log.addBatch();
+				}
+				addPostings(posting, sourceAccount, ordered);
+				posting.executeBatch();
+				log.executeBatch();
+				connection.commit();
+				return null;
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			}
+		}
+	}
+
+	// Credits each line to an active account; false when one of them no longer is (deactivated after
+	// validation), so the chunk is refused rather than losing money. SUCCESS_NO_INFO does not say
+	// whether the row was credited, so it is treated as unknown: the caller rolls back and the chunk
+	// is replayed with one executeUpdate per row.
+	private boolean credit(PreparedStatement credit, List<Line> lines) throws SQLException {
+		if (lines.isEmpty()) {
+			return true;
+		}
+		if (perRowCredits) {
+			for (Line line : lines) {
+				bindCredit(credit, line);
+				if (credit.executeUpdate() != 1) {
+					return false;
+				}
+			}
+			return true;
+		}
+		for (Line line : lines) {
+			bindCredit(credit, line);
+			credit.addBatch();
+		}
+		boolean known = true;
+		for (int count : credit.executeBatch()) {
+			if (count == PreparedStatement.SUCCESS_NO_INFO) {
+				known = false;
+			} else if (count != 1) {
+				return false;
+			}
+		}
+		if (!known) {
+			perRowCredits = true;
+			throw new CountsUnknownException();
+		}
+		return true;
+	}
+
+	private static void bindCredit(PreparedStatement credit, Line line) throws SQLException {
+		credit.setLong(1, line.amount);
+		credit.setInt(2, 1);
+		credit.setInt(3, line.destination);
+	}
+
+	private static TransactionResult receiverInactive() {
+		return TransactionResult.failure(Status.RECEIVER_INACTIVE,
+				"A receiver in this chunk became inactive. Chunk not applied.");
+	}
+
+	private static class CountsUnknownException extends SQLException {
+		private static final long serialVersionUID = 1L;
+
+		CountsUnknownException() {
+			super("Driver did not report per-statement update counts");
+		}
+	}
+
+	// The updates already moved each account's balance and posting_seq past all of its lines in the
+	// chunk, so walk the lines backwards and step back from those final values
+	private static void addPostings(PreparedStatement posting, int sourceAccount, List<Line> ordered)
+			throws SQLException {
+		int sourceSeqBack = 0;
+		long sourceBalanceBack = 0;
+		Map<Integer, long[]> destinationBack = new HashMap<>(); // seqBack, balanceBack
+		for (int i = ordered.size() - 1; i >= 0; i--) {
+			Line line = ordered.get(i);
+			String description = line.reference.isEmpty() ? "Batch transfer" : line.reference;
+			AccountLedger.bindPosting(posting, sourceAccount, sourceSeqBack++, sourceBalanceBack, "transfer",
+					-line.amount, line.destination, description);
+			posting.addBatch();
+			sourceBalanceBack -= line.amount;
+
+			long[] back = destinationBack.computeIfAbsent(line.destination, d -> new long[2]);
+			AccountLedger.bindPosting(posting, line.destination, (int) back[0]++, back[1], "transfer", line.amount,
+					sourceAccount, description);
+			posting.addBatch();
+			back[1] += line.amount;
+		}
+	}
+
+	private Map<Integer, Destination> loadAccounts(Set<Integer> ids) throws SQLException {
+		Map<Integer, Destination> found = new HashMap<>();
+		List<Integer> all = new ArrayList<>(ids);
+		try (Connection connection = pool.getConnection()) {
+			for (int from = 0; from < all.size(); from += MAX_IN_PARAMETERS) {
+				List<Integer> slice = all.subList(from, Math.min(all.size(), from + MAX_IN_PARAMETERS));
+				String sql = "SELECT accountnumber, userid, isActive FROM account WHERE accountnumber IN ("
+						+ String.join(", ", Collections.nCopies(slice.size(), "?")) + ")";
+				// built per size, so it bypasses the statement cache on purpose
+				try (PreparedStatement ps = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+						ResultSet.CONCUR_READ_ONLY)) {
+					for (int i = 0; i < slice.size(); i++) {
+						ps.setInt(i + 1, slice.get(i));
+					}
+					try (ResultSet rs = ps.executeQuery()) {
+						while (rs.next()) {
+							Destination d = new Destination();
+							d.userId = rs.getString("userid");
+							d.active = rs.getInt("isActive") == 1;
+							found.put(rs.getInt("accountnumber"), d);
+						}
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	private static class Destination {
+		String userId;
+		boolean active;
+	}
+
+	public static class Line {
+		private final int lineNumber;
+		private final int destination;
+		private final long amount;
+		private final String reference;
+
+		public Line(int lineNumber, int destination, long amount, String reference) {
+			this.lineNumber = lineNumber;
+			this.destination = destination;
+			this.amount = amount;
+			this.reference = reference;
+		}
+
+		public int getLineNumber() {
+			return lineNumber;
+		}
+
+		public int getDestination() {
+			return destination;
+		}
+
+		// paise
+		public long getAmount() {
+			return amount;
+		}
+
+		public String getReference() {
+			return reference;
+		}
+	}
+
+	public static class LineResult {
+		private final Line line;
+		private final Status status;
+		private final String message;
+
+		LineResult(Line line, Status status, String message) {
+			this.line = line;
+			this.status = status;
+			this.message = message;
+		}
+
+		public Line getLine() {
+			return line;
+		}
+
+		public Status getStatus() {
+			return status;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			return line.lineNumber + "," + line.destination + "," + Money.format(line.amount) + "," + status + ","
+					+ message;
+		}
+	}
+
+	public static class Report {
+		private final List<LineResult> results = new ArrayList<>();
+		private long totalPaid;
+
+		void add(Line line, Status status, String message) {
+			results.add(new LineResult(line, status, message));
+		}
+
+		public List<LineResult> getResults() {
+			return results;
+		}
+
+		public long getSucceeded() {
+			return results.stream().filter(r -> r.status == Status.SUCCESS).count();
+		}
+
+		public long getFailed() {
+			return results.size() - getSucceeded();
+		}
+
+		public long getTotalPaid() {
+			return totalPaid;
+		}
+
+		@Override
+		public String toString() {
+			return "Batch transfer: " + getSucceeded() + " paid, " + getFailed() + " rejected, total "
+					+ Money.format(totalPaid) + " ₹.";
+		}
+	}
+}
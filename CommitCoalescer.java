@@ -0,0 +1,382 @@
+package com.testlab.model;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.testlab.model.TransactionResult.Status;
+
+// Group commit for deposits and withdrawals. Operations arriving within windowMicros of each other
+// (or until maxBatch are waiting) are applied by one thread in a single transaction: one JDBC batch
+// of guarded balance updates, one batch of ledger postings, one commit. Each update keeps its own
+// guard, so a wrong PIN or short balance only rejects that operation; the rest of the batch still
+// commits. If the batch itself fails (deadlock, constraint) it is retried, then applied one
+// operation per transaction so a bad operation cannot fail its neighbours.
+public class CommitCoalescer implements AutoCloseable {
+
+	public static final int DEFAULT_MAX_BATCH = 64;
+	public static final long DEFAULT_WINDOW_MICROS = 1_000;
+
+	// Deposits and withdrawals share one statement (signed amount) so the batch runs them in arrival
+	// order; the balance guard is always true for deposits
+	private static final String SIGNED_UPDATE = "UPDATE account SET balance = balance + ?, posting_seq = posting_seq + 1 "
+			+ "WHERE accountnumber = ? AND isActive = 1 AND transaction_pin = ? AND balance + ? >= 0";
+
+	private static final Map<ConnectionPool, CommitCoalescer> COALESCERS = new ConcurrentHashMap<>();
+
+	private final ConnectionPool pool;
+	private final BankService single;
+	private final AccountIdentityCache identities;
+	private final Credentials credentials;
+	private final int maxBatch;
+	private final long windowNanos;
+	private final int maxAttempts = TransferExecutor.DEFAULT_MAX_ATTEMPTS;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition ready = lock.newCondition();
+	// Guarded by lock
+	private List<Operation> waiting = new ArrayList<>();
+	private long oldestNanos;
+	private boolean closed;
+
+	private final Thread committer;
+
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder operations = new LongAdder();
+	private final LongAdder fullBatches = new LongAdder();
+	private final LongAdder fallbackBatches = new LongAdder();
+	private volatile int largestBatch;
+
+	public CommitCoalescer(ConnectionPool pool, int maxBatch, long windowMicros) {
+		if (maxBatch <= 0) {
+			throw new IllegalArgumentException("Batch size must be positive: " + maxBatch);
+		}
+		this.pool = pool;
+		this.single = new BankService(pool);
+		this.identities = AccountIdentityCache.forPool(pool);
+		this.credentials = Credentials.forPool(pool);
+		this.maxBatch = maxBatch;
+		this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+		committer = new Thread(this::commitLoop, "commit-coalescer");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	// Makes BankService route deposits and withdrawals on this pool through a coalescer sized by
+	// -Dbank.coalesce.batchSize and -Dbank.coalesce.windowMicros
+	public static CommitCoalescer start(ConnectionPool pool) {
+		return COALESCERS.computeIfAbsent(pool,
+				p -> new CommitCoalescer(p, Integer.getInteger("bank.coalesce.batchSize", DEFAULT_MAX_BATCH),
+						Long.getLong("bank.coalesce.windowMicros", DEFAULT_WINDOW_MICROS)));
+	}
+
+	// The coalescer for this pool, or null when coalescing is off
+	public static CommitCoalescer forPool(ConnectionPool pool) {
+		return COALESCERS.get(pool);
+	}
+
+	public CompletableFuture<TransactionResult> deposit(int accountNumber, long amount, String pin) {
+		return submit(accountNumber, amount, amount, pin);
+	}
+
+	public CompletableFuture<TransactionResult> deposit(String userId, long amount, String pin) {
+		return submit(userId, amount, amount, pin);
+	}
+
+	public CompletableFuture<TransactionResult> withdraw(int accountNumber, long amount, String pin) {
+		return submit(accountNumber, amount, -amount, pin);
+	}
+
+	public CompletableFuture<TransactionResult> withdraw(String userId, long amount, String pin) {
+		return submit(userId, amount, -amount, pin);
+	}
+
+	public long getBatches() {
+		return batches.sum();
+	}
+
+	public long getOperations() {
+		return operations.sum();
+	}
+
+	// Batches that closed because they reached maxBatch rather than because the window ran out
+	public long getFullBatches() {
+		return fullBatches.sum();
+	}
+
+	// Batches that failed as a whole and were applied one operation at a time
+	public long getFallbackBatches() {
+		return fallbackBatches.sum();
+	}
+
+	public int getLargestBatch() {
+		return largestBatch;
+	}
+
+	public double getAverageFill() {
+		long count = batches.sum();
+		return count == 0 ? 0 : (double) operations.sum() / count;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Commit coalescer: %d operations in %d batches (avg %.1f, max %d, %d full, %d fallback)",
+				getOperations(), getBatches(), getAverageFill(), largestBatch, getFullBatches(), getFallbackBatches());
+	}
+
+	// Commits whatever is waiting, then stops the committer thread
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			ready.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			committer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		COALESCERS.remove(pool, this);
+	}
+
+	private CompletableFuture<TransactionResult> submit(Object account, long amount, long delta, String pin) {
+		if (!BankService.isValidAmount(amount)) {
+			return CompletableFuture.completedFuture(BankService.invalidAmount());
+		}
+		int accountNumber;
+		String pinGuard;
+		try {
+			if (account instanceof String) {
+				// batches are keyed by account number so postings for one account can be sequenced
+				AccountIdentityCache.Identity identity = identities.get((String) account);
+				if (identity == null) {
+					return CompletableFuture.completedFuture(BankService.notFound());
+				}
+				accountNumber = identity.getAccountNumber();
+			} else {
+				accountNumber = (Integer) account;
+			}
+			// checked on the caller's thread, so slow hashes never stall the committer
+			pinGuard = credentials.pinGuard(accountNumber, pin);
+		} catch (SQLException e) {
+			return CompletableFuture.completedFuture(TransactionResult.error(e));
+		}
+		Operation op = new Operation(accountNumber, amount, delta, pin, pinGuard);
+		lock.lock();
+		try {
+			if (closed) {
+				return CompletableFuture.completedFuture(
+						TransactionResult.failure(Status.FAILED, "Commit coalescer is closed."));
+			}
+			waiting.add(op);
+			if (waiting.size() == 1) {
+				oldestNanos = System.nanoTime();
+				ready.signal();
+			} else if (waiting.size() >= maxBatch) {
+				ready.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return op.result;
+	}
+
+	private void commitLoop() {
+		while (true) {
+			List<Operation> batch;
+			boolean full;
+			lock.lock();
+			try {
+				while (!closed && !batchDue()) {
+					if (waiting.isEmpty()) {
+						ready.awaitUninterruptibly();
+					} else {
+						try {
+							ready.awaitNanos(windowNanos - (System.nanoTime() - oldestNanos));
+						} catch (InterruptedException e) {
+							// only close() stops the committer
+						}
+					}
+				}
+				if (waiting.isEmpty()) {
+					return; // closed and drained
+				}
+				if (waiting.size() > maxBatch) {
+					batch = new ArrayList<>(waiting.subList(0, maxBatch));
+					waiting.subList(0, maxBatch).clear();
+					oldestNanos = System.nanoTime();
+				} else {
+					batch = waiting;
+					waiting = new ArrayList<>();
+				}
+				full = batch.size() == maxBatch;
+			} finally {
+				lock.unlock();
+			}
+			batches.increment();
+			operations.add(batch.size());
+			if (full) {
+				fullBatches.increment();
+			}
+			if (batch.size() > largestBatch) {
+				largestBatch = batch.size();
+			}
+			// This is the only committer: whatever goes wrong with one batch must not stop it, or that
+			// batch and every later caller would wait forever
+			try {
+				apply(batch);
+			} catch (Throwable t) {
+				System.out.println("Commit coalescer: batch of " + batch.size() + " failed: " + t);
+				for (Operation op : batch) {
+					op.result.completeExceptionally(t);
+				}
+			}
+		}
+	}
+
+	private boolean batchDue() {
+		return waiting.size() >= maxBatch
+				|| (!waiting.isEmpty() && System.nanoTime() - oldestNanos >= windowNanos);
+	}
+
+	private void apply(List<Operation> batch) {
+		// Account number order keeps the batch from deadlocking with transfers; the sort is stable,
+		// so operations on one account keep their arrival order
+		List<Operation> ordered = new ArrayList<>(batch);
+		ordered.sort(Comparator.comparingInt(op -> op.accountNumber));
+		for (int attempt = 1;; attempt++) {
+			try {
+				applyOnce(ordered);
+				return;
+			} catch (SQLException e) {
+				if (attempt >= maxAttempts || !TransferExecutor.isRetryable(e) || !pause(attempt)) {
+					System.out.println("Commit coalescer: batch of " + ordered.size()
+							+ " failed, applying one at a time: " + e.getMessage());
+					fallbackBatches.increment();
+					for (Operation op : ordered) {
+						op.result.complete(op.delta > 0
+								? single.deposit(op.accountNumber, op.amount, op.pin, 0)
+								: single.withdraw(op.accountNumber, op.amount, op.pin, 0));
+					}
+					return;
+				}
+			}
+		}
+	}
+
+	private static boolean pause(int attempt) {
+		try {
+			Thread.sleep(ThreadLocalRandom.current().nextLong(10L << Math.min(attempt, 5)));
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	// Completes every operation in the batch, or throws with none of them completed
+	private void applyOnce(List<Operation> ordered) throws SQLException {
+		boolean[] applied = new boolean[ordered.size()];
+		try (Connection connection = pool.getConnection()) {
+			connection.setAutoCommit(false);
+			try (PreparedStatement update = connection.prepareStatement(SIGNED_UPDATE);
+					PreparedStatement posting = connection.prepareStatement(BankService.POSTING)) {
+				for (Operation op : ordered) {
+					update.setLong(1, op.delta);
+					update.setInt(2, op.accountNumber);
+					update.setString(3, op.pinGuard);
+					update.setLong(4, op.delta);
+					update.addBatch();
+				}
+				int[] counts = update.executeBatch();
+				boolean anyApplied = false;
+				for (int i = 0; i < counts.length; i++) {
+					if (counts[i] == PreparedStatement.SUCCESS_NO_INFO) {
+						// cannot tell which guards passed, so cannot post or report correctly
+						throw new SQLException("Driver did not report per-statement update counts");
+					}
+					applied[i] = counts[i] == 1;
+					anyApplied |= applied[i];
+				}
+				if (anyApplied) {
+					addPostings(posting, ordered, applied);
+					posting.executeBatch();
+				}
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			}
+
+			connection.setAutoCommit(true);
+			for (int i = 0; i < ordered.size(); i++) {
+				Operation op = ordered.get(i);
+				if (applied[i]) {
+					op.result.complete(TransactionResult.success(op.amount, -1));
+				} else {
+					TransactionResult rejected;
+					try {
+						rejected = BankService.explainRejected(BankService.findAccount(connection, op.accountNumber),
+								op.pinGuard, op.delta > 0 ? 0 : op.amount);
+					} catch (SQLException e) {
+						rejected = TransactionResult.error(e);
+					}
+					op.result.complete(rejected);
+				}
+			}
+		}
+	}
+
+	// Each account's balance and posting_seq are already past all of its applied operations, so walk
+	// the batch backwards and step back from those final values (as BatchTransferEngine does)
+	private static void addPostings(PreparedStatement posting, List<Operation> ordered, boolean[] applied)
+			throws SQLException {
+		Map<Integer, long[]> back = new HashMap<>(); // seqBack, balanceBack
+		for (int i = ordered.size() - 1; i >= 0; i--) {
+			if (!applied[i]) {
+				continue;
+			}
+			Operation op = ordered.get(i);
+			long[] b = back.computeIfAbsent(op.accountNumber, a -> new long[2]);
+			boolean deposit = op.delta > 0;
+			AccountLedger.bindPosting(posting, op.accountNumber, (int) b[0]++, b[1], deposit ? "deposit" : "withdraw",
+					op.delta, null, deposit ? "Deposit" : "Withdrawal");
+			posting.addBatch();
+			b[1] += op.delta;
+		}
+	}
+
+	private static class Operation {
+		final int accountNumber;
+		final long amount;
+		// +amount for deposits, -amount for withdrawals
+		final long delta;
+		// the PIN as given, for the one-at-a-time fallback
+		final String pin;
+		final String pinGuard;
+		final CompletableFuture<TransactionResult> result = new CompletableFuture<>();
+
+		Operation(int accountNumber, long amount, long delta, String pin, String pinGuard) {
+			this.accountNumber = accountNumber;
+			this.amount = amount;
+			this.delta = delta;
+			this.pin = pin;
+			this.pinGuard = pinGuard;
+		}
+	}
+}
@@ -0,0 +1,347 @@
+package com.testlab.model;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded JDBC connection pool. Callers borrow a connection per operation with
+// getConnection() and give it back by closing it (try-with-resources).
+public class ConnectionPool implements AutoCloseable {
+
+	public static final int DEFAULT_MAX_SIZE = 20;
+	public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 30_000;
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 600_000;
+	public static final long DEFAULT_LEAK_THRESHOLD_MILLIS = 60_000;
+
+	// Connections idle for less than this are handed out without an isValid() round trip
+	private static final long VALIDATION_BYPASS_MILLIS = 500;
+	private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+	private final String url;
+	private final String user;
+	private final String password;
+	private final int maxSize;
+	private final long borrowTimeoutMillis;
+	private final long idleTimeoutMillis;
+	private final long leakThresholdMillis;
+	private final int statementCacheSize;
+
+	private final Semaphore permits;
+	private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+	private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+	private final ScheduledExecutorService housekeeper;
+	private volatile boolean closed;
+
+	private final LongAdder borrows = new LongAdder();
+	private final LongAdder borrowTimeouts = new LongAdder();
+	private final LongAdder totalWaitNanos = new LongAdder();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final LongAdder created = new LongAdder();
+	private final LongAdder evicted = new LongAdder();
+
+	public ConnectionPool(String url, String user, String password) {
+		this(url, user, password, DEFAULT_MAX_SIZE, DEFAULT_BORROW_TIMEOUT_MILLIS, DEFAULT_IDLE_TIMEOUT_MILLIS,
+				DEFAULT_LEAK_THRESHOLD_MILLIS);
+	}
+
+	public ConnectionPool(String url, String user, String password, int maxSize, long borrowTimeoutMillis,
+			long idleTimeoutMillis, long leakThresholdMillis) {
+		this(url, user, password, maxSize, borrowTimeoutMillis, idleTimeoutMillis, leakThresholdMillis,
+				StatementCache.DEFAULT_SIZE);
+	}
+
+	public ConnectionPool(String url, String user, String password, int maxSize, long borrowTimeoutMillis,
+			long idleTimeoutMillis, long leakThresholdMillis, int statementCacheSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("Pool size must be positive: " + maxSize);
+		}
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.maxSize = maxSize;
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.leakThresholdMillis = leakThresholdMillis;
+		this.statementCacheSize = statementCacheSize;
+		this.permits = new Semaphore(maxSize, true);
+		this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "connection-pool-housekeeper");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1_000, Math.min(idleTimeoutMillis, 30_000));
+		housekeeper.scheduleWithFixedDelay(this::housekeep, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	// Borrows a connection, waiting up to the borrow timeout for one to become free.
+	// Closing the returned connection hands it back to the pool.
+	public Connection getConnection() throws SQLException {
+		if (closed) {
+			throw new SQLException("Connection pool is closed");
+		}
+		long start = System.nanoTime();
+		try {
+			if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				borrowTimeouts.increment();
+				throw new SQLTransientConnectionException("Timed out after " + borrowTimeoutMillis
+						+ " ms waiting for a database connection (" + maxSize + " in use)");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database connection", e);
+		}
+
+		try {
+			PooledConnection pooled;
+			while ((pooled = idle.pollFirst()) != null) {
+				if (isUsable(pooled)) {
+					break;
+				}
+				pooled.closePhysical();
+				evicted.increment();
+			}
+			if (pooled == null) {
+				pooled = new PooledConnection(DriverManager.getConnection(url, user, password));
+				created.increment();
+			}
+			recordWait(System.nanoTime() - start);
+			pooled.borrowedAt = System.currentTimeMillis();
+			pooled.borrowSite = leakThresholdMillis > 0 ? new Throwable("Connection borrowed here") : null;
+			pooled.leakReported = false;
+			borrowed.add(pooled);
+			return pooled.newHandle();
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	private boolean isUsable(PooledConnection pooled) {
+		if (System.currentTimeMillis() - pooled.lastReturned < VALIDATION_BYPASS_MILLIS) {
+			return true;
+		}
+		try {
+			return pooled.physical.isValid(VALIDATION_TIMEOUT_SECONDS);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private void recordWait(long waitNanos) {
+		borrows.increment();
+		totalWaitNanos.add(waitNanos);
+		maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+	}
+
+	// Resets per-borrow state and puts the connection back on the idle stack
+	private void release(PooledConnection pooled) {
+		borrowed.remove(pooled);
+		pooled.statements.reclaimAll();
+		try {
+			if (!pooled.broken && !pooled.physical.getAutoCommit()) {
+				pooled.physical.rollback();
+				pooled.physical.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			pooled.broken = true;
+		}
+		if (closed || pooled.broken) {
+			pooled.closePhysical();
+			evicted.increment();
+		} else {
+			pooled.lastReturned = System.currentTimeMillis();
+			idle.offerFirst(pooled);
+		}
+		permits.release();
+	}
+
+	private void housekeep() {
+		long now = System.currentTimeMillis();
+		for (PooledConnection pooled : idle) {
+			if (now - pooled.lastReturned > idleTimeoutMillis && idle.remove(pooled)) {
+				pooled.closePhysical();
+				evicted.increment();
+			}
+		}
+		if (leakThresholdMillis > 0) {
+			for (PooledConnection pooled : borrowed) {
+				if (!pooled.leakReported && now - pooled.borrowedAt > leakThresholdMillis) {
+					pooled.leakReported = true;
+					System.out.println("Possible connection leak: connection held for " + (now - pooled.borrowedAt)
+							+ " ms on thread " + pooled.borrowThread);
+					if (pooled.borrowSite != null) {
+						pooled.borrowSite.printStackTrace(System.out);
+					}
+				}
+			}
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int getActiveConnections() {
+		return borrowed.size();
+	}
+
+	public int getIdleConnections() {
+		return idle.size();
+	}
+
+	// Fraction of the pool currently borrowed, 0.0 - 1.0
+	public double getUtilisation() {
+		return (double) getActiveConnections() / maxSize;
+	}
+
+	public int getThreadsAwaitingConnection() {
+		return permits.getQueueLength();
+	}
+
+	public long getTotalBorrows() {
+		return borrows.sum();
+	}
+
+	public long getBorrowTimeouts() {
+		return borrowTimeouts.sum();
+	}
+
+	public double getAverageWaitMillis() {
+		long count = borrows.sum();
+		return count == 0 ? 0 : totalWaitNanos.sum() / (count * 1_000_000.0);
+	}
+
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1_000_000.0;
+	}
+
+	public long getConnectionsCreated() {
+		return created.sum();
+	}
+
+	public long getConnectionsEvicted() {
+		return evicted.sum();
+	}
+
+	public String getStats() {
+		return String.format("active=%d idle=%d max=%d utilisation=%.0f%% waiting=%d borrows=%d timeouts=%d "
+				+ "avgWait=%.3fms maxWait=%.3fms created=%d evicted=%d statements[%s]", getActiveConnections(),
+				getIdleConnections(), maxSize, getUtilisation() * 100, getThreadsAwaitingConnection(),
+				getTotalBorrows(), getBorrowTimeouts(), getAverageWaitMillis(), getMaxWaitMillis(),
+				getConnectionsCreated(), getConnectionsEvicted(), StatementCache.getStats());
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		housekeeper.shutdownNow();
+		PooledConnection pooled;
+		while ((pooled = idle.pollFirst()) != null) {
+			pooled.closePhysical();
+		}
+	}
+
+	// A physical connection owned by the pool
+	private final class PooledConnection {
+		private final Connection physical;
+		private final StatementCache statements;
+		private volatile long lastReturned = System.currentTimeMillis();
+		private volatile long borrowedAt;
+		private volatile Throwable borrowSite;
+		private volatile String borrowThread;
+		private volatile boolean leakReported;
+		private volatile boolean broken;
+
+		PooledConnection(Connection physical) {
+			this.physical = physical;
+			this.statements = new StatementCache(physical, statementCacheSize, this::failed);
+		}
+
+		// Called with every SQLException from the connection or its statements. SQLState class 08 is a
+		// connection failure; don't hand this one out again
+		void failed(SQLException e) {
+			String state = e.getSQLState();
+			if (state != null && state.startsWith("08")) {
+				broken = true;
+			}
+		}
+
+		// Each borrow gets its own handle so a stale reference cannot close someone else's borrow
+		Connection newHandle() {
+			borrowThread = Thread.currentThread().getName();
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new Handle(this));
+		}
+
+		void closePhysical() {
+			statements.closeAll();
+			try {
+				physical.close();
+			} catch (SQLException e) {
+				// already unusable
+			}
+		}
+	}
+
+	private final class Handle implements InvocationHandler {
+		private final PooledConnection pooled;
+		private boolean returned;
+
+		Handle(PooledConnection pooled) {
+			this.pooled = pooled;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+			case "close":
+				if (!returned) {
+					returned = true;
+					release(pooled);
+				}
+				return null;
+			case "isClosed":
+				return returned || pooled.physical.isClosed();
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return "PooledConnection[" + pooled.physical + "]";
+			default:
+				break;
+			}
+			if (returned) {
+				throw new SQLException("Connection has already been returned to the pool");
+			}
+			try {
+				// Plain prepareStatement(sql) is served from the per-connection statement cache
+				if (method.getName().equals("prepareStatement") && args.length == 1) {
+					return pooled.statements.prepare((String) args[0], (Connection) proxy);
+				}
+				Object result = OperationMetrics.invoke(method, pooled.physical, args);
+				if (result instanceof Statement) {
+					return OperationMetrics.counting((Statement) result, method.getReturnType(), pooled::failed);
+				}
+				return result;
+			} catch (SQLException e) {
+				pooled.failed(e);
+				throw e;
+			}
+		}
+	}
+}
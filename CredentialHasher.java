@@ -0,0 +1,195 @@
+package com.testlab.model;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// Slow salted hashing (PBKDF2-HMAC-SHA256) for passwords and transaction PINs, stored as
+//
+//   pbkdf2-sha256$<iterations>$<salt>$<hash>
+//
+// Every hash and verification runs on one small, bounded pool (-Dbank.hash.threads, default a
+// quarter of the cores; -Dbank.hash.queue waiting), so a burst of logins cannot take the CPUs that
+// serve transactions. Work beyond the queue is shed with an SQLTransientException, which the existing
+// SQLException handling reports as a failed attempt. Values without the prefix are legacy plaintext:
+// they still verify, and needsRehash tells callers to replace them.
+public class CredentialHasher {
+
+	public static final int DEFAULT_ITERATIONS = 310_000;
+	public static final int DEFAULT_QUEUE_CAPACITY = 32;
+
+	private static final String PREFIX = "pbkdf2-sha256$";
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+	private static final int SALT_BYTES = 16;
+	private static final int HASH_BITS = 256;
+
+	private static final CredentialHasher INSTANCE = new CredentialHasher(
+			Integer.getInteger("bank.hash.iterations", DEFAULT_ITERATIONS),
+			Integer.getInteger("bank.hash.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 4)),
+			Integer.getInteger("bank.hash.queue", DEFAULT_QUEUE_CAPACITY));
+
+	private final int iterations;
+	private final ThreadPoolExecutor executor;
+	private final SecureRandom random = new SecureRandom();
+
+	private final LongAdder hashed = new LongAdder();
+	private final LongAdder verified = new LongAdder();
+	private final LongAdder shed = new LongAdder();
+
+	public CredentialHasher(int iterations, int threads, int queueCapacity) {
+		if (iterations <= 0 || threads <= 0 || queueCapacity <= 0) {
+			throw new IllegalArgumentException("Iterations, threads and queue capacity must be positive");
+		}
+		this.iterations = iterations;
+		AtomicInteger count = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), r -> {
+					Thread t = new Thread(r, "credential-hasher-" + count.incrementAndGet());
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}, new ThreadPoolExecutor.AbortPolicy());
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	public static CredentialHasher get() {
+		return INSTANCE;
+	}
+
+	// The value to store for a new password or PIN
+	public String hash(String secret) throws SQLException {
+		return run(() -> {
+			byte[] salt = new byte[SALT_BYTES];
+			random.nextBytes(salt);
+			hashed.increment();
+			return PREFIX + iterations + "$" + encode(salt) + "$" + encode(pbkdf2(secret, salt, iterations));
+		});
+	}
+
+	// Whether secret matches a stored value (hashed or legacy plaintext); null never matches
+	public boolean verify(String secret, String stored) throws SQLException {
+		if (secret == null || stored == null) {
+			return false;
+		}
+		if (!stored.startsWith(PREFIX)) {
+			return constantTimeEquals(secret, stored);
+		}
+		// A damaged stored value (bad Base64, bad iteration count, empty salt) simply does not match
+		String[] parts = stored.split("\\$");
+		if (parts.length != 4) {
+			return false;
+		}
+		byte[] salt;
+		byte[] expected;
+		int storedIterations;
+		try {
+			Base64.Decoder decoder = Base64.getDecoder();
+			salt = decoder.decode(parts[2]);
+			expected = decoder.decode(parts[3]);
+			storedIterations = Integer.parseInt(parts[1]);
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		if (salt.length == 0 || expected.length == 0 || storedIterations <= 0) {
+			return false;
+		}
+		return run(() -> {
+			verified.increment();
+			return MessageDigest.isEqual(expected, pbkdf2(secret, salt, storedIterations));
+		});
+	}
+
+	// True for plaintext values and hashes made with fewer iterations than currently configured
+	public boolean needsRehash(String stored) {
+		if (stored == null || !stored.startsWith(PREFIX)) {
+			return true;
+		}
+		int end = stored.indexOf('$', PREFIX.length());
+		try {
+			return end < 0 || Integer.parseInt(stored.substring(PREFIX.length(), end)) < iterations;
+		} catch (NumberFormatException e) {
+			return true;
+		}
+	}
+
+	public int getIterations() {
+		return iterations;
+	}
+
+	public long getHashed() {
+		return hashed.sum();
+	}
+
+	public long getVerified() {
+		return verified.sum();
+	}
+
+	// Requests refused because the hashing queue was full
+	public long getShed() {
+		return shed.sum();
+	}
+
+	public int getQueued() {
+		return executor.getQueue().size();
+	}
+
+	// For hashers made for one job (see AccountImporter); the shared instance lives as long as the JVM
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private <T> T run(Callable<T> task) throws SQLException {
+		Future<T> future;
+		try {
+			future = executor.submit(task);
+		} catch (RejectedExecutionException e) {
+			shed.increment();
+			throw new SQLTransientException("Too many credential checks in progress. Try again shortly.");
+		}
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new SQLTransientException("Interrupted while checking credentials", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Credential hashing failed", e.getCause());
+		}
+	}
+
+	private static byte[] pbkdf2(String secret, byte[] salt, int iterations) {
+		PBEKeySpec spec = new PBEKeySpec(secret.toCharArray(), salt, iterations, HASH_BITS);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		} catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+			throw new IllegalStateException(ALGORITHM + " is not available", e);
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+	private static boolean constantTimeEquals(String a, String b) {
+		return MessageDigest.isEqual(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String encode(byte[] bytes) {
+		return Base64.getEncoder().withoutPadding().encodeToString(bytes);
+	}
+}
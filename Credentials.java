@@ -0,0 +1,210 @@
+package com.testlab.model;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Checks passwords and transaction PINs against their stored hashes (see CredentialHasher) and
+// upgrades plaintext or weaker hashes the first time the right secret is presented.
+//
+// Money statements still guard on "transaction_pin = ?", but now bind the stored hash returned by
+// pinGuard instead of the PIN, after checking the PIN against it; a PIN changed in between makes
+// the guard fail as before. A slow hash per transaction would cost more CPU than the transaction
+// itself, so a verified PIN is remembered per account as an HMAC under a per-process random key
+// (never the PIN itself) together with the stored hash it matched, for -Dbank.pin.cacheTtlMillis.
+public class Credentials {
+
+	public static final int DEFAULT_MAX_ENTRIES = 100_000;
+	public static final long DEFAULT_TTL_MILLIS = 300_000;
+
+	// Bound when the PIN is wrong or the account is missing: no stored value (hash or legacy PIN) can
+	// equal it, so the guarded statement matches nothing and BankService.explainRejected reports why
+	static final String NO_MATCH = "\u0000";
+
+	private static final Map<ConnectionPool, Credentials> CREDENTIALS = new ConcurrentHashMap<>();
+	private static final byte[] MAC_KEY = new byte[32];
+
+	static {
+		new SecureRandom().nextBytes(MAC_KEY);
+	}
+
+	private final ConnectionPool pool;
+	private final CredentialHasher hasher;
+	private final int maxEntries;
+	private final long ttlMillis;
+	// Guarded by this; keyed by account number (Integer) or userId (String)
+	private final LinkedHashMap<Object, VerifiedPin> verifiedPins = new LinkedHashMap<>(16, 0.75f, true);
+
+	public Credentials(ConnectionPool pool, CredentialHasher hasher, int maxEntries, long ttlMillis) {
+		this.pool = pool;
+		this.hasher = hasher;
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+	}
+
+	public static Credentials forPool(ConnectionPool pool) {
+		return CREDENTIALS.computeIfAbsent(pool, p -> new Credentials(p, CredentialHasher.get(), DEFAULT_MAX_ENTRIES,
+				Long.getLong("bank.pin.cacheTtlMillis", DEFAULT_TTL_MILLIS)));
+	}
+
+	public boolean checkPassword(int accountNumber, String password) throws SQLException {
+		return check("password", "accountnumber", accountNumber, password) != null;
+	}
+
+	public boolean checkPassword(String userId, String password) throws SQLException {
+		return check("password", "userid", userId, password) != null;
+	}
+
+	public boolean checkPin(int accountNumber, String pin) throws SQLException {
+		return !pinGuard(accountNumber, pin).equals(NO_MATCH);
+	}
+
+	public boolean checkPin(String userId, String pin) throws SQLException {
+		return !pinGuard(userId, pin).equals(NO_MATCH);
+	}
+
+	// Call after storing a new PIN, so the old one stops verifying from the cache at once
+	public synchronized void forgetPin(Object account) {
+		verifiedPins.remove(account);
+	}
+
+	// The value to bind for "transaction_pin = ?" in a guarded statement for this account (an Integer
+	// account number or a String userId)
+	String pinGuard(Object account, String pin) throws SQLException {
+		if (pin == null) {
+			return NO_MATCH;
+		}
+		byte[] mac = mac(account, pin);
+		synchronized (this) {
+			VerifiedPin cached = verifiedPins.get(account);
+			if (cached != null && System.currentTimeMillis() - cached.verifiedAt <= ttlMillis
+					&& MessageDigest.isEqual(cached.mac, mac)) {
+				return cached.stored;
+			}
+		}
+		String stored = check("transaction_pin", account instanceof Integer ? "accountnumber" : "userid", account, pin);
+		if (stored == null) {
+			return NO_MATCH;
+		}
+		synchronized (this) {
+			verifiedPins.put(account, new VerifiedPin(stored, mac, System.currentTimeMillis()));
+			evictOverflow();
+		}
+		return stored;
+	}
+
+	// Records a PIN already checked against this stored value (by a Session), so guarded statements
+	// for either key of the account bind it without selecting it again
+	synchronized void remember(int accountNumber, String userId, String pin, String stored) {
+		long now = System.currentTimeMillis();
+		verifiedPins.put(accountNumber, new VerifiedPin(stored, mac(accountNumber, pin), now));
+		verifiedPins.put(userId, new VerifiedPin(stored, mac(userId, pin), now));
+		evictOverflow();
+	}
+
+	// A guarded statement was refused with this account's current row in hand; drops cached PINs that
+	// no longer match the stored hash (changed or rehashed elsewhere) so the next attempt re-verifies
+	static void refresh(int accountNumber, String userId, String storedPin) {
+		for (Credentials credentials : CREDENTIALS.values()) {
+			synchronized (credentials) {
+				credentials.dropIfStale(accountNumber, storedPin);
+				credentials.dropIfStale(userId, storedPin);
+			}
+		}
+	}
+
+	private void evictOverflow() {
+		Iterator<VerifiedPin> oldest = verifiedPins.values().iterator();
+		while (verifiedPins.size() > maxEntries) {
+			oldest.next();
+			oldest.remove();
+		}
+	}
+
+	private void dropIfStale(Object account, String storedPin) {
+		VerifiedPin cached = verifiedPins.get(account);
+		if (cached != null && !cached.stored.equals(storedPin)) {
+			verifiedPins.remove(account);
+		}
+	}
+
+	// Returns the stored value the secret matched (after any upgrade), or null
+	private String check(String secretColumn, String keyColumn, Object account, String secret) throws SQLException {
+		String stored;
+		try (Connection connection = pool.getConnection();
+				PreparedStatement ps = connection
+						.prepareStatement("SELECT " + secretColumn + " FROM account WHERE " + keyColumn + " = ?")) {
+			ps.setObject(1, account);
+			try (ResultSet rs = ps.executeQuery()) {
+				if (!rs.next()) {
+					return null;
+				}
+				stored = rs.getString(1);
+			}
+		}
+		if (!hasher.verify(secret, stored)) {
+			return null;
+		}
+		return upgrade(secretColumn, keyColumn, account, secret, stored);
+	}
+
+	// Replaces a plaintext or weaker stored value that secret is known to match with a fresh hash;
+	// returns the value now stored
+	String upgrade(String secretColumn, int accountNumber, String secret, String stored) throws SQLException {
+		return upgrade(secretColumn, "accountnumber", accountNumber, secret, stored);
+	}
+
+	private String upgrade(String secretColumn, String keyColumn, Object account, String secret, String stored)
+			throws SQLException {
+		if (!hasher.needsRehash(stored)) {
+			return stored;
+		}
+		String upgraded = hasher.hash(secret);
+		try (Connection connection = pool.getConnection();
+				PreparedStatement ps = connection.prepareStatement("UPDATE account SET " + secretColumn + " = ? WHERE "
+						+ keyColumn + " = ? AND " + secretColumn + " = ?")) {
+			ps.setString(1, upgraded);
+			ps.setObject(2, account);
+			ps.setString(3, stored);
+			// 0 rows: someone else changed or upgraded it first, and their value stands
+			return ps.executeUpdate() == 1 ? upgraded : stored;
+		}
+	}
+
+	private static byte[] mac(Object account, String pin) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(MAC_KEY, "HmacSHA256"));
+			mac.update(account.toString().getBytes(StandardCharsets.UTF_8));
+			mac.update((byte) 0);
+			return mac.doFinal(pin.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException | InvalidKeyException e) {
+			throw new IllegalStateException("HmacSHA256 is not available", e);
+		}
+	}
+
+	private static class VerifiedPin {
+		final String stored;
+		final byte[] mac;
+		final long verifiedAt;
+
+		VerifiedPin(String stored, byte[] mac, long verifiedAt) {
+			this.stored = stored;
+			this.mac = mac;
+			this.verifiedAt = verifiedAt;
+		}
+	}
+}
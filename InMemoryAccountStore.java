@@ -0,0 +1,492 @@
+package com.testlab.model;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.testlab.model.TransactionResult.Status;
+
+// An AccountStore held entirely in memory, for load tests, what-if simulation and benchmarks: no
+// database, no ledger, nothing written back. Accounts live in dense parallel arrays indexed by slot
+// (int account numbers, long balances, int PINs, boolean flags), found through two open-addressed
+// tables of slot numbers (account number -> slot and userId -> slot) with linear probing, so the hot
+// path allocates nothing and boxes nothing. Each balance is guarded by one of a fixed set of lock
+// stripes; a transfer takes its two stripes in stripe order, so transfers cannot deadlock.
+//
+// Capacity is fixed at construction. Accounts opened while traffic is running become visible to
+// other threads once open returns. A store started for a pool also takes in accounts the database
+// gains afterwards, and PIN and active-flag changes, through the AccountStore hooks.
+//
+// PINs are kept as their 4-digit value: anything fast enough to check millions of times a second is
+// brute-forced just as quickly, so nothing would be gained by hashing them here. Accounts loaded from
+// the database with a hashed PIN are checked against the hash on first use (slow, once) and the PIN
+// is kept from then on. That check runs with no stripe held, so it never stalls the other accounts
+// on the stripe.
+public class InMemoryAccountStore implements AccountStore {
+
+	public static final int DEFAULT_STRIPES = 1024;
+
+	static final int NO_PIN = -1;
+	static final int UNLEARNED_PIN = -2;
+
+	// From checkAccount: the PIN must be checked against its hash (see learnPin) before deciding
+	private static final TransactionResult LEARN_PIN = TransactionResult.failure(Status.INVALID_PIN, "Incorrect PIN.");
+
+	// Stores started for a pool with start(pool); BankOperations uses one in place of the database
+	private static final Map<ConnectionPool, InMemoryAccountStore> STORES = new ConcurrentHashMap<>();
+
+	private final int capacity;
+	private final int[] accountNumbers;
+	private final String[] userIds;
+	private final long[] balances;
+	private final int[] pins;
+	private final boolean[] active;
+	// Stored hashes of PINs not yet learned; null once learned or for accounts opened with a PIN
+	private final String[] pinHashes;
+
+	// slot + 1 per bucket, 0 for empty
+	private final int[] byAccountNumber;
+	private final int[] byUserId;
+	private final Object[] locks;
+
+	private volatile int size;
+
+	private final LongAdder transfers = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	public InMemoryAccountStore(int capacity) {
+		this(capacity, DEFAULT_STRIPES);
+	}
+
+	public InMemoryAccountStore(int capacity, int stripes) {
+		if (capacity <= 0 || stripes <= 0 || Integer.bitCount(stripes) != 1) {
+			throw new IllegalArgumentException("Capacity must be positive and stripes a power of two");
+		}
+		this.capacity = capacity;
+		this.accountNumbers = new int[capacity];
+		this.userIds = new String[capacity];
+		this.balances = new long[capacity];
+		this.pins = new int[capacity];
+		this.active = new boolean[capacity];
+		this.pinHashes = new String[capacity];
+		int buckets = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+		this.byAccountNumber = new int[buckets];
+		this.byUserId = new int[buckets];
+		this.locks = new Object[stripes];
+		for (int i = 0; i < stripes; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	// Loads every account from the database into a new store and uses it for this pool's
+	// BankOperations; headroom is how many more accounts it can take afterwards
+	public static synchronized InMemoryAccountStore start(ConnectionPool pool, int headroom) throws SQLException {
+		InMemoryAccountStore existing = STORES.get(pool);
+		if (existing != null) {
+			return existing;
+		}
+		InMemoryAccountStore store = load(pool, headroom);
+		STORES.put(pool, store);
+		return store;
+	}
+
+	// The store started for this pool, or null if the database is the store
+	public static InMemoryAccountStore forPool(ConnectionPool pool) {
+		return STORES.get(pool);
+	}
+
+	// A snapshot of the database's accounts; balances are not written back, and later changes in the
+	// database only reach a store that start() registered for the pool
+	public static InMemoryAccountStore load(ConnectionPool pool, int headroom) throws SQLException {
+		try (Connection connection = pool.getConnection(); Statement st = connection.createStatement()) {
+			int count;
+			try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM account")) {
+				rs.next();
+				count = rs.getInt(1);
+			}
+			InMemoryAccountStore store = new InMemoryAccountStore(count + Math.max(1, headroom));
+			try (ResultSet rs = st.executeQuery(
+					"SELECT accountnumber, userid, balance, transaction_pin, isActive FROM account")) {
+				while (rs.next()) {
+					store.add(rs.getInt("accountnumber"), rs.getString("userid"), rs.getLong("balance"),
+							rs.getString("transaction_pin"), rs.getBoolean("isActive"));
+				}
+			}
+			return store;
+		}
+	}
+
+	// Adds an account; pin is the 4-digit transaction PIN, or null for an account no PIN unlocks
+	public synchronized void open(int accountNumber, String userId, long balance, String pin, boolean isActive) {
+		if (pin != null && parsePin(pin) == NO_PIN) {
+			throw new IllegalArgumentException("PIN must be exactly 4 digits");
+		}
+		add(accountNumber, userId, balance, pin, isActive);
+	}
+
+	private synchronized void add(int accountNumber, String userId, long balance, String storedPin,
+			boolean isActive) {
+		if (slotOf(accountNumber) >= 0 || (userId != null && slotOf(userId) >= 0)) {
+			throw new IllegalArgumentException("Account " + accountNumber + " / " + userId + " already exists");
+		}
+		int slot = size;
+		if (slot == capacity) {
+			throw new IllegalStateException("In-memory account store is full (" + capacity + " accounts)");
+		}
+		accountNumbers[slot] = accountNumber;
+		userIds[slot] = userId;
+		balances[slot] = balance;
+		active[slot] = isActive;
+		setStoredPin(slot, storedPin);
+		insert(byAccountNumber, mix(accountNumber), slot);
+		if (userId != null) {
+			insert(byUserId, mix(userId.hashCode()), slot);
+		}
+		// the volatile write publishes the slot to threads that read size first
+		size = slot + 1;
+	}
+
+	// Called with the slot's stripe held, or before the slot is published
+	private void setStoredPin(int slot, String storedPin) {
+		int pin = storedPin == null ? NO_PIN : parsePin(storedPin);
+		pinHashes[slot] = null;
+		if (pin == NO_PIN && storedPin != null) {
+			// a hash (or malformed legacy value): check it the slow way on first use
+			pin = UNLEARNED_PIN;
+			pinHashes[slot] = storedPin;
+		}
+		pins[slot] = pin;
+	}
+
+	// Already present when start() loaded the row after it was committed
+	@Override
+	public synchronized void onOpened(int accountNumber, String userId, long balance, String storedPin,
+			boolean isActive) {
+		if (slotOf(accountNumber) >= 0) {
+			return;
+		}
+		if (size == capacity) {
+			System.out.println("In-memory account store is full; account " + accountNumber + " was not added.");
+			return;
+		}
+		add(accountNumber, userId, balance, storedPin, isActive);
+	}
+
+	@Override
+	public void onPinChanged(int accountNumber, String storedPin) {
+		int slot = slotOf(accountNumber);
+		if (slot < 0) {
+			return;
+		}
+		synchronized (lockFor(slot)) {
+			setStoredPin(slot, storedPin);
+		}
+	}
+
+	@Override
+	public void onActiveChanged(int accountNumber, boolean isActive) {
+		if (slotOf(accountNumber) >= 0) {
+			setActive(accountNumber, isActive);
+		}
+	}
+
+	public void setActive(int accountNumber, boolean isActive) {
+		int slot = slotOf(accountNumber);
+		if (slot < 0) {
+			throw new IllegalArgumentException("No account " + accountNumber);
+		}
+		synchronized (lockFor(slot)) {
+			active[slot] = isActive;
+		}
+	}
+
+	// The balance whether or not the account is active, or -1 if there is no such account; the
+	// getAccountBalance contract
+	public long balanceOf(int accountNumber) {
+		int slot = slotOf(accountNumber);
+		if (slot < 0) {
+			return -1;
+		}
+		synchronized (lockFor(slot)) {
+			return balances[slot];
+		}
+	}
+
+	@Override
+	public TransactionResult getBalance(int accountNumber) {
+		int slot = slotOf(accountNumber);
+		if (slot < 0) {
+			return BankService.notFound();
+		}
+		synchronized (lockFor(slot)) {
+			if (!active[slot]) {
+				return BankService.inactive();
+			}
+			return TransactionResult.success(0, balances[slot]);
+		}
+	}
+
+	@Override
+	public TransactionResult deposit(int accountNumber, long amount, String pin) {
+		if (!BankService.isValidAmount(amount)) {
+			return BankService.invalidAmount();
+		}
+		int slot = slotOf(accountNumber);
+		if (slot < 0) {
+			return BankService.notFound();
+		}
+		while (true) {
+			synchronized (lockFor(slot)) {
+				TransactionResult refused = checkAccount(slot, pin, 0);
+				if (refused == null) {
+					balances[slot] += amount;
+					return TransactionResult.success(amount, balances[slot]);
+				}
+				if (refused != LEARN_PIN) {
+					return refused;
+				}
+			}
+			TransactionResult refused = learnPin(slot, pin);
+			if (refused != null) {
+				return refused;
+			}
+		}
+	}
+
+	@Override
+	public TransactionResult withdraw(int accountNumber, long amount, String pin) {
+		if (!BankService.isValidAmount(amount)) {
+			return BankService.invalidAmount();
+		}
+		int slot = slotOf(accountNumber);
+		if (slot < 0) {
+			return BankService.notFound();
+		}
+		while (true) {
+			synchronized (lockFor(slot)) {
+				TransactionResult refused = checkAccount(slot, pin, amount);
+				if (refused == null) {
+					balances[slot] -= amount;
+					return TransactionResult.success(amount, balances[slot]);
+				}
+				if (refused != LEARN_PIN) {
+					return refused;
+				}
+			}
+			TransactionResult refused = learnPin(slot, pin);
+			if (refused != null) {
+				return refused;
+			}
+		}
+	}
+
+	@Override
+	public TransactionResult transfer(int senderAccountNumber, int receiverAccountNumber, long amount, String pin) {
+		if (!BankService.isValidAmount(amount)) {
+			return BankService.invalidAmount();
+		}
+		if (senderAccountNumber == receiverAccountNumber) {
+			return BankService.sameAccount();
+		}
+		int sender = slotOf(senderAccountNumber);
+		if (sender < 0) {
+			return BankService.notFound();
+		}
+		int receiver = slotOf(receiverAccountNumber);
+		if (receiver < 0) {
+			return TransactionResult.failure(Status.RECEIVER_NOT_FOUND, "Receiver account not found!");
+		}
+		int senderStripe = stripe(sender);
+		int receiverStripe = stripe(receiver);
+		while (true) {
+			synchronized (locks[Math.min(senderStripe, receiverStripe)]) {
+				synchronized (locks[Math.max(senderStripe, receiverStripe)]) {
+					TransactionResult refused = checkAccount(sender, pin, amount);
+					if (refused == null) {
+						if (!active[receiver]) {
+							rejected.increment();
+							return TransactionResult.failure(Status.RECEIVER_INACTIVE,
+									"Receiver account is inactive. Transaction not allowed.");
+						}
+						balances[sender] -= amount;
+						balances[receiver] += amount;
+						transfers.increment();
+						return TransactionResult.success(amount, balances[sender]);
+					}
+					if (refused != LEARN_PIN) {
+						return refused;
+					}
+				}
+			}
+			TransactionResult refused = learnPin(sender, pin);
+			if (refused != null) {
+				return refused;
+			}
+		}
+	}
+
+	@Override
+	public int accountNumberOf(String userId) {
+		int slot = slotOf(userId);
+		return slot < 0 ? NO_ACCOUNT : accountNumbers[slot];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getTransfers() {
+		return transfers.sum();
+	}
+
+	// Operations refused for the account's state: inactive, wrong PIN, insufficient funds
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	// Sum of all balances, taking one stripe at a time: exact when no transfers are running, which
+	// is how simulations check that money was neither created nor lost
+	public long totalBalance() {
+		long total = 0;
+		int n = size;
+		for (int slot = 0; slot < n; slot++) {
+			synchronized (lockFor(slot)) {
+				total += balances[slot];
+			}
+		}
+		return total;
+	}
+
+	// Called with the slot's stripe held; null when the operation may go ahead, LEARN_PIN when the
+	// caller must call learnPin (with the stripe released) and check again
+	private TransactionResult checkAccount(int slot, String pin, long requiredBalance) {
+		if (!active[slot]) {
+			rejected.increment();
+			return BankService.inactive();
+		}
+		int entered = parsePin(pin);
+		if (entered != NO_PIN && pins[slot] == UNLEARNED_PIN) {
+			return LEARN_PIN;
+		}
+		if (entered == NO_PIN || pins[slot] != entered) {
+			rejected.increment();
+			return TransactionResult.failure(Status.INVALID_PIN, "Incorrect PIN.");
+		}
+		if (balances[slot] < requiredBalance) {
+			rejected.increment();
+			return TransactionResult.insufficientFunds(balances[slot]);
+		}
+		return null;
+	}
+
+	// Checks pin against the slot's stored hash with no stripe held, then keeps it if the hash has not
+	// changed meanwhile. null when the caller should check the account again.
+	private TransactionResult learnPin(int slot, String pin) {
+		String hash;
+		synchronized (lockFor(slot)) {
+			hash = pinHashes[slot];
+		}
+		if (hash == null) {
+			return null; // learned or replaced meanwhile
+		}
+		try {
+			if (!CredentialHasher.get().verify(pin, hash)) {
+				rejected.increment();
+				return TransactionResult.failure(Status.INVALID_PIN, "Incorrect PIN.");
+			}
+		} catch (SQLException e) {
+			return pinCheckUnavailable();
+		}
+		synchronized (lockFor(slot)) {
+			if (hash.equals(pinHashes[slot])) {
+				pins[slot] = parsePin(pin);
+				pinHashes[slot] = null;
+			}
+		}
+		return null;
+	}
+
+	// Hashing shed the check (see CredentialHasher); not the PIN's fault, so not INVALID_PIN
+	static TransactionResult pinCheckUnavailable() {
+		return TransactionResult.failure(Status.FAILED, "The PIN could not be checked right now. Try again.");
+	}
+
+	// The PIN's value, or NO_PIN unless it is exactly 4 ASCII digits
+	static int parsePin(String pin) {
+		if (pin == null || pin.length() != 4) {
+			return NO_PIN;
+		}
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			char c = pin.charAt(i);
+			if (c < '0' || c > '9') {
+				return NO_PIN;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private int slotOf(int accountNumber) {
+		if (size == 0) {
+			return -1;
+		}
+		int mask = byAccountNumber.length - 1;
+		for (int i = mix(accountNumber) & mask;; i = (i + 1) & mask) {
+			int entry = byAccountNumber[i];
+			if (entry == 0) {
+				return -1;
+			}
+			if (accountNumbers[entry - 1] == accountNumber) {
+				return entry - 1;
+			}
+		}
+	}
+
+	private int slotOf(String userId) {
+		if (size == 0) {
+			return -1;
+		}
+		int mask = byUserId.length - 1;
+		for (int i = mix(userId.hashCode()) & mask;; i = (i + 1) & mask) {
+			int entry = byUserId[i];
+			if (entry == 0) {
+				return -1;
+			}
+			if (userId.equals(userIds[entry - 1])) {
+				return entry - 1;
+			}
+		}
+	}
+
+	private static void insert(int[] table, int hash, int slot) {
+		int mask = table.length - 1;
+		int i = hash & mask;
+		while (table[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		table[i] = slot + 1;
+	}
+
+	private int stripe(int slot) {
+		return slot & (locks.length - 1);
+	}
+
+	private Object lockFor(int slot) {
+		return locks[stripe(slot)];
+	}
+
+	// Spreads sequential account numbers and weak String hashes across the table
+	static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,391 @@
+package com.testlab.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+// Append-only write-ahead journal in preallocated, memory-mapped segment files. Each record is
+//
+//   int length | int crc32c | long lsn | payload (length bytes)
+//
+// with the CRC over lsn and payload, so a torn write at the tail is detected on recovery and
+// dropped. Appends only copy into the mapping; a flusher thread forces the dirty range to disk once
+// groupCommitSize records are waiting or the oldest has waited groupCommitDelay, and append() returns
+// when its record is on disk. Callers that must order their own bookkeeping with the LSN (under a
+// lock of their own) use write() there and awaitDurable() after releasing it, so their writers
+// still share one flush. A segment that fills up is forced and a new one started; segments are
+// deleted once every record in them has been applied (see retireUpTo).
+public class Journal implements AutoCloseable {
+
+	public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+	public static final int DEFAULT_GROUP_COMMIT_SIZE = 64;
+	public static final long DEFAULT_GROUP_COMMIT_DELAY_MICROS = 500;
+
+	private static final int HEADER_BYTES = 16;
+	private static final String PREFIX = "journal-";
+	private static final String SUFFIX = ".log";
+
+	private final Path directory;
+	private final long segmentBytes;
+	private final int groupCommitSize;
+	private final long groupCommitDelayNanos;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition work = lock.newCondition();
+	private final Condition flushed = lock.newCondition();
+
+	// Guarded by lock
+	private final Deque<Segment> segments = new ArrayDeque<>();
+	private Segment current;
+	private long nextLsn;
+	private long durableLsn;
+	private int pendingRecords;
+	private long oldestPendingNanos;
+	private IOException flushFailure;
+	private boolean closed;
+
+	private final Thread flusher;
+
+	// Opens the journal, passing every intact record to replay in LSN order before returning. firstLsn
+	// numbers the first record of an empty journal.
+	public Journal(Path directory, long segmentBytes, int groupCommitSize, long groupCommitDelayMicros,
+			long firstLsn, Consumer<Record> replay) throws IOException {
+		if (segmentBytes < 4096 || segmentBytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Segment size must be 4 KB to 2 GB: " + segmentBytes);
+		}
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.groupCommitSize = Math.max(1, groupCommitSize);
+		this.groupCommitDelayNanos = TimeUnit.MICROSECONDS.toNanos(groupCommitDelayMicros);
+		Files.createDirectories(directory);
+		recover(firstLsn, replay);
+		flusher = new Thread(this::flushLoop, "journal-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	// Appends one record and returns its LSN once it is durable
+	public long append(ByteBuffer payload) throws IOException {
+		long lsn = write(payload);
+		awaitDurable(lsn);
+		return lsn;
+	}
+
+	// Appends one record without waiting for it to reach disk; see awaitDurable
+	public long write(ByteBuffer payload) throws IOException {
+		long lsn;
+		lock.lock();
+		try {
+			if (closed) {
+				throw new IOException("Journal is closed");
+			}
+			int size = HEADER_BYTES + payload.remaining();
+			if (size + 4 > segmentBytes) {
+				throw new IllegalArgumentException("Journal record too large: " + size + " bytes");
+			}
+			// keep room for the zero length that marks the end of a segment
+			if (current.buffer.remaining() < size + 4) {
+				roll();
+			}
+			lsn = nextLsn++;
+			writeRecord(current.buffer, lsn, payload);
+			current.lastLsn = lsn;
+			if (pendingRecords++ == 0) {
+				oldestPendingNanos = System.nanoTime();
+			}
+			if (pendingRecords == 1 || pendingRecords >= groupCommitSize) {
+				work.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return lsn;
+	}
+
+	// Returns once the record numbered lsn is on disk
+	public void awaitDurable(long lsn) throws IOException {
+		lock.lock();
+		try {
+			while (durableLsn < lsn) {
+				if (flushFailure != null) {
+					throw new IOException("Journal flush failed", flushFailure);
+				}
+				if (closed) {
+					throw new IOException("Journal closed before record " + lsn + " was flushed");
+				}
+				flushed.awaitUninterruptibly();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Deletes every segment, other than the one being written, whose records all have LSN <= lsn
+	public void retireUpTo(long lsn) throws IOException {
+		List<Segment> retired = new ArrayList<>();
+		lock.lock();
+		try {
+			while (segments.size() > 1 && segments.peekFirst().lastLsn <= lsn) {
+				retired.add(segments.pollFirst());
+			}
+		} finally {
+			lock.unlock();
+		}
+		for (Segment segment : retired) {
+			segment.channel.close();
+			Files.deleteIfExists(segment.path);
+		}
+	}
+
+	public long getDurableLsn() {
+		lock.lock();
+		try {
+			return durableLsn;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getSegmentCount() {
+		lock.lock();
+		try {
+			return segments.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			work.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		lock.lock();
+		try {
+			for (Segment segment : segments) {
+				segment.channel.close();
+			}
+			flushed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void flushLoop() {
+		while (true) {
+			Segment segment;
+			int from;
+			int to;
+			long upTo;
+			lock.lock();
+			try {
+				while (!closed && !flushDue()) {
+					if (pendingRecords == 0) {
+						work.awaitUninterruptibly();
+					} else {
+						try {
+							work.awaitNanos(groupCommitDelayNanos - (System.nanoTime() - oldestPendingNanos));
+						} catch (InterruptedException e) {
+							// only close() stops the flusher
+						}
+					}
+				}
+				if (pendingRecords == 0) {
+					return; // closed with nothing left to flush
+				}
+				segment = current;
+				from = segment.flushedPosition;
+				to = segment.buffer.position();
+				upTo = nextLsn - 1;
+				pendingRecords = 0;
+			} finally {
+				lock.unlock();
+			}
+
+			IOException failure = null;
+			try {
+				segment.buffer.force(from, to - from);
+			} catch (RuntimeException e) {
+				failure = new IOException(e);
+			}
+
+			lock.lock();
+			try {
+				if (failure != null) {
+					flushFailure = failure;
+				} else {
+					segment.flushedPosition = Math.max(segment.flushedPosition, to);
+					durableLsn = Math.max(durableLsn, upTo);
+				}
+				flushed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private boolean flushDue() {
+		return pendingRecords >= groupCommitSize
+				|| (pendingRecords > 0 && System.nanoTime() - oldestPendingNanos >= groupCommitDelayNanos);
+	}
+
+	// Called with the lock held: forces the full segment (rare) and starts the next one
+	private void roll() throws IOException {
+		Segment full = current;
+		full.buffer.force();
+		full.flushedPosition = full.buffer.position();
+		if (full.lastLsn >= full.firstLsn) {
+			durableLsn = Math.max(durableLsn, full.lastLsn);
+		}
+		current = openSegment(nextLsn);
+		segments.addLast(current);
+	}
+
+	private static void writeRecord(MappedByteBuffer buffer, long lsn, ByteBuffer payload) {
+		int start = buffer.position();
+		int length = payload.remaining();
+		buffer.position(start + 8);
+		buffer.putLong(lsn);
+		buffer.put(payload);
+		buffer.putInt(start + 4, checksum(buffer, start + 8, start + HEADER_BYTES + length));
+		buffer.putInt(start, length);
+	}
+
+	private static int checksum(ByteBuffer buffer, int from, int to) {
+		CRC32C crc = new CRC32C();
+		crc.update(buffer.duplicate().limit(to).position(from));
+		return (int) crc.getValue();
+	}
+
+	private void recover(long firstLsn, Consumer<Record> replay) throws IOException {
+		List<Path> paths = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+			for (Path path : files) {
+				paths.add(path);
+			}
+		}
+		paths.sort(null); // names are zero-padded first LSNs
+		long expected = -1;
+		for (Path path : paths) {
+			Segment segment = mapSegment(path, firstLsnOf(path));
+			if (expected >= 0 && segment.firstLsn != expected) {
+				throw new IOException("Journal segment " + path + " does not follow LSN " + (expected - 1));
+			}
+			long lsn = segment.firstLsn;
+			ByteBuffer buffer = segment.buffer;
+			while (buffer.remaining() >= HEADER_BYTES + 4) {
+				int start = buffer.position();
+				int length = buffer.getInt(start);
+				if (length <= 0 || length > buffer.remaining() - HEADER_BYTES - 4
+						|| buffer.getLong(start + 8) != lsn
+						|| buffer.getInt(start + 4) != checksum(buffer, start + 8, start + HEADER_BYTES + length)) {
+					break;
+				}
+				ByteBuffer payload = buffer.duplicate().limit(start + HEADER_BYTES + length)
+						.position(start + HEADER_BYTES).slice().asReadOnlyBuffer();
+				replay.accept(new Record(lsn, payload));
+				buffer.position(start + HEADER_BYTES + length);
+				segment.lastLsn = lsn++;
+			}
+			segment.flushedPosition = buffer.position();
+			segments.addLast(segment);
+			expected = lsn;
+		}
+		if (segments.isEmpty()) {
+			segments.addLast(openSegment(firstLsn));
+			expected = firstLsn;
+		}
+		current = segments.peekLast();
+		// Anything past the last intact record is a torn write; clear it so it cannot be misread later
+		MappedByteBuffer tail = current.buffer;
+		byte[] zeros = new byte[64 * 1024];
+		for (int i = tail.position(); i < tail.limit(); i += zeros.length) {
+			tail.put(i, zeros, 0, Math.min(zeros.length, tail.limit() - i));
+		}
+		current.buffer.force();
+		nextLsn = expected;
+		durableLsn = expected - 1;
+	}
+
+	private Segment openSegment(long firstLsn) throws IOException {
+		return mapSegment(directory.resolve(String.format("%s%020d%s", PREFIX, firstLsn, SUFFIX)), firstLsn);
+	}
+
+	private Segment mapSegment(Path path, long firstLsn) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		if (channel.size() < segmentBytes) {
+			// preallocate so the mapping never has to grow
+			channel.write(ByteBuffer.wrap(new byte[1]), segmentBytes - 1);
+		}
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+		return new Segment(path, firstLsn, channel, buffer);
+	}
+
+	private static long firstLsnOf(Path path) {
+		String name = path.getFileName().toString();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+
+	// One journal record; the payload is a read-only view only valid during replay
+	public static class Record {
+		private final long lsn;
+		private final ByteBuffer payload;
+
+		Record(long lsn, ByteBuffer payload) {
+			this.lsn = lsn;
+			this.payload = payload;
+		}
+
+		public long getLsn() {
+			return lsn;
+		}
+
+		public ByteBuffer getPayload() {
+			return payload;
+		}
+	}
+
+	private static class Segment {
+		final Path path;
+		final long firstLsn;
+		final FileChannel channel;
+		final MappedByteBuffer buffer;
+		long lastLsn;
+		int flushedPosition;
+
+		Segment(Path path, long firstLsn, FileChannel channel, MappedByteBuffer buffer) {
+			this.path = path;
+			this.firstLsn = firstLsn;
+			this.channel = channel;
+			this.buffer = buffer;
+			this.lastLsn = firstLsn - 1;
+		}
+	}
+}
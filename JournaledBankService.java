@@ -0,0 +1,643 @@
+package com.testlab.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.testlab.model.TransactionResult.Status;
+
+// BankService whose deposits, withdrawals and transfers are appended to a Journal and acknowledged
+// as soon as the record is on disk; a single applier thread then drains entries to the database in
+// LSN order, up to applyBatch of them per DB transaction. Each entry's LSN is inserted into
+// journal_applied in the same transaction as its effect, so replay after a crash reapplies exactly
+// the entries that never committed.
+//
+// Before an entry is written its userId is resolved to the account number and its PIN is checked:
+// a wrong PIN is answered at once, and the entry records only the PIN guard (the stored hash, see
+// Credentials.pinGuard), never the PIN. The acknowledgement is decided against a projection of
+// each account: its row as last read, plus the acknowledged entries not yet applied. An entry the
+// database still refuses when applied (the account was deactivated or its PIN changed in between,
+// or another writer spent the balance) is logged and taken back out of the projection.
+public class JournaledBankService extends BankService implements AutoCloseable {
+
+	public static final int DEFAULT_APPLY_BATCH = 64;
+
+	private static final byte DEPOSIT = 1;
+	private static final byte WITHDRAW = 2;
+	private static final byte TRANSFER = 3;
+
+	private static final String APPLIED_WATERMARK = "SELECT MAX(lsn) FROM journal_applied";
+	private static final String FORGET_APPLIED = "DELETE FROM journal_applied WHERE lsn < ?";
+	private static final long RETRY_BACKOFF_MILLIS = 1_000;
+
+	private static final Map<ConnectionPool, JournaledBankService> SERVICES = new ConcurrentHashMap<>();
+
+	private final Journal journal;
+	private final Credentials credentials;
+	private final int applyBatch;
+	private final int maxAttempts = TransferExecutor.DEFAULT_MAX_ATTEMPTS;
+	private final BlockingQueue<Entry> pending = new LinkedBlockingQueue<>();
+	// By account number; one per account touched since start
+	private final Map<Integer, Projection> projections = new ConcurrentHashMap<>();
+	private final Thread applier;
+	private volatile boolean closed;
+	private volatile long appliedLsn;
+
+	private JournaledBankService(ConnectionPool pool, Path directory, long segmentBytes, int groupCommitSize,
+			long groupCommitDelayMicros, int applyBatch) throws IOException, SQLException {
+		super(pool);
+		if (applyBatch <= 0) {
+			throw new IllegalArgumentException("Batch size must be positive: " + applyBatch);
+		}
+		this.applyBatch = applyBatch;
+		credentials = Credentials.forPool(pool);
+		long watermark = appliedWatermark(pool);
+		appliedLsn = watermark;
+		journal = new Journal(directory, segmentBytes, groupCommitSize, groupCommitDelayMicros, watermark + 1,
+				record -> {
+					if (record.getLsn() > watermark) {
+						pending.add(decode(record.getLsn(), record.getPayload()));
+					}
+				});
+		Entry lastReplayed = null;
+		for (Entry entry : pending) {
+			lastReplayed = entry;
+		}
+		if (lastReplayed != null) {
+			System.out.println("Journal: replaying " + pending.size() + " unapplied entries.");
+		}
+		applier = new Thread(this::applyLoop, "journal-applier");
+		applier.setDaemon(true);
+		applier.start();
+		if (lastReplayed != null) {
+			// projections are read from the database, so it must be past the replayed entries first
+			lastReplayed.result.join();
+		}
+	}
+
+	// Opens (and replays) the journal in directory and makes it the service BankOperations uses for
+	// this pool. Sized by -Dbank.journal.segmentBytes, -Dbank.journal.groupCommitSize,
+	// -Dbank.journal.groupCommitDelayMicros and -Dbank.journal.applyBatch.
+	public static JournaledBankService start(ConnectionPool pool, Path directory) throws IOException, SQLException {
+		JournaledBankService service = new JournaledBankService(pool, directory,
+				Long.getLong("bank.journal.segmentBytes", Journal.DEFAULT_SEGMENT_BYTES),
+				Integer.getInteger("bank.journal.groupCommitSize", Journal.DEFAULT_GROUP_COMMIT_SIZE),
+				Long.getLong("bank.journal.groupCommitDelayMicros", Journal.DEFAULT_GROUP_COMMIT_DELAY_MICROS),
+				Integer.getInteger("bank.journal.applyBatch", DEFAULT_APPLY_BATCH));
+		SERVICES.put(pool, service);
+		return service;
+	}
+
+	// The journaled service for this pool, or null when journaling is off
+	public static JournaledBankService forPool(ConnectionPool pool) {
+		return SERVICES.get(pool);
+	}
+
+	@Override
+	public TransactionResult getBalance(int accountNumber) {
+		Projection projection = projections.get(accountNumber);
+		if (projection != null) {
+			synchronized (projection) {
+				if (projection.inFlight > 0) {
+					return projection.active ? TransactionResult.success(0, projection.balance) : inactive();
+				}
+			}
+		}
+		return super.getBalance(accountNumber);
+	}
+
+	@Override
+	public TransactionResult getBalance(String userId) {
+		try {
+			int accountNumber = accountNumberOf(userId);
+			return accountNumber == NO_ACCOUNT ? notFound() : getBalance(accountNumber);
+		} catch (SQLException e) {
+			return TransactionResult.error(e);
+		}
+	}
+
+	@Override
+	public Profile getProfile(int accountNumber) throws SQLException {
+		Profile profile = super.getProfile(accountNumber);
+		Projection projection = projections.get(accountNumber);
+		if (profile != null && projection != null) {
+			synchronized (projection) {
+				if (projection.inFlight > 0) {
+					profile.setBalance(projection.balance);
+				}
+			}
+		}
+		return profile;
+	}
+
+	// Money goes through the journal, never the coalescer
+	@Override
+	CommitCoalescer getCoalescer() {
+		return null;
+	}
+
+	// The synchronous operations return the acknowledgement: the entry is durable in the journal and
+	// the balance is the projected one
+	@Override
+	public TransactionResult deposit(int accountNumber, long amount, String pin) {
+		return OperationMetrics.call("BankService.deposit",
+				() -> submit(DEPOSIT, accountNumber, null, amount, pin).acknowledgement);
+	}
+
+	@Override
+	public TransactionResult deposit(String userId, long amount, String pin) {
+		return OperationMetrics.call("BankService.deposit",
+				() -> submit(DEPOSIT, userId, null, amount, pin).acknowledgement);
+	}
+
+	@Override
+	public TransactionResult withdraw(int accountNumber, long amount, String pin) {
+		return OperationMetrics.call("BankService.withdraw",
+				() -> submit(WITHDRAW, accountNumber, null, amount, pin).acknowledgement);
+	}
+
+	@Override
+	public TransactionResult withdraw(String userId, long amount, String pin) {
+		return OperationMetrics.call("BankService.withdraw",
+				() -> submit(WITHDRAW, userId, null, amount, pin).acknowledgement);
+	}
+
+	@Override
+	public TransactionResult transfer(int senderAccountNumber, int receiverAccountNumber, long amount, String pin) {
+		return OperationMetrics.call("BankService.transfer",
+				() -> submit(TRANSFER, senderAccountNumber, receiverAccountNumber, amount, pin).acknowledgement);
+	}
+
+	@Override
+	public TransactionResult transfer(String senderUserId, String receiverUserId, long amount, String pin) {
+		return OperationMetrics.call("BankService.transfer",
+				() -> submit(TRANSFER, senderUserId, receiverUserId, amount, pin).acknowledgement);
+	}
+
+	// The submit methods return once the operation is durable in the journal; the future completes
+	// when it has been applied to the database
+	public CompletableFuture<TransactionResult> submitDeposit(Object account, long amount, String pin) {
+		return submit(DEPOSIT, account, null, amount, pin).result;
+	}
+
+	public CompletableFuture<TransactionResult> submitWithdraw(Object account, long amount, String pin) {
+		return submit(WITHDRAW, account, null, amount, pin).result;
+	}
+
+	public CompletableFuture<TransactionResult> submitTransfer(Object sender, Object receiver, long amount,
+			String pin) {
+		return submit(TRANSFER, sender, receiver, amount, pin).result;
+	}
+
+	public long getAppliedLsn() {
+		return appliedLsn;
+	}
+
+	public int getBacklog() {
+		return pending.size();
+	}
+
+	public Journal getJournal() {
+		return journal;
+	}
+
+	private Entry submit(byte op, Object account, Object receiver, long amount, String pin) {
+		if (!isValidAmount(amount)) {
+			return Entry.answered(invalidAmount());
+		}
+		Entry entry;
+		try {
+			int accountNumber = resolve(account);
+			if (accountNumber == NO_ACCOUNT) {
+				return Entry.answered(notFound());
+			}
+			int receiverNumber = NO_ACCOUNT;
+			if (op == TRANSFER) {
+				receiverNumber = resolve(receiver);
+				if (receiverNumber == NO_ACCOUNT) {
+					return Entry.answered(receiverNotFound());
+				}
+				if (receiverNumber == accountNumber) {
+					return Entry.answered(sameAccount());
+				}
+			}
+			String pinGuard = credentials.pinGuard(accountNumber, pin);
+			if (pinGuard.equals(Credentials.NO_MATCH)) {
+				// wrong PIN, or no such account: nothing worth journaling
+				return Entry.answered(explainRejected(findAccount(accountNumber), pinGuard, 0));
+			}
+			entry = new Entry(op, accountNumber, receiverNumber, amount, pinGuard);
+			if (pinGuard.equals(pin)) {
+				// a legacy plaintext PIN that lost its upgrade race; never write it to the journal
+				return Entry.answered(applyAlone(entry));
+			}
+			entry.acknowledgement = journal(entry);
+		} catch (SQLException e) {
+			return Entry.answered(TransactionResult.error(e));
+		}
+		if (entry.lsn == 0) {
+			entry.result.complete(entry.acknowledgement);
+			return entry;
+		}
+		try {
+			// outside every lock, so concurrent submitters share the flush
+			journal.awaitDurable(entry.lsn);
+		} catch (IOException e) {
+			// the applier hits the same error and releases the entry's projection
+			entry.acknowledgement = journalFailed(e);
+		}
+		return entry;
+	}
+
+	// Checks the entry against its accounts' projections and, if it passes, numbers and queues it;
+	// entries that do not pass are answered without an LSN
+	private TransactionResult journal(Entry entry) throws SQLException {
+		Projection account = projections.computeIfAbsent(entry.account, n -> new Projection());
+		if (entry.op != TRANSFER) {
+			synchronized (account) {
+				return journal(entry, account, null);
+			}
+		}
+		Projection receiver = projections.computeIfAbsent(entry.receiver, n -> new Projection());
+		// in account number order, as TransferExecutor takes row locks
+		Projection first = entry.account < entry.receiver ? account : receiver;
+		Projection second = first == account ? receiver : account;
+		synchronized (first) {
+			synchronized (second) {
+				return journal(entry, account, receiver);
+			}
+		}
+	}
+
+	// Called holding the projections' locks
+	private TransactionResult journal(Entry entry, Projection account, Projection receiver) throws SQLException {
+		if (!refresh(entry.account, account)) {
+			return notFound();
+		}
+		if (!account.active) {
+			return inactive();
+		}
+		if (entry.op != DEPOSIT && account.balance < entry.amount) {
+			return TransactionResult.insufficientFunds(account.balance);
+		}
+		if (receiver != null) {
+			if (!refresh(entry.receiver, receiver)) {
+				return receiverNotFound();
+			}
+			if (!receiver.active) {
+				return TransactionResult.failure(Status.RECEIVER_INACTIVE,
+						"Receiver account is inactive. Transaction not allowed.");
+			}
+		}
+		try {
+			// the applier must see entries in LSN order, so number and enqueue together; an account's
+			// entries are also numbered in the order its projection accepted them
+			synchronized (pending) {
+				entry.lsn = journal.write(encode(entry));
+				pending.add(entry);
+			}
+		} catch (IOException e) {
+			return journalFailed(e);
+		}
+		entry.projected = true;
+		account.balance += entry.op == DEPOSIT ? entry.amount : -entry.amount;
+		account.inFlight++;
+		if (receiver != null) {
+			receiver.balance += entry.amount;
+			receiver.inFlight++;
+		}
+		return TransactionResult.success(entry.amount, account.balance);
+	}
+
+	// Re-reads the row while nothing is in flight for it; false if there is no such account
+	private boolean refresh(int accountNumber, Projection projection) throws SQLException {
+		if (projection.inFlight > 0) {
+			return true;
+		}
+		AccountState state = findAccount(accountNumber);
+		if (state == null) {
+			return false;
+		}
+		projection.active = state.active;
+		projection.balance = state.balance;
+		return true;
+	}
+
+	private static TransactionResult receiverNotFound() {
+		return TransactionResult.failure(Status.RECEIVER_NOT_FOUND, "Receiver account not found!");
+	}
+
+	private static TransactionResult journalFailed(IOException e) {
+		return TransactionResult.failure(Status.FAILED, "Journal write failed: " + e.getMessage());
+	}
+
+	private void applyLoop() {
+		List<Entry> batch = new ArrayList<>(applyBatch);
+		while (!closed) {
+			batch.clear();
+			try {
+				Entry first = pending.poll(1, TimeUnit.SECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+			} catch (InterruptedException e) {
+				return;
+			}
+			pending.drainTo(batch, applyBatch - 1);
+			// enqueued before their flush; only what is on disk may reach the database. LSNs are in
+			// order, so the last entry being durable covers the batch.
+			try {
+				journal.awaitDurable(batch.get(batch.size() - 1).lsn);
+			} catch (IOException e) {
+				for (Entry entry : batch) {
+					settle(entry, journalFailed(e));
+				}
+				continue;
+			}
+			if (!applyBatch(batch)) {
+				abandon(batch);
+				return;
+			}
+			retireApplied();
+		}
+	}
+
+	// Returns false if closed before the batch could be applied
+	private boolean applyBatch(List<Entry> batch) {
+		for (int attempt = 1; !closed; attempt++) {
+			TransactionResult[] results;
+			try {
+				results = applyOnce(batch);
+			} catch (SQLException e) {
+				if (isTransient(e)) {
+					// already acknowledged; keep retrying while the database is unreachable
+					System.out.println("Journal: retrying " + batch.size() + " entries from " + batch.get(0).lsn
+							+ ": " + e.getMessage());
+					attempt = 0;
+					if (!pause(RETRY_BACKOFF_MILLIS)) {
+						return false;
+					}
+					continue;
+				}
+				if (attempt < maxAttempts && TransferExecutor.isRetryable(e)
+						&& pause(ThreadLocalRandom.current().nextLong(10L << Math.min(attempt, 5)))) {
+					continue;
+				}
+				System.out.println("Journal: batch of " + batch.size() + " failed, applying one at a time: "
+						+ e.getMessage());
+				for (Entry entry : batch) {
+					if (closed) {
+						return false;
+					}
+					settle(entry, applyAlone(entry));
+				}
+				return true;
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				settle(batch.get(i), results[i]);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	// Applies the batch in LSN order in one transaction. Each entry keeps its own guards, and a refused
+	// transfer is rolled back to its savepoint, so a refusal only costs that entry.
+	private TransactionResult[] applyOnce(List<Entry> batch) throws SQLException {
+		TransactionResult[] results = new TransactionResult[batch.size()];
+		try (Connection connection = getPool().getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				for (int i = 0; i < batch.size(); i++) {
+					Entry entry = batch.get(i);
+					if (!markJournalEntry(connection, entry.lsn)) {
+						results[i] = alreadyApplied();
+						continue;
+					}
+					switch (entry.op) {
+					case DEPOSIT:
+						results[i] = credit(connection, entry.account, entry.amount, entry.pinGuard);
+						break;
+					case WITHDRAW:
+						results[i] = debit(connection, entry.account, entry.amount, entry.pinGuard);
+						break;
+					default:
+						Savepoint savepoint = connection.setSavepoint();
+						results[i] = getTransferExecutor().move(connection, entry.account, entry.receiver,
+								entry.amount, entry.pinGuard);
+						if (!results[i].isSuccess()) {
+							connection.rollback(savepoint);
+						}
+					}
+				}
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			}
+		}
+		return results;
+	}
+
+	// One entry in its own transaction, retried while the database is unreachable
+	private TransactionResult applyAlone(Entry entry) {
+		TransactionResult result = apply(entry);
+		while (!closed && result.getError() != null && isTransient(result.getError())) {
+			System.out.println("Journal: retrying entry " + entry.lsn + ": " + result.getMessage());
+			if (!pause(RETRY_BACKOFF_MILLIS)) {
+				break;
+			}
+			result = apply(entry);
+		}
+		return result;
+	}
+
+	private TransactionResult apply(Entry entry) {
+		switch (entry.op) {
+		case DEPOSIT:
+			return depositGuarded(entry.account, entry.amount, entry.pinGuard, entry.lsn);
+		case WITHDRAW:
+			return withdrawGuarded(entry.account, entry.amount, entry.pinGuard, entry.lsn);
+		default:
+			return transferGuarded(entry.account, entry.receiver, entry.amount, entry.pinGuard, entry.lsn);
+		}
+	}
+
+	// The entry's outcome is final: release its projections and complete its future
+	private void settle(Entry entry, TransactionResult result) {
+		if (entry.lsn > appliedLsn) {
+			appliedLsn = entry.lsn;
+		}
+		if (entry.projected) {
+			if (!result.isSuccess()) {
+				System.out.println("Journal: acknowledged entry " + entry.lsn + " was refused when applied: "
+						+ result.getMessage());
+			}
+			release(entry.account, result.isSuccess() ? 0 : entry.op == DEPOSIT ? -entry.amount : entry.amount);
+			if (entry.op == TRANSFER) {
+				release(entry.receiver, result.isSuccess() ? 0 : -entry.amount);
+			}
+		}
+		entry.result.complete(result);
+	}
+
+	// undo reverses the entry's projected effect when it was refused
+	private void release(int accountNumber, long undo) {
+		Projection projection = projections.get(accountNumber);
+		synchronized (projection) {
+			projection.balance += undo;
+			projection.inFlight--;
+		}
+	}
+
+	private static void abandon(List<Entry> entries) {
+		for (Entry entry : entries) {
+			// still in the journal, so they are applied on the next start
+			entry.result.complete(TransactionResult.failure(Status.FAILED,
+					"Journal closed; entry " + entry.lsn + " will be applied on restart"));
+		}
+	}
+
+	private static boolean pause(long millis) {
+		try {
+			Thread.sleep(millis);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	// An account number as is, or a userId through AccountIdentityCache; NO_ACCOUNT if there is none
+	private int resolve(Object account) throws SQLException {
+		return account instanceof Integer ? (Integer) account : accountNumberOf((String) account);
+	}
+
+	// Deletes fully applied segments, then the journal_applied rows they no longer need
+	private void retireApplied() {
+		int before = journal.getSegmentCount();
+		try {
+			journal.retireUpTo(appliedLsn);
+			if (journal.getSegmentCount() < before) {
+				try (Connection connection = getPool().getConnection();
+						PreparedStatement ps = connection.prepareStatement(FORGET_APPLIED)) {
+					ps.setLong(1, appliedLsn);
+					ps.executeUpdate();
+				}
+			}
+		} catch (IOException | SQLException e) {
+			System.out.println("Journal: could not retire applied segments: " + e.getMessage());
+		}
+	}
+
+	private static boolean isTransient(SQLException e) {
+		return e instanceof SQLTransientException || (e.getSQLState() != null && e.getSQLState().startsWith("08"));
+	}
+
+	private static long appliedWatermark(ConnectionPool pool) throws SQLException {
+		try (Connection connection = pool.getConnection();
+				PreparedStatement ps = connection.prepareStatement(APPLIED_WATERMARK);
+				ResultSet rs = ps.executeQuery()) {
+			return rs.next() ? rs.getLong(1) : 0;
+		}
+	}
+
+	// Waits for the applier to finish its current batch; whatever is still queued stays in the journal
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		try {
+			applier.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		journal.close();
+		SERVICES.remove(getPool(), this);
+		List<Entry> queued = new ArrayList<>();
+		pending.drainTo(queued);
+		abandon(queued);
+	}
+
+	// op | account number | receiver account number (transfers) | amount | PIN guard
+	private static ByteBuffer encode(Entry entry) {
+		byte[] pinGuard = entry.pinGuard.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + (entry.op == TRANSFER ? 4 : 0) + 8 + 2 + pinGuard.length);
+		buffer.put(entry.op);
+		buffer.putInt(entry.account);
+		if (entry.op == TRANSFER) {
+			buffer.putInt(entry.receiver);
+		}
+		buffer.putLong(entry.amount);
+		buffer.putShort((short) pinGuard.length);
+		buffer.put(pinGuard);
+		return buffer.flip();
+	}
+
+	private static Entry decode(long lsn, ByteBuffer buffer) {
+		byte op = buffer.get();
+		int account = buffer.getInt();
+		int receiver = op == TRANSFER ? buffer.getInt() : NO_ACCOUNT;
+		long amount = buffer.getLong();
+		byte[] pinGuard = new byte[buffer.getShort()];
+		buffer.get(pinGuard);
+		Entry entry = new Entry(op, account, receiver, amount, new String(pinGuard, StandardCharsets.UTF_8));
+		entry.lsn = lsn;
+		return entry;
+	}
+
+	// An account as the database will have it once its acknowledged entries are applied; guarded by
+	// itself
+	private static class Projection {
+		boolean active;
+		long balance;
+		// acknowledged entries not applied yet; while 0 the row is current and is read again
+		int inFlight;
+	}
+
+	private static class Entry {
+		final byte op;
+		final int account;
+		final int receiver;
+		final long amount;
+		final String pinGuard;
+		final CompletableFuture<TransactionResult> result = new CompletableFuture<>();
+		TransactionResult acknowledgement;
+		// 0 until written to the journal
+		long lsn;
+		// counted in its accounts' projections
+		boolean projected;
+
+		Entry(byte op, int account, int receiver, long amount, String pinGuard) {
+			this.op = op;
+			this.account = account;
+			this.receiver = receiver;
+			this.amount = amount;
+			this.pinGuard = pinGuard;
+		}
+
+		// An operation answered before reaching the journal
+		static Entry answered(TransactionResult result) {
+			Entry entry = new Entry((byte) 0, NO_ACCOUNT, NO_ACCOUNT, 0, null);
+			entry.acknowledgement = result;
+			entry.result.complete(result);
+			return entry;
+		}
+	}
+}
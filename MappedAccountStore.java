@@ -0,0 +1,832 @@
+package com.testlab.model;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+
+import com.testlab.model.TransactionResult.Status;
+
+// An AccountStore whose balances and flags live off-heap in a memory-mapped file of fixed-size
+// records, so tens of millions of accounts cost the garbage collector nothing but the slot index (an
+// int[] it never has to trace). The file survives restarts: when a store is started for a pool its
+// balances are the ones getAccountBalance and the console's money operations use in place of
+// account.balance, which is only read to create the file and to add accounts opened since.
+//
+// Layout, little-endian:
+//   page 0       header: magic, version, record size, capacity, stripes, size, clean-shutdown flag and
+//                a CRC32 of the fields before it
+//   next pages   one transfer intent per lock stripe (see transfer)
+//   then         capacity records of 32 bytes: account number, flags, reserved (zero), check word, balance
+//
+// PINs never reach the file. As in InMemoryAccountStore, a PIN is checked against its stored hash on
+// first use (with no stripe held) and then kept, but only in an int[] on the heap; start() reloads
+// the hashes from the database, so after a restart each PIN is verified the slow way once more.
+// (Version 1 files kept the learned PIN in the reserved word; it is wiped when such a file is opened.)
+//
+// Every field is read and written through VarHandles over the mapping, so a balance is always a
+// whole 8-byte word to readers on other threads and to the file. Updates to an account happen under
+// its lock stripe; getBalance reads without locking. Pages written since the last flush are tracked
+// in a bitmap and forced to disk every flushMillis, or as soon as flushPages of them pile up.
+//
+// Recovery runs on every open. It checks the header (rebuilding the account count from the records if
+// the CRC does not match), rolls back any transfer that was interrupted between its two balance
+// writes, and quarantines records that cannot be trusted (bad check word, unknown flags, a negative
+// balance or a duplicate account number): they are kept in the file for inspection but are no longer
+// reachable. After a process crash nothing is lost, since the page cache holds every write; after a
+// power failure each page is as of its last flush.
+public class MappedAccountStore implements AccountStore, AutoCloseable {
+
+	public static final int DEFAULT_STRIPES = 1024;
+	public static final long DEFAULT_FLUSH_MILLIS = 1000;
+	public static final int DEFAULT_FLUSH_PAGES = 4096;
+
+	private static final long MAGIC = 0x524F5453_4B4E4142L; // "BANKSTOR"
+	private static final int VERSION = 2;
+	private static final int VERSION_WITH_PINS = 1;
+	private static final int PAGE = 4096;
+
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_VERSION = 8;
+	private static final int HEADER_RECORD_SIZE = 12;
+	private static final int HEADER_CAPACITY = 16;
+	private static final int HEADER_STRIPES = 20;
+	private static final int HEADER_SIZE = 24;
+	private static final int HEADER_CLEAN = 28;
+	private static final int HEADER_CRC = 32;
+
+	private static final int INTENT_SIZE = 40;
+	// The receiver's slot + 1 while a transfer is between its two balance writes, else 0
+	private static final int INTENT_STATE = 0;
+	private static final int INTENT_SENDER = 4;
+	private static final int INTENT_AMOUNT = 8;
+	private static final int INTENT_SENDER_BEFORE = 16;
+	private static final int INTENT_RECEIVER_BEFORE = 24;
+	private static final int INTENT_RECEIVER = 32;
+
+	private static final int RECORD_SIZE = 32;
+	private static final int RECORD_ACCOUNT = 0;
+	private static final int RECORD_FLAGS = 4;
+	private static final int RECORD_RESERVED = 8;
+	private static final int RECORD_CHECK = 12;
+	private static final int RECORD_BALANCE = 16;
+
+	// From checkAccount: the PIN must be checked against its hash (see learnPin) before deciding
+	private static final TransactionResult LEARN_PIN = TransactionResult.failure(Status.INVALID_PIN, "Incorrect PIN.");
+
+	private static final int OCCUPIED = 1;
+	private static final int ACTIVE = 2;
+	private static final int QUARANTINED = 4;
+
+	private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class,
+			ByteOrder.LITTLE_ENDIAN);
+
+	private static final Map<ConnectionPool, MappedAccountStore> STORES = new ConcurrentHashMap<>();
+
+	private final Path file;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private final int stripes;
+	private final int recordsOffset;
+	// slot + 1 per bucket, 0 for empty
+	private final int[] index;
+	private final Object[] locks;
+	// Heap only, by slot: the learned PIN, NO_PIN or UNLEARNED_PIN (see InMemoryAccountStore); read and
+	// written under the slot's stripe
+	private final int[] pins;
+	// Stored PIN hashes for slots whose PIN has not been learned yet; start reloads them from the database
+	private final Map<Integer, String> pinHashes = new ConcurrentHashMap<>();
+	// null unless the store was started for a pool; translates userIds
+	private AccountIdentityCache identities;
+
+	// One bit per page written since it was last forced
+	private final AtomicLongArray dirty;
+	private final AtomicInteger dirtyPages = new AtomicInteger();
+	private final AtomicBoolean flushQueued = new AtomicBoolean();
+	private final int flushPages;
+	private volatile ScheduledExecutorService flusher;
+
+	private volatile int size;
+
+	// What recovery found when the file was opened
+	private boolean cleanShutdown;
+	private boolean headerRepaired;
+	private int rolledBack;
+	private int quarantined;
+
+	private MappedAccountStore(Path file, FileChannel channel, int capacity, int stripes, boolean created,
+			int flushPages) throws IOException {
+		this.file = file;
+		this.channel = channel;
+		this.capacity = capacity;
+		this.stripes = stripes;
+		this.recordsOffset = recordsOffset(stripes);
+		this.flushPages = flushPages;
+		long length = fileLength(capacity, stripes);
+		this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+		int pages = (int) ((length + PAGE - 1) / PAGE);
+		this.dirty = new AtomicLongArray((pages + 63) / 64);
+		int buckets = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+		this.index = new int[buckets];
+		this.locks = new Object[stripes];
+		for (int i = 0; i < stripes; i++) {
+			locks[i] = new Object();
+		}
+		this.pins = new int[capacity];
+		Arrays.fill(pins, InMemoryAccountStore.UNLEARNED_PIN);
+		if (created) {
+			cleanShutdown = true;
+			writeHeader(false);
+			buffer.force();
+		}
+	}
+
+	// Opens the store in file, creating it with room for capacity accounts if it does not exist. An
+	// existing file keeps the capacity it was created with and is recovered before it is returned.
+	public static MappedAccountStore open(Path file, int capacity) throws IOException {
+		return open(file, capacity, DEFAULT_STRIPES, DEFAULT_FLUSH_PAGES);
+	}
+
+	public static MappedAccountStore open(Path file, int capacity, int stripes, int flushPages) throws IOException {
+		if (Files.exists(file)) {
+			return openExisting(file, flushPages);
+		}
+		if (capacity <= 0 || stripes <= 0 || Integer.bitCount(stripes) != 1) {
+			throw new IllegalArgumentException("Capacity must be positive and stripes a power of two");
+		}
+		if (fileLength(capacity, stripes) > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Capacity " + capacity + " does not fit in one mapping");
+		}
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			return new MappedAccountStore(file, channel, capacity, stripes, true, flushPages);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static MappedAccountStore openExisting(Path file, int flushPages) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long length = channel.size();
+			if (length < PAGE) {
+				throw new IOException(file + " is too short to be an account store");
+			}
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, PAGE);
+			if ((long) LONG.get(header, HEADER_MAGIC) != MAGIC) {
+				throw new IOException(file + " is not an account store");
+			}
+			int version = (int) INT.get(header, HEADER_VERSION);
+			int recordSize = (int) INT.get(header, HEADER_RECORD_SIZE);
+			if ((version != VERSION && version != VERSION_WITH_PINS) || recordSize != RECORD_SIZE) {
+				throw new IOException(file + " has version " + version + " and " + recordSize
+						+ "-byte records; this build reads version " + VERSION);
+			}
+			int capacity = (int) INT.get(header, HEADER_CAPACITY);
+			int stripes = (int) INT.get(header, HEADER_STRIPES);
+			// Even with a bad CRC the layout can be trusted if it matches the file exactly
+			if (capacity <= 0 || stripes <= 0 || Integer.bitCount(stripes) != 1
+					|| fileLength(capacity, stripes) != length) {
+				throw new IOException(file + " has a damaged header that does not match its length; "
+						+ "restore it from a backup or delete it to reload from the database");
+			}
+			boolean headerValid = (int) INT.get(header, HEADER_CRC) == headerCrc(header);
+			MappedAccountStore store = new MappedAccountStore(file, channel, capacity, stripes, false, flushPages);
+			store.recover(headerValid, version == VERSION_WITH_PINS);
+			return store;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	// Opens (or creates) the store for this pool and makes BankOperations use it: a new file is filled
+	// from the account table, an existing one gains the accounts opened since it was written and the
+	// PIN hashes it needs. Accounts opened, PINs changed and accounts deactivated in the database
+	// afterwards arrive through the AccountStore hooks. headroom is how many accounts a new file can
+	// take beyond today's.
+	public static synchronized MappedAccountStore start(ConnectionPool pool, Path file, int headroom)
+			throws IOException, SQLException {
+		MappedAccountStore existing = STORES.get(pool);
+		if (existing != null) {
+			return existing;
+		}
+		MappedAccountStore store;
+		try (Connection connection = pool.getConnection(); Statement st = connection.createStatement()) {
+			int count;
+			try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM account")) {
+				rs.next();
+				count = rs.getInt(1);
+			}
+			store = open(file, count + Math.max(1, headroom));
+			try (ResultSet rs = st.executeQuery(
+					"SELECT accountnumber, balance, transaction_pin, isActive FROM account")) {
+				while (rs.next()) {
+					store.sync(rs.getInt("accountnumber"), rs.getLong("balance"), rs.getString("transaction_pin"),
+							rs.getBoolean("isActive"));
+				}
+			}
+		}
+		store.identities = AccountIdentityCache.forPool(pool);
+		store.startFlusher(Long.getLong("bank.store.flushMillis", DEFAULT_FLUSH_MILLIS));
+		STORES.put(pool, store);
+		return store;
+	}
+
+	// The store started for this pool, or null
+	public static MappedAccountStore forPool(ConnectionPool pool) {
+		return STORES.get(pool);
+	}
+
+	// Adds an account with a 4-digit PIN (or null for none). The PIN is only held in memory: after the
+	// file is reopened such an account needs it again through onPinChanged.
+	public void open(int accountNumber, long balance, String pin, boolean isActive) {
+		if (pin != null && InMemoryAccountStore.parsePin(pin) == InMemoryAccountStore.NO_PIN) {
+			throw new IllegalArgumentException("PIN must be exactly 4 digits");
+		}
+		if (balance < 0) {
+			throw new IllegalArgumentException("Opening balance must not be negative");
+		}
+		add(accountNumber, balance, pin, isActive);
+	}
+
+	// Brings an account in from the database: added if new; otherwise only its stored PIN is taken
+	private void sync(int accountNumber, long balance, String storedPin, boolean isActive) {
+		int slot = slotOf(accountNumber);
+		if (slot < 0) {
+			add(accountNumber, Math.max(0, balance), storedPin, isActive);
+		} else {
+			synchronized (lockFor(slot)) {
+				setStoredPin(slot, storedPin);
+			}
+		}
+	}
+
+	private synchronized void add(int accountNumber, long balance, String storedPin, boolean isActive) {
+		if (slotOf(accountNumber) >= 0) {
+			throw new IllegalArgumentException("Account " + accountNumber + " already exists");
+		}
+		int slot = size;
+		if (slot == capacity) {
+			throw new IllegalStateException(file + " is full (" + capacity + " accounts)");
+		}
+		setStoredPin(slot, storedPin);
+		int at = record(slot);
+		INT.set(buffer, at + RECORD_ACCOUNT, accountNumber);
+		INT.set(buffer, at + RECORD_RESERVED, 0);
+		INT.set(buffer, at + RECORD_CHECK, check(accountNumber));
+		LONG.set(buffer, at + RECORD_BALANCE, balance);
+		// the flags make the record count as written, so they go last
+		INT.setVolatile(buffer, at + RECORD_FLAGS, isActive ? OCCUPIED | ACTIVE : OCCUPIED);
+		insert(accountNumber, slot);
+		size = slot + 1;
+		writeHeader(false);
+		markDirty(at);
+	}
+
+	// Called with the slot's stripe held, or before the slot is published: a 4-digit value is the PIN
+	// itself, anything else a hash to check on first use
+	private void setStoredPin(int slot, String storedPin) {
+		int pin = storedPin == null ? InMemoryAccountStore.NO_PIN : InMemoryAccountStore.parsePin(storedPin);
+		pinHashes.remove(slot);
+		if (pin == InMemoryAccountStore.NO_PIN && storedPin != null) {
+			pin = InMemoryAccountStore.UNLEARNED_PIN;
+			pinHashes.put(slot, storedPin);
+		}
+		pins[slot] = pin;
+	}
+
+	// Already present when start() read the row after it was committed
+	@Override
+	public synchronized void onOpened(int accountNumber, String userId, long balance, String storedPin,
+			boolean isActive) {
+		if (slotOf(accountNumber) >= 0) {
+			return;
+		}
+		if (size == capacity) {
+			System.out.println(file + " is full; account " + accountNumber + " was not added.");
+			return;
+		}
+		add(accountNumber, Math.max(0, balance), storedPin, isActive);
+	}
+
+	@Override
+	public void onPinChanged(int accountNumber, String storedPin) {
+		int slot = slotOf(accountNumber);
+		if (slot < 0) {
+			return;
+		}
+		synchronized (lockFor(slot)) {
+			setStoredPin(slot, storedPin);
+		}
+	}
+
+	@Override
+	public void onActiveChanged(int accountNumber, boolean isActive) {
+		if (slotOf(accountNumber) >= 0) {
+			setActive(accountNumber, isActive);
+		}
+	}
+
+	public void setActive(int accountNumber, boolean isActive) {
+		int slot = slotOf(accountNumber);
+		if (slot < 0) {
+			throw new IllegalArgumentException("No account " + accountNumber);
+		}
+		int at = record(slot) + RECORD_FLAGS;
+		synchronized (lockFor(slot)) {
+			int flags = (int) INT.getVolatile(buffer, at);
+			INT.setVolatile(buffer, at, isActive ? flags | ACTIVE : flags & ~ACTIVE);
+		}
+		markDirty(at);
+	}
+
+	// The balance whether or not the account is active, or -1 if there is no such account; the
+	// getAccountBalance contract
+	public long balanceOf(int accountNumber) {
+		int slot = slotOf(accountNumber);
+		return slot < 0 ? -1 : balance(slot);
+	}
+
+	@Override
+	public TransactionResult getBalance(int accountNumber) {
+		int slot = slotOf(accountNumber);
+		if (slot < 0) {
+			return BankService.notFound();
+		}
+		if (!isActive(slot)) {
+			return BankService.inactive();
+		}
+		return TransactionResult.success(0, balance(slot));
+	}
+
+	@Override
+	public TransactionResult deposit(int accountNumber, long amount, String pin) {
+		if (!BankService.isValidAmount(amount)) {
+			return BankService.invalidAmount();
+		}
+		int slot = slotOf(accountNumber);
+		if (slot < 0) {
+			return BankService.notFound();
+		}
+		long balance;
+		while (true) {
+			synchronized (lockFor(slot)) {
+				TransactionResult refused = checkAccount(slot, pin, 0);
+				if (refused == null) {
+					balance = Math.addExact(balance(slot), amount);
+					setBalance(slot, balance);
+					break;
+				}
+				if (refused != LEARN_PIN) {
+					return refused;
+				}
+			}
+			TransactionResult refused = learnPin(slot, pin);
+			if (refused != null) {
+				return refused;
+			}
+		}
+		markDirty(record(slot));
+		return TransactionResult.success(amount, balance);
+	}
+
+	@Override
+	public TransactionResult withdraw(int accountNumber, long amount, String pin) {
+		if (!BankService.isValidAmount(amount)) {
+			return BankService.invalidAmount();
+		}
+		int slot = slotOf(accountNumber);
+		if (slot < 0) {
+			return BankService.notFound();
+		}
+		long balance;
+		while (true) {
+			synchronized (lockFor(slot)) {
+				TransactionResult refused = checkAccount(slot, pin, amount);
+				if (refused == null) {
+					balance = balance(slot) - amount;
+					setBalance(slot, balance);
+					break;
+				}
+				if (refused != LEARN_PIN) {
+					return refused;
+				}
+			}
+			TransactionResult refused = learnPin(slot, pin);
+			if (refused != null) {
+				return refused;
+			}
+		}
+		markDirty(record(slot));
+		return TransactionResult.success(amount, balance);
+	}
+
+	// Both balances change under both stripe locks, with the stripe's intent record holding the old
+	// balances until both writes are done, so a crash in between is rolled back on the next open
+	@Override
+	public TransactionResult transfer(int senderAccountNumber, int receiverAccountNumber, long amount, String pin) {
+		if (!BankService.isValidAmount(amount)) {
+			return BankService.invalidAmount();
+		}
+		if (senderAccountNumber == receiverAccountNumber) {
+			return BankService.sameAccount();
+		}
+		int sender = slotOf(senderAccountNumber);
+		if (sender < 0) {
+			return BankService.notFound();
+		}
+		int receiver = slotOf(receiverAccountNumber);
+		if (receiver < 0) {
+			return TransactionResult.failure(Status.RECEIVER_NOT_FOUND, "Receiver account not found!");
+		}
+		int first = Math.min(stripe(sender), stripe(receiver));
+		int second = Math.max(stripe(sender), stripe(receiver));
+		int intent = intent(first);
+		long senderBalance;
+		while (true) {
+			synchronized (locks[first]) {
+				synchronized (locks[second]) {
+					TransactionResult refused = checkAccount(sender, pin, amount);
+					if (refused == null) {
+						if (!isActive(receiver)) {
+							return TransactionResult.failure(Status.RECEIVER_INACTIVE,
+									"Receiver account is inactive. Transaction not allowed.");
+						}
+						long senderBefore = balance(sender);
+						long receiverBefore = balance(receiver);
+						senderBalance = senderBefore - amount;
+						long receiverBalance = Math.addExact(receiverBefore, amount);
+						INT.set(buffer, intent + INTENT_SENDER, sender);
+						INT.set(buffer, intent + INTENT_RECEIVER, receiver);
+						LONG.set(buffer, intent + INTENT_AMOUNT, amount);
+						LONG.set(buffer, intent + INTENT_SENDER_BEFORE, senderBefore);
+						LONG.set(buffer, intent + INTENT_RECEIVER_BEFORE, receiverBefore);
+						INT.setVolatile(buffer, intent + INTENT_STATE, receiver + 1);
+						setBalance(sender, senderBalance);
+						setBalance(receiver, receiverBalance);
+						INT.setVolatile(buffer, intent + INTENT_STATE, 0);
+						break;
+					}
+					if (refused != LEARN_PIN) {
+						return refused;
+					}
+				}
+			}
+			TransactionResult refused = learnPin(sender, pin);
+			if (refused != null) {
+				return refused;
+			}
+		}
+		markDirty(record(sender));
+		markDirty(record(receiver));
+		markDirty(intent);
+		return TransactionResult.success(amount, senderBalance);
+	}
+
+	@Override
+	public int accountNumberOf(String userId) throws SQLException {
+		if (identities == null) {
+			return NO_ACCOUNT;
+		}
+		AccountIdentityCache.Identity identity = identities.get(userId);
+		if (identity == null || slotOf(identity.getAccountNumber()) < 0) {
+			return NO_ACCOUNT;
+		}
+		return identity.getAccountNumber();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	// Sum of all reachable balances, exact when nothing is moving money
+	public long totalBalance() {
+		long total = 0;
+		int n = size;
+		for (int slot = 0; slot < n; slot++) {
+			if (((int) INT.getVolatile(buffer, record(slot) + RECORD_FLAGS) & QUARANTINED) == 0) {
+				total += balance(slot);
+			}
+		}
+		return total;
+	}
+
+	public boolean wasCleanShutdown() {
+		return cleanShutdown;
+	}
+
+	public boolean wasHeaderRepaired() {
+		return headerRepaired;
+	}
+
+	public int getRolledBackTransfers() {
+		return rolledBack;
+	}
+
+	public int getQuarantinedRecords() {
+		return quarantined;
+	}
+
+	public String recoverySummary() {
+		if (cleanShutdown && !headerRepaired && rolledBack == 0 && quarantined == 0) {
+			return file + ": " + size + " accounts, closed cleanly";
+		}
+		return file + ": " + size + " accounts" + (cleanShutdown ? "" : ", not closed cleanly")
+				+ (headerRepaired ? ", header rebuilt" : "") + ", " + rolledBack
+				+ " interrupted transfers rolled back, " + quarantined + " damaged records quarantined";
+	}
+
+	// Forces every page written since the last flush; pages next to each other go in one call
+	public void flush() {
+		flushQueued.set(false);
+		long length = buffer.capacity();
+		for (int word = 0; word < dirty.length(); word++) {
+			long bits = dirty.getAndSet(word, 0);
+			while (bits != 0) {
+				int firstPage = word * 64 + Long.numberOfTrailingZeros(bits);
+				int run = Long.numberOfTrailingZeros(~(bits >>> Long.numberOfTrailingZeros(bits)));
+				bits &= run == 64 ? 0 : ~(((1L << run) - 1) << Long.numberOfTrailingZeros(bits));
+				long from = (long) firstPage * PAGE;
+				buffer.force((int) from, (int) Math.min((long) run * PAGE, length - from));
+				dirtyPages.addAndGet(-run);
+			}
+		}
+	}
+
+	// Flushes every flushMillis on a daemon thread, in addition to the flushPages trigger
+	public synchronized void startFlusher(long flushMillis) {
+		if (flusher != null) {
+			return;
+		}
+		flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "account-store-flush");
+			t.setDaemon(true);
+			return t;
+		});
+		if (flushMillis > 0) {
+			flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// Flushes everything and marks the file as cleanly closed. The mapping itself is released when
+	// the buffer is collected; the store must not be used afterwards.
+	@Override
+	public synchronized void close() throws IOException {
+		if (flusher != null) {
+			flusher.shutdownNow();
+			flusher = null;
+		}
+		STORES.values().remove(this);
+		writeHeader(true);
+		flush();
+		buffer.force();
+		channel.close();
+	}
+
+	private void recover(boolean headerValid, boolean withPins) {
+		int claimed = (int) INT.get(buffer, HEADER_SIZE);
+		cleanShutdown = headerValid && (int) INT.get(buffer, HEADER_CLEAN) == 1;
+		if (!headerValid || claimed < 0 || claimed > capacity) {
+			headerRepaired = true;
+			claimed = 0;
+			for (int slot = capacity - 1; slot >= 0; slot--) {
+				if ((int) INT.get(buffer, record(slot) + RECORD_FLAGS) != 0) {
+					claimed = slot + 1;
+					break;
+				}
+			}
+		}
+		// Transfers cut off between the intent and clearing it: both slots were locked throughout, so
+		// the balances before the transfer are still the right ones to restore
+		for (int stripe = 0; stripe < stripes; stripe++) {
+			int intent = intent(stripe);
+			int state = (int) INT.get(buffer, intent + INTENT_STATE);
+			if (state == 0) {
+				continue;
+			}
+			int sender = (int) INT.get(buffer, intent + INTENT_SENDER);
+			int receiver = (int) INT.get(buffer, intent + INTENT_RECEIVER);
+			if (state == receiver + 1 && sender >= 0 && sender < claimed && receiver >= 0 && receiver < claimed) {
+				setBalance(sender, (long) LONG.get(buffer, intent + INTENT_SENDER_BEFORE));
+				setBalance(receiver, (long) LONG.get(buffer, intent + INTENT_RECEIVER_BEFORE));
+				rolledBack++;
+			}
+			INT.set(buffer, intent + INTENT_STATE, 0);
+		}
+		if (withPins) {
+			for (int slot = 0; slot < capacity; slot++) {
+				INT.set(buffer, record(slot) + RECORD_RESERVED, 0);
+			}
+		}
+		for (int slot = 0; slot < claimed; slot++) {
+			int at = record(slot);
+			int flags = (int) INT.get(buffer, at + RECORD_FLAGS);
+			if ((flags & QUARANTINED) != 0) {
+				continue;
+			}
+			int accountNumber = (int) INT.get(buffer, at + RECORD_ACCOUNT);
+			boolean valid = (flags & OCCUPIED) != 0 && (flags & ~(OCCUPIED | ACTIVE)) == 0
+					&& (int) INT.get(buffer, at + RECORD_CHECK) == check(accountNumber)
+					&& (long) LONG.get(buffer, at + RECORD_BALANCE) >= 0
+					&& slotOf(accountNumber) < 0;
+			if (valid) {
+				insert(accountNumber, slot);
+			} else {
+				INT.set(buffer, at + RECORD_FLAGS, flags | OCCUPIED | QUARANTINED);
+				quarantined++;
+				System.out.println("Quarantined damaged record " + slot + " (account " + accountNumber + ") in "
+						+ file);
+			}
+		}
+		size = claimed;
+		writeHeader(false);
+		buffer.force();
+	}
+
+	// Called with the slot's stripe held; null when the operation may go ahead, LEARN_PIN when the
+	// caller must call learnPin (with the stripes released) and check again
+	private TransactionResult checkAccount(int slot, String pin, long requiredBalance) {
+		if (!isActive(slot)) {
+			return BankService.inactive();
+		}
+		int entered = InMemoryAccountStore.parsePin(pin);
+		if (entered != InMemoryAccountStore.NO_PIN && pins[slot] == InMemoryAccountStore.UNLEARNED_PIN) {
+			return LEARN_PIN;
+		}
+		if (entered == InMemoryAccountStore.NO_PIN || pins[slot] != entered) {
+			return TransactionResult.failure(Status.INVALID_PIN, "Incorrect PIN.");
+		}
+		long balance = balance(slot);
+		if (balance < requiredBalance) {
+			return TransactionResult.insufficientFunds(balance);
+		}
+		return null;
+	}
+
+	// As InMemoryAccountStore.learnPin: the slow check runs with no stripe held, and the PIN is kept
+	// only if the stored hash did not change meanwhile. null when the caller should check again.
+	private TransactionResult learnPin(int slot, String pin) {
+		String hash = pinHashes.get(slot);
+		if (hash == null) {
+			synchronized (lockFor(slot)) {
+				// learned or replaced meanwhile, unless no PIN was given since the file was opened (see open)
+				if (pins[slot] != InMemoryAccountStore.UNLEARNED_PIN || pinHashes.containsKey(slot)) {
+					return null;
+				}
+			}
+			return TransactionResult.failure(Status.INVALID_PIN, "Incorrect PIN.");
+		}
+		try {
+			if (!CredentialHasher.get().verify(pin, hash)) {
+				return TransactionResult.failure(Status.INVALID_PIN, "Incorrect PIN.");
+			}
+		} catch (SQLException e) {
+			return InMemoryAccountStore.pinCheckUnavailable();
+		}
+		synchronized (lockFor(slot)) {
+			if (hash.equals(pinHashes.get(slot))) {
+				pins[slot] = InMemoryAccountStore.parsePin(pin);
+				pinHashes.remove(slot);
+			}
+		}
+		return null;
+	}
+
+	private boolean isActive(int slot) {
+		return ((int) INT.getVolatile(buffer, record(slot) + RECORD_FLAGS) & ACTIVE) != 0;
+	}
+
+	private long balance(int slot) {
+		return (long) LONG.getVolatile(buffer, record(slot) + RECORD_BALANCE);
+	}
+
+	private void setBalance(int slot, long balance) {
+		LONG.setVolatile(buffer, record(slot) + RECORD_BALANCE, balance);
+	}
+
+	private void writeHeader(boolean clean) {
+		LONG.set(buffer, HEADER_MAGIC, MAGIC);
+		INT.set(buffer, HEADER_VERSION, VERSION);
+		INT.set(buffer, HEADER_RECORD_SIZE, RECORD_SIZE);
+		INT.set(buffer, HEADER_CAPACITY, capacity);
+		INT.set(buffer, HEADER_STRIPES, stripes);
+		INT.set(buffer, HEADER_SIZE, size);
+		INT.set(buffer, HEADER_CLEAN, clean ? 1 : 0);
+		INT.setVolatile(buffer, HEADER_CRC, headerCrc(buffer));
+		markDirty(0);
+	}
+
+	private static int headerCrc(ByteBuffer header) {
+		CRC32 crc = new CRC32();
+		crc.update(header.duplicate().position(0).limit(HEADER_CRC));
+		return (int) crc.getValue();
+	}
+
+	private void markDirty(int offset) {
+		int page = offset / PAGE;
+		int word = page >>> 6;
+		long bit = 1L << (page & 63);
+		if ((dirty.get(word) & bit) != 0) {
+			return;
+		}
+		if ((dirty.getAndAccumulate(word, bit, (a, b) -> a | b) & bit) != 0) {
+			return;
+		}
+		ScheduledExecutorService background = flusher;
+		if (dirtyPages.incrementAndGet() >= flushPages && background != null && flushQueued.compareAndSet(false, true)) {
+			background.execute(this::flushQuietly);
+		}
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (RuntimeException e) {
+			System.out.println("Could not flush " + file + ": " + e.getMessage());
+		}
+	}
+
+	private int slotOf(int accountNumber) {
+		int mask = index.length - 1;
+		for (int i = InMemoryAccountStore.mix(accountNumber) & mask;; i = (i + 1) & mask) {
+			int entry = index[i];
+			if (entry == 0) {
+				return -1;
+			}
+			if ((int) INT.get(buffer, record(entry - 1) + RECORD_ACCOUNT) == accountNumber) {
+				return entry - 1;
+			}
+		}
+	}
+
+	private void insert(int accountNumber, int slot) {
+		int mask = index.length - 1;
+		int i = InMemoryAccountStore.mix(accountNumber) & mask;
+		while (index[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		index[i] = slot + 1;
+	}
+
+	private int record(int slot) {
+		return recordsOffset + slot * RECORD_SIZE;
+	}
+
+	private int intent(int stripe) {
+		return PAGE + stripe * INTENT_SIZE;
+	}
+
+	private int stripe(int slot) {
+		return slot & (stripes - 1);
+	}
+
+	private Object lockFor(int slot) {
+		return locks[stripe(slot)];
+	}
+
+	// Tells a record from zeroed or stray bytes; the account number is the only field that never changes
+	private static int check(int accountNumber) {
+		return InMemoryAccountStore.mix(accountNumber) ^ 0x5EED5EED;
+	}
+
+	private static int recordsOffset(int stripes) {
+		return PAGE + ((stripes * INTENT_SIZE + PAGE - 1) / PAGE) * PAGE;
+	}
+
+	private static long fileLength(int capacity, int stripes) {
+		return recordsOffset(stripes) + (long) capacity * RECORD_SIZE;
+	}
+}
@@ -0,0 +1,83 @@
+package com.testlab.model;
+
+// Money is held as a long count of paise (1 ₹ = 100 paise) everywhere: in the account and transaction
+// tables (BIGINT), in JDBC calls and in memory. Sums are exact and stay on primitive arithmetic;
+// rupee text only exists at the console and file edges, through parse and format below.
+public final class Money {
+
+	public static final long PAISE_PER_RUPEE = 100;
+
+	private Money() {
+	}
+
+	// Parses rupees with up to two decimals ("150", "150.5", "-0.75") into paise without allocating.
+	// Throws NumberFormatException for anything else, including more than two decimals and overflow.
+	public static long parse(CharSequence text) {
+		int start = 0;
+		int end = text.length();
+		while (start < end && Character.isWhitespace(text.charAt(start))) {
+			start++;
+		}
+		while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+			end--;
+		}
+		boolean negative = false;
+		if (start < end && (text.charAt(start) == '-' || text.charAt(start) == '+')) {
+			negative = text.charAt(start) == '-';
+			start++;
+		}
+		long rupees = 0;
+		int digits = 0;
+		int i = start;
+		for (; i < end && text.charAt(i) != '.'; i++) {
+			int digit = text.charAt(i) - '0';
+			if (digit < 0 || digit > 9 || rupees > (Long.MAX_VALUE / PAISE_PER_RUPEE - 1 - digit) / 10) {
+				throw invalid(text);
+			}
+			rupees = rupees * 10 + digit;
+			digits++;
+		}
+		long paise = 0;
+		int decimals = 0;
+		if (i < end) {
+			for (i++; i < end; i++) {
+				int digit = text.charAt(i) - '0';
+				if (digit < 0 || digit > 9 || ++decimals > 2) {
+					throw invalid(text);
+				}
+				paise = paise * 10 + digit;
+			}
+			if (decimals == 1) {
+				paise *= 10;
+			}
+		}
+		if (digits == 0 && decimals == 0) {
+			throw invalid(text);
+		}
+		long value = rupees * PAISE_PER_RUPEE + paise;
+		return negative ? -value : value;
+	}
+
+	public static String format(long paise) {
+		return appendTo(new StringBuilder(24), paise).toString();
+	}
+
+	// Appends "-1234.05"-style rupees to sb; no intermediate strings, so it is safe in report loops
+	public static StringBuilder appendTo(StringBuilder sb, long paise) {
+		long rupees = paise / PAISE_PER_RUPEE;
+		int fraction = (int) Math.abs(paise % PAISE_PER_RUPEE);
+		if (paise < 0) {
+			sb.append('-');
+			rupees = -rupees;
+		}
+		sb.append(rupees).append('.');
+		if (fraction < 10) {
+			sb.append('0');
+		}
+		return sb.append(fraction);
+	}
+
+	private static NumberFormatException invalid(CharSequence text) {
+		return new NumberFormatException("Invalid amount: " + text);
+	}
+}
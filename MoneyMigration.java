@@ -0,0 +1,48 @@
+package com.testlab.model;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+
+// Converts account.balance and transaction.amount from DOUBLE rupees to BIGINT paise (see Money).
+// Each column is copied, scaled, into a shadow column which then replaces it in a single ALTER, so
+// a run that dies part way is simply repeated at the next startup. BIGINT columns are left alone.
+public class MoneyMigration {
+
+	// Schema migration 2 (see SchemaMigrator)
+	public static void migrate(Connection connection) throws SQLException {
+		migrateColumn(connection, "account", "balance", "BIGINT NOT NULL DEFAULT 0");
+		migrateColumn(connection, "transaction", "amount", "BIGINT");
+	}
+
+	private static void migrateColumn(Connection connection, String table, String column, String type)
+			throws SQLException {
+		Integer current = columnType(connection, table, column);
+		if (current == null || current == Types.BIGINT) {
+			return;
+		}
+		String shadow = column + "_paise";
+		System.out.println("Migrating " + table + "." + column + " to paise...");
+		try (Statement st = connection.createStatement()) {
+			if (columnType(connection, table, shadow) == null) {
+				st.executeUpdate("ALTER TABLE " + table + " ADD COLUMN " + shadow + " " + type);
+			}
+			// Recomputed from the original column on every run, so repeating it is harmless
+			st.executeUpdate("UPDATE " + table + " SET " + shadow + " = ROUND(" + column + " * "
+					+ Money.PAISE_PER_RUPEE + ")");
+			st.executeUpdate("ALTER TABLE " + table + " DROP COLUMN " + column + ", RENAME COLUMN " + shadow
+					+ " TO " + column);
+		}
+	}
+
+	// The JDBC type of the column, or null if the table or column does not exist
+	private static Integer columnType(Connection connection, String table, String column) throws SQLException {
+		DatabaseMetaData meta = connection.getMetaData();
+		try (ResultSet rs = meta.getColumns(connection.getCatalog(), null, table, column)) {
+			return rs.next() ? rs.getInt("DATA_TYPE") : null;
+		}
+	}
+}
@@ -0,0 +1,425 @@
+package com.testlab.model;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Per-operation latency, SQL round trips and SQL errors.
+//
+//   return OperationMetrics.call("BankService.deposit", () -> ...);
+//
+// times the block into that operation's histogram (and counts it as failed if it throws). The pooled connection and statement proxies
+// report every execute, commit and rollback (and every SQLException, by SQLState) to all scopes open
+// on the calling thread, so an operation also gets its round-trip count and the time it spent
+// waiting on the database. Scopes go inside the operations, around their database work, never around
+// console prompts, so wall time does not include the user typing. Work handed to another thread (the
+// commit coalescer, the journal applier) shows up in wall time only.
+//
+// Each operation is published as an MXBean named com.testlab.bank:type=Operation,name=<operation>,
+// and startDump appends a text report of all of them to a file every few seconds.
+public class OperationMetrics {
+
+	public static final String JMX_DOMAIN = "com.testlab.bank";
+
+	private static final Map<String, Operation> OPERATIONS = new ConcurrentHashMap<>();
+	private static final ThreadLocal<Scope> CURRENT = new ThreadLocal<>();
+
+	// Round trips and errors whether or not an operation was open
+	private static final LongAdder ROUND_TRIPS = new LongAdder();
+	private static final LongAdder UNATTRIBUTED = new LongAdder();
+	private static final Map<String, LongAdder> ERRORS = new ConcurrentHashMap<>();
+
+	private static ScheduledExecutorService dumper;
+
+	private OperationMetrics() {
+	}
+
+	public static Scope start(String operation) {
+		Scope scope = new Scope(forName(operation), CURRENT.get());
+		CURRENT.set(scope);
+		return scope;
+	}
+
+	public static <E extends Exception> void run(String operation, Task<E> task) throws E {
+		try (Scope scope = start(operation)) {
+			try {
+				task.run();
+			} catch (Exception | Error e) {
+				scope.failed();
+				throw e;
+			}
+		}
+	}
+
+	public static <T, E extends Exception> T call(String operation, Call<T, E> call) throws E {
+		try (Scope scope = start(operation)) {
+			try {
+				return call.call();
+			} catch (Exception | Error e) {
+				scope.failed();
+				throw e;
+			}
+		}
+	}
+
+	public static Operation forName(String operation) {
+		Operation existing = OPERATIONS.get(operation);
+		if (existing != null) {
+			return existing;
+		}
+		return OPERATIONS.computeIfAbsent(operation, name -> {
+			Operation created = new Operation(name);
+			register(created);
+			return created;
+		});
+	}
+
+	public static Map<String, Operation> getOperations() {
+		return new TreeMap<>(OPERATIONS);
+	}
+
+	public static long getRoundTrips() {
+		return ROUND_TRIPS.sum();
+	}
+
+	// Round trips made outside any operation (background threads, startup)
+	public static long getUnattributedRoundTrips() {
+		return UNATTRIBUTED.sum();
+	}
+
+	public static Map<String, Long> getErrorsBySqlState() {
+		return sums(ERRORS);
+	}
+
+	// Calls method on target, counting it as a round trip if it is one; used by the connection and
+	// statement proxies. Throws the target's own exception, not InvocationTargetException.
+	static Object invoke(Method method, Object target, Object[] args) throws Throwable {
+		boolean roundTrip = isRoundTrip(method.getName());
+		long start = roundTrip ? System.nanoTime() : 0;
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException) {
+				error((SQLException) cause);
+			}
+			throw cause;
+		} finally {
+			if (roundTrip) {
+				roundTrip(System.nanoTime() - start);
+			}
+		}
+	}
+
+	// Wraps a statement the cache does not manage so its executions are counted too; type is the
+	// Statement interface to expose (Statement, PreparedStatement or CallableStatement), and failures
+	// is told of every SQLException it throws (see StatementCache)
+	static Object counting(Statement statement, Class<?> type, Consumer<SQLException> failures) {
+		InvocationHandler handler = (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return "CountedStatement[" + statement + "]";
+			default:
+				try {
+					return invoke(method, statement, args);
+				} catch (SQLException e) {
+					failures.accept(e);
+					throw e;
+				}
+			}
+		};
+		return Proxy.newProxyInstance(OperationMetrics.class.getClassLoader(), new Class<?>[] { type }, handler);
+	}
+
+	static boolean isRoundTrip(String method) {
+		return method.startsWith("execute") || method.equals("commit") || method.equals("rollback");
+	}
+
+	static void roundTrip(long nanos) {
+		ROUND_TRIPS.increment();
+		Scope scope = CURRENT.get();
+		if (scope == null) {
+			UNATTRIBUTED.increment();
+		}
+		for (; scope != null; scope = scope.parent) {
+			scope.roundTrips++;
+			scope.dbNanos += nanos;
+		}
+	}
+
+	static void error(SQLException e) {
+		String state = stateOf(e);
+		ERRORS.computeIfAbsent(state, s -> new LongAdder()).increment();
+		for (Scope scope = CURRENT.get(); scope != null; scope = scope.parent) {
+			scope.operation.sqlError(state);
+		}
+	}
+
+	// All operations as a fixed-width table, times in microseconds
+	public static String report() {
+		StringWriter text = new StringWriter();
+		PrintWriter out = new PrintWriter(text);
+		out.printf("%-52s %9s %7s %7s %9s %9s %9s %9s %9s %9s%n", "operation", "count", "errors", "rt/op",
+				"mean", "p50", "p99", "p999", "max", "db-p99");
+		for (Operation op : getOperations().values()) {
+			out.printf("%-52s %9d %7d %7.1f %9d %9d %9d %9d %9d %9d%n", op.getName(), op.getCount(),
+					op.getErrors(), op.getMeanRoundTrips(), op.getMeanMicros(), op.getP50Micros(),
+					op.getP99Micros(), op.getP999Micros(), op.getMaxMicros(), op.getDbP99Micros());
+			Map<String, Long> states = op.getErrorsBySqlState();
+			if (!states.isEmpty()) {
+				out.printf("    SQLState errors: %s%n", states);
+			}
+		}
+		out.printf("round trips: %d (%d outside any operation), SQLState errors: %s%n", getRoundTrips(),
+				getUnattributedRoundTrips(), getErrorsBySqlState());
+		out.flush();
+		return text.toString();
+	}
+
+	// Appends report() to file every periodSeconds on a daemon thread
+	public static synchronized void startDump(Path file, long periodSeconds) {
+		if (dumper != null) {
+			return;
+		}
+		dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "operation-metrics-dump");
+			t.setDaemon(true);
+			return t;
+		});
+		dumper.scheduleAtFixedRate(() -> {
+			try {
+				Files.write(file, ("=== " + LocalDateTime.now() + " ===" + System.lineSeparator() + report())
+						.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			} catch (IOException e) {
+				System.out.println("Could not write operation metrics to " + file + ": " + e.getMessage());
+			}
+		}, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+
+	public static synchronized void stopDump() {
+		if (dumper != null) {
+			dumper.shutdownNow();
+			dumper = null;
+		}
+	}
+
+	private static void register(Operation operation) {
+		try {
+			ObjectName name = new ObjectName(JMX_DOMAIN + ":type=Operation,name=" + ObjectName.quote(operation.getName()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(operation, name);
+		} catch (JMException e) {
+			System.out.println("Could not register metrics for " + operation.getName() + ": " + e.getMessage());
+		}
+	}
+
+	private static String stateOf(SQLException e) {
+		return e.getSQLState() == null ? "none" : e.getSQLState();
+	}
+
+	private static Map<String, Long> sums(Map<String, LongAdder> adders) {
+		Map<String, Long> sums = new TreeMap<>();
+		adders.forEach((state, adder) -> sums.put(state, adder.sum()));
+		return sums;
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	// Both are generic in what they throw, so timing a block does not widen its throws clause
+	@FunctionalInterface
+	public interface Task<E extends Exception> {
+		void run() throws E;
+	}
+
+	@FunctionalInterface
+	public interface Call<T, E extends Exception> {
+		T call() throws E;
+	}
+
+	// Attributes of one operation as seen through JMX
+	public interface OperationMXBean {
+		String getName();
+
+		long getCount();
+
+		long getErrors();
+
+		Map<String, Long> getErrorsBySqlState();
+
+		long getRoundTrips();
+
+		double getMeanRoundTrips();
+
+		long getMeanMicros();
+
+		long getP50Micros();
+
+		long getP99Micros();
+
+		long getP999Micros();
+
+		long getMaxMicros();
+
+		long getDbP50Micros();
+
+		long getDbP99Micros();
+
+		long getDbP999Micros();
+	}
+
+	public static final class Operation implements OperationMXBean {
+		private final String name;
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final LatencyHistogram dbTime = new LatencyHistogram();
+		private final LongAdder roundTrips = new LongAdder();
+		// Calls that threw, plus every SQLException seen inside the operation (even if handled)
+		private final LongAdder errors = new LongAdder();
+		private final Map<String, LongAdder> errorsByState = new ConcurrentHashMap<>();
+
+		Operation(String name) {
+			this.name = name;
+		}
+
+		void sqlError(String state) {
+			errors.increment();
+			errorsByState.computeIfAbsent(state, s -> new LongAdder()).increment();
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public long getCount() {
+			return latency.getCount();
+		}
+
+		@Override
+		public long getErrors() {
+			return errors.sum();
+		}
+
+		@Override
+		public Map<String, Long> getErrorsBySqlState() {
+			return sums(errorsByState);
+		}
+
+		@Override
+		public long getRoundTrips() {
+			return roundTrips.sum();
+		}
+
+		@Override
+		public double getMeanRoundTrips() {
+			long count = latency.getCount();
+			return count == 0 ? 0 : (double) roundTrips.sum() / count;
+		}
+
+		@Override
+		public long getMeanMicros() {
+			return micros(latency.getMeanNanos());
+		}
+
+		@Override
+		public long getP50Micros() {
+			return micros(latency.percentileNanos(0.50));
+		}
+
+		@Override
+		public long getP99Micros() {
+			return micros(latency.percentileNanos(0.99));
+		}
+
+		@Override
+		public long getP999Micros() {
+			return micros(latency.percentileNanos(0.999));
+		}
+
+		@Override
+		public long getMaxMicros() {
+			return micros(latency.getMaxNanos());
+		}
+
+		@Override
+		public long getDbP50Micros() {
+			return micros(dbTime.percentileNanos(0.50));
+		}
+
+		@Override
+		public long getDbP99Micros() {
+			return micros(dbTime.percentileNanos(0.99));
+		}
+
+		@Override
+		public long getDbP999Micros() {
+			return micros(dbTime.percentileNanos(0.999));
+		}
+	}
+
+	// One timed run of an operation on the current thread; close it on the same thread
+	public static final class Scope implements AutoCloseable {
+		private final Operation operation;
+		private final Scope parent;
+		private final long started = System.nanoTime();
+		private long roundTrips;
+		private long dbNanos;
+		private boolean closed;
+
+		Scope(Operation operation, Scope parent) {
+			this.operation = operation;
+			this.parent = parent;
+		}
+
+		// The operation ended in an exception
+		public void failed() {
+			operation.errors.increment();
+		}
+
+		@Override
+		public void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			operation.latency.record(System.nanoTime() - started);
+			operation.dbTime.record(dbNanos);
+			operation.roundTrips.add(roundTrips);
+			if (CURRENT.get() == this) {
+				if (parent == null) {
+					CURRENT.remove();
+				} else {
+					CURRENT.set(parent);
+				}
+			}
+		}
+	}
+}
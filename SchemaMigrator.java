@@ -0,0 +1,163 @@
+package com.testlab.model;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+// Versioned schema for the bank database, applied at startup. Each migration runs once and is
+// recorded in schema_version; new schema changes are added to the end of MIGRATIONS, never edited
+// in place. Steps are written to be safe to repeat (IF NOT EXISTS, index existence checks), since
+// MySQL commits DDL immediately and a migration can die between its steps.
+public class SchemaMigrator {
+
+	private static final String CREATE_VERSION_TABLE = "CREATE TABLE IF NOT EXISTS schema_version (version INT PRIMARY KEY, "
+			+ "description VARCHAR(200) NOT NULL, applied_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)";
+	private static final String APPLIED_VERSIONS = "SELECT version FROM schema_version";
+	private static final String RECORD_VERSION = "INSERT INTO schema_version (version, description) VALUES (?, ?)";
+
+	private static final List<Migration> MIGRATIONS = new ArrayList<>();
+
+	static {
+		add(1, "Create account and transaction tables",
+				sql("CREATE TABLE IF NOT EXISTS account (accountnumber INT PRIMARY KEY, name VARCHAR(50), "
+						+ "middle_name VARCHAR(50), surname VARCHAR(50), balance BIGINT NOT NULL DEFAULT 0, "
+						+ "userid VARCHAR(100) NOT NULL UNIQUE, password VARCHAR(100), transaction_pin VARCHAR(10), "
+						+ "isActive INT NOT NULL DEFAULT 1)"),
+				sql("CREATE TABLE IF NOT EXISTS transaction (id BIGINT AUTO_INCREMENT PRIMARY KEY, "
+						+ "datetime TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, type VARCHAR(20), amount BIGINT, "
+						+ "source_account INT, destination_account INT, source_userid VARCHAR(100), "
+						+ "destination_userid VARCHAR(100), description VARCHAR(255))"));
+		// Databases created before money moved to paise still have DOUBLE columns
+		add(2, "Store money as BIGINT paise", MoneyMigration::migrate);
+		add(3, "Create account number sequence",
+				sql("CREATE TABLE IF NOT EXISTS account_number_sequence (name VARCHAR(50) PRIMARY KEY, "
+						+ "next_value BIGINT NOT NULL)"));
+		// One index per side of a transfer, so each half of the statement UNION ALL is an index range
+		// scan that is already in time order
+		add(4, "Index transactions by account and time",
+				index("transaction", "idx_transaction_source_account", "source_account, datetime"),
+				index("transaction", "idx_transaction_destination_account", "destination_account, datetime"),
+				index("transaction", "idx_transaction_source_userid", "source_userid, datetime"),
+				index("transaction", "idx_transaction_destination_userid", "destination_userid, datetime"));
+		add(5, "Create per-account ledger postings",
+				column("account", "posting_seq", "BIGINT NOT NULL DEFAULT 0"),
+				sql("CREATE TABLE IF NOT EXISTS account_posting (accountnumber INT NOT NULL, seq BIGINT NOT NULL, "
+						+ "datetime TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, type VARCHAR(20) NOT NULL, "
+						+ "amount BIGINT NOT NULL, balance_after BIGINT NOT NULL, counterparty INT, "
+						+ "description VARCHAR(255), PRIMARY KEY (accountnumber, seq))"),
+				// Existing balances become each account's first posting, so postings always sum to the balance
+				sql("INSERT INTO account_posting (accountnumber, seq, type, amount, balance_after, description) "
+						+ "SELECT accountnumber, 1, 'opening', balance, balance, 'Balance carried over' FROM account a "
+						+ "WHERE posting_seq = 0 AND balance <> 0 AND NOT EXISTS "
+						+ "(SELECT 1 FROM account_posting p WHERE p.accountnumber = a.accountnumber)"),
+				sql("UPDATE account SET posting_seq = 1 WHERE posting_seq = 0 AND balance <> 0"));
+		add(6, "Track applied journal entries",
+				sql("CREATE TABLE IF NOT EXISTS journal_applied (lsn BIGINT PRIMARY KEY)"));
+		// Plaintext values stay valid and are replaced with hashes as they are next used (see Credentials)
+		add(7, "Widen credential columns for hashes",
+				sql("ALTER TABLE account MODIFY password VARCHAR(160), MODIFY transaction_pin VARCHAR(160)"));
+		// Set by the database on every change to the row, so checkpoints can find what changed since the
+		// last one (see AccountCheckpoint) without every UPDATE having to maintain it
+		add(8, "Track when each account row last changed",
+				column("account", "updated_at",
+						"TIMESTAMP(6) NOT NULL DEFAULT CURRENT_TIMESTAMP(6) ON UPDATE CURRENT_TIMESTAMP(6)"),
+				index("account", "idx_account_updated_at", "updated_at"));
+	}
+
+	public static void migrate(ConnectionPool pool) throws SQLException {
+		try (Connection connection = pool.getConnection()) {
+			try (Statement st = connection.createStatement()) {
+				st.execute(CREATE_VERSION_TABLE);
+			}
+			List<Integer> applied = new ArrayList<>();
+			try (Statement st = connection.createStatement(); ResultSet rs = st.executeQuery(APPLIED_VERSIONS)) {
+				while (rs.next()) {
+					applied.add(rs.getInt("version"));
+				}
+			}
+			for (Migration migration : MIGRATIONS) {
+				if (applied.contains(migration.version)) {
+					continue;
+				}
+				System.out.println("Applying schema migration " + migration.version + ": " + migration.description);
+				for (Step step : migration.steps) {
+					step.apply(connection);
+				}
+				try (PreparedStatement ps = connection.prepareStatement(RECORD_VERSION)) {
+					ps.setInt(1, migration.version);
+					ps.setString(2, migration.description);
+					ps.executeUpdate();
+				}
+			}
+		}
+	}
+
+	// Highest version this build knows about
+	public static int latestVersion() {
+		return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+	}
+
+	private static void add(int version, String description, Step... steps) {
+		MIGRATIONS.add(new Migration(version, description, steps));
+	}
+
+	private static Step sql(String statement) {
+		return connection -> {
+			try (Statement st = connection.createStatement()) {
+				st.execute(statement);
+			}
+		};
+	}
+
+	// MySQL has no CREATE INDEX IF NOT EXISTS, so look the index up first
+	private static Step index(String table, String name, String columns) {
+		return connection -> {
+			DatabaseMetaData meta = connection.getMetaData();
+			try (ResultSet rs = meta.getIndexInfo(connection.getCatalog(), null, table, false, false)) {
+				while (rs.next()) {
+					if (name.equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+						return;
+					}
+				}
+			}
+			try (Statement st = connection.createStatement()) {
+				st.execute("CREATE INDEX " + name + " ON " + table + " (" + columns + ")");
+			}
+		};
+	}
+
+	private static Step column(String table, String name, String definition) {
+		return connection -> {
+			DatabaseMetaData meta = connection.getMetaData();
+			try (ResultSet rs = meta.getColumns(connection.getCatalog(), null, table, name)) {
+				if (rs.next()) {
+					return;
+				}
+			}
+			try (Statement st = connection.createStatement()) {
+				st.execute("ALTER TABLE " + table + " ADD COLUMN " + name + " " + definition);
+			}
+		};
+	}
+
+	interface Step {
+		void apply(Connection connection) throws SQLException;
+	}
+
+	private static class Migration {
+		final int version;
+		final String description;
+		final Step[] steps;
+
+		Migration(int version, String description, Step[] steps) {
+			this.version = version;
+			this.description = description;
+			this.steps = steps;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package com.testlab.model;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Objects;
+
+// The logged-in account's row, read in one query at login and kept for the console session, so the
+// menus check the active flag, password and PIN locally and a typical action only runs the statement
+// that does the work. The money statements still guard on isActive and the PIN themselves, so a
+// session that has gone stale cannot move money it should not; it is reloaded when such a statement
+// refuses, when a PIN fails to match (it may have been changed in another session), and updated in
+// place when this session changes its own password, PIN, name or active flag.
+public class Session {
+
+	private static final String SELECT_ROW = "SELECT accountnumber, userid, name, middle_name, surname, isActive, "
+			+ "password, transaction_pin FROM account WHERE ";
+
+	private final ConnectionPool pool;
+	private final Credentials credentials;
+	private final CredentialHasher hasher;
+
+	private int accountNumber;
+	private String userId;
+	private String name;
+	private String middleName;
+	private String surname;
+	private boolean active;
+	private String password;
+	private String pin;
+
+	private Session(ConnectionPool pool) {
+		this.pool = pool;
+		this.credentials = Credentials.forPool(pool);
+		this.hasher = CredentialHasher.get();
+	}
+
+	// The session for this account, or null if there is no such account
+	public static Session open(ConnectionPool pool, int accountNumber) throws SQLException {
+		Session session = new Session(pool);
+		return session.load("accountnumber", accountNumber) ? session : null;
+	}
+
+	public static Session open(ConnectionPool pool, String userId) throws SQLException {
+		Session session = new Session(pool);
+		return session.load("userid", userId) ? session : null;
+	}
+
+	// Re-reads the row; an account that has disappeared is treated as inactive
+	public void refresh() throws SQLException {
+		if (!load("accountnumber", accountNumber)) {
+			active = false;
+		}
+	}
+
+	public int getAccountNumber() {
+		return accountNumber;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getMiddleName() {
+		return middleName;
+	}
+
+	public String getSurname() {
+		return surname;
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+
+	public boolean checkPassword(String candidate) throws SQLException {
+		if (!hasher.verify(candidate, password)) {
+			return false;
+		}
+		password = credentials.upgrade("password", accountNumber, candidate, password);
+		return true;
+	}
+
+	// Checks the PIN against the one loaded at login, re-reading it once on a mismatch. A match is
+	// handed to Credentials, so the money statement that follows binds it without another SELECT.
+	public boolean checkPin(String candidate) throws SQLException {
+		if (!hasher.verify(candidate, pin)) {
+			String loaded = pin;
+			refresh();
+			if (Objects.equals(pin, loaded) || !hasher.verify(candidate, pin)) {
+				return false;
+			}
+		}
+		pin = credentials.upgrade("transaction_pin", accountNumber, candidate, pin);
+		credentials.remember(accountNumber, userId, candidate, pin);
+		return true;
+	}
+
+	// Called after this session stores new values, so the row need not be read again
+	public void passwordChanged(String stored) {
+		password = stored;
+	}
+
+	public void pinChanged(String stored) {
+		pin = stored;
+		credentials.forgetPin(accountNumber);
+		credentials.forgetPin(userId);
+	}
+
+	public void renamed(String name, String middleName, String surname) {
+		this.name = name;
+		this.middleName = middleName;
+		this.surname = surname;
+	}
+
+	public void deactivated() {
+		active = false;
+	}
+
+	private boolean load(String keyColumn, Object key) throws SQLException {
+		try (Connection connection = pool.getConnection();
+				PreparedStatement ps = connection.prepareStatement(SELECT_ROW + keyColumn + " = ?")) {
+			ps.setObject(1, key);
+			try (ResultSet rs = ps.executeQuery()) {
+				if (!rs.next()) {
+					return false;
+				}
+				accountNumber = rs.getInt("accountnumber");
+				userId = rs.getString("userid");
+				name = rs.getString("name");
+				middleName = rs.getString("middle_name");
+				surname = rs.getString("surname");
+				active = rs.getBoolean("isActive");
+				password = rs.getString("password");
+				pin = rs.getString("transaction_pin");
+				return true;
+			}
+		}
+	}
+}
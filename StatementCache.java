@@ -0,0 +1,220 @@
+package com.testlab.model;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// LRU cache of prepared statements for one physical pooled connection, keyed by SQL text.
+// Closing a cached statement hands it back to the cache; the statements themselves are
+// only closed when evicted or when the physical connection leaves the pool.
+public class StatementCache {
+
+	public static final int DEFAULT_SIZE = 64;
+
+	private static final LongAdder HITS = new LongAdder();
+	private static final LongAdder MISSES = new LongAdder();
+	private static final LongAdder EVICTIONS = new LongAdder();
+
+	private final Connection physical;
+	private final int maxSize;
+	private final LinkedHashMap<String, Entry> entries;
+	// Told of every SQLException a statement throws, so the pool can retire a failed connection
+	private final Consumer<SQLException> failures;
+
+	public StatementCache(Connection physical, int maxSize) {
+		this(physical, maxSize, e -> {
+		});
+	}
+
+	public StatementCache(Connection physical, int maxSize, Consumer<SQLException> failures) {
+		this.physical = physical;
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+		this.failures = failures;
+	}
+
+	// Returns a cached statement for this SQL, preparing it on a miss. If the cached statement
+	// is still checked out (the same SQL nested within one borrow) an uncached one is returned.
+	public PreparedStatement prepare(String sql, Connection owner) throws SQLException {
+		if (maxSize <= 0) {
+			return uncached(sql);
+		}
+		Entry entry = entries.get(sql);
+		if (entry != null) {
+			if (entry.inUse) {
+				MISSES.increment();
+				return uncached(sql);
+			}
+			HITS.increment();
+		} else {
+			MISSES.increment();
+			entry = new Entry(sql, physical.prepareStatement(sql));
+			entries.put(sql, entry);
+			evictOverflow();
+		}
+		entry.inUse = true;
+		return entry.newHandle(owner);
+	}
+
+	private PreparedStatement uncached(String sql) throws SQLException {
+		return (PreparedStatement) OperationMetrics.counting(physical.prepareStatement(sql), PreparedStatement.class,
+				failures);
+	}
+
+	private void evictOverflow() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (entries.size() > maxSize && it.hasNext()) {
+			Entry eldest = it.next();
+			if (eldest.inUse) {
+				continue;
+			}
+			it.remove();
+			EVICTIONS.increment();
+			closeQuietly(eldest.statement);
+		}
+	}
+
+	// Called when the connection goes back to the pool: statements the caller forgot to close are
+	// reset so the next borrower starts clean
+	public void reclaimAll() {
+		List<Entry> stale = new ArrayList<>();
+		for (Entry entry : entries.values()) {
+			if (entry.inUse) {
+				stale.add(entry);
+			}
+		}
+		for (Entry entry : stale) {
+			entry.release();
+		}
+	}
+
+	// Called when the physical connection is closed
+	public void closeAll() {
+		for (Entry entry : entries.values()) {
+			closeQuietly(entry.statement);
+		}
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public static long getHits() {
+		return HITS.sum();
+	}
+
+	public static long getMisses() {
+		return MISSES.sum();
+	}
+
+	public static long getEvictions() {
+		return EVICTIONS.sum();
+	}
+
+	// Fraction of prepareStatement calls served from a cache, 0.0 - 1.0
+	public static double getHitRate() {
+		long hits = HITS.sum();
+		long total = hits + MISSES.sum();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	public static String getStats() {
+		return String.format("hits=%d misses=%d evictions=%d hitRate=%.1f%%", getHits(), getMisses(),
+				getEvictions(), getHitRate() * 100);
+	}
+
+	private static void closeQuietly(PreparedStatement statement) {
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			// nothing useful to do with a statement we are discarding
+		}
+	}
+
+	private final class Entry {
+		private final String sql;
+		private final PreparedStatement statement;
+		private boolean inUse;
+		private Handle current;
+
+		Entry(String sql, PreparedStatement statement) {
+			this.sql = sql;
+			this.statement = statement;
+		}
+
+		PreparedStatement newHandle(Connection owner) {
+			current = new Handle(this, owner);
+			return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+					new Class<?>[] { PreparedStatement.class }, current);
+		}
+
+		void release() {
+			if (current != null) {
+				current.returned = true;
+				current = null;
+			}
+			try {
+				statement.clearParameters();
+				statement.clearBatch();
+				inUse = false;
+			} catch (SQLException e) {
+				// a statement that cannot be reset is not worth keeping
+				entries.remove(sql);
+				closeQuietly(statement);
+			}
+		}
+	}
+
+	private final class Handle implements InvocationHandler {
+		private final Entry entry;
+		private final Connection owner;
+		private boolean returned;
+
+		Handle(Entry entry, Connection owner) {
+			this.entry = entry;
+			this.owner = owner;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+			case "close":
+				if (!returned) {
+					entry.release();
+				}
+				return null;
+			case "isClosed":
+				return returned || entry.statement.isClosed();
+			case "getConnection":
+				return owner;
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return "CachedStatement[" + entry.sql + "]";
+			default:
+				break;
+			}
+			if (returned) {
+				throw new SQLException("Statement has already been closed");
+			}
+			try {
+				return OperationMetrics.invoke(method, entry.statement, args);
+			} catch (SQLException e) {
+				failures.accept(e);
+				throw e;
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.testlab.model;
+
+import java.sql.SQLException;
+
+// Outcome of a BankService operation. Failures carry a status and a message the console can print as-is.
+public class TransactionResult {
+
+	public enum Status {
+		SUCCESS,
+		INVALID_AMOUNT,
+		ACCOUNT_NOT_FOUND,
+		ACCOUNT_INACTIVE,
+		INVALID_PIN,
+		INSUFFICIENT_FUNDS,
+		SAME_ACCOUNT,
+		RECEIVER_NOT_FOUND,
+		RECEIVER_INACTIVE,
+		FAILED
+	}
+
+	private final Status status;
+	private final long amount;
+	private final long balance;
+	private final String message;
+	private final SQLException error;
+
+	private TransactionResult(Status status, long amount, long balance, String message, SQLException error) {
+		this.status = status;
+		this.amount = amount;
+		this.balance = balance;
+		this.message = message;
+		this.error = error;
+	}
+
+	public static TransactionResult success(long amount, long balance) {
+		return new TransactionResult(Status.SUCCESS, amount, balance, "OK", null);
+	}
+
+	public static TransactionResult failure(Status status, String message) {
+		return new TransactionResult(status, 0, -1, message, null);
+	}
+
+	public static TransactionResult insufficientFunds(long balance) {
+		return new TransactionResult(Status.INSUFFICIENT_FUNDS, 0, balance,
+				"Insufficient funds! Current balance: " + Money.format(balance) + " ₹.", null);
+	}
+
+	public static TransactionResult error(SQLException e) {
+		return new TransactionResult(Status.FAILED, 0, -1, "Transaction failed: " + e.getMessage(), e);
+	}
+
+	public boolean isSuccess() {
+		return status == Status.SUCCESS;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	// Amounts and balances are in paise
+	public long getAmount() {
+		return amount;
+	}
+
+	// Balance after the operation, or the current balance for INSUFFICIENT_FUNDS; -1 when not known
+	public long getBalance() {
+		return balance;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public SQLException getError() {
+		return error;
+	}
+
+	@Override
+	public String toString() {
+		return status + (isSuccess() ? " amount=" + Money.format(amount) + " balance=" + Money.format(balance)
+				: ": " + message);
+	}
+}
@@ -0,0 +1,265 @@
+package com.testlab.model;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Reads an account's transaction history newest first. Pages are found by a (datetime, id) keyset
+// cursor rather than OFFSET, so page 500 costs the same as page 1 and the rows never shift under a
+// reader while new transactions arrive. Long ranges can instead be streamed row by row.
+public class TransactionStatement {
+
+	public static final int DEFAULT_PAGE_SIZE = 10;
+
+	// MySQL Connector/J streams rows one at a time only for this fetch size; other drivers take a hint
+	private static final int MYSQL_STREAMING = Integer.MIN_VALUE;
+	private static final int STREAM_FETCH_SIZE = 500;
+	static final String NEWEST_FIRST = "datetime DESC, id DESC";
+	static final String OLDEST_FIRST = "datetime ASC, id ASC";
+
+	private final ConnectionPool pool;
+
+	public TransactionStatement(ConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	public Page firstPage(int accountNumber, int pageSize) throws SQLException {
+		return fetch(new Page(By.ACCOUNT_NUMBER, accountNumber, pageSize), null, true);
+	}
+
+	public Page firstPage(String userId, int pageSize) throws SQLException {
+		return fetch(new Page(By.USER_ID, userId, pageSize), null, true);
+	}
+
+	// The page after this one, going back in time; returns the same page if there is nothing older
+	public Page older(Page page) throws SQLException {
+		if (!page.hasOlder) {
+			return page;
+		}
+		return fetch(page, page.entries.get(page.entries.size() - 1), true);
+	}
+
+	// Resumes paging older than a cursor kept outside this process (the datetime and id of the last
+	// entry already seen), for stateless clients such as BankServer
+	public Page olderThan(int accountNumber, int pageSize, Timestamp datetime, long id) throws SQLException {
+		Entry cursor = new Entry();
+		cursor.datetime = datetime;
+		cursor.id = id;
+		return fetch(new Page(By.ACCOUNT_NUMBER, accountNumber, pageSize), cursor, true);
+	}
+
+	// The page before this one, going forward in time; returns the same page if there is nothing newer
+	public Page newer(Page page) throws SQLException {
+		if (!page.hasNewer) {
+			return page;
+		}
+		return fetch(page, page.entries.get(0), false);
+	}
+
+	// Streams every transaction at or after since, newest first, without buffering the result set
+	public int stream(int accountNumber, Timestamp since, Consumer<Entry> consumer) throws SQLException {
+		return stream(By.ACCOUNT_NUMBER, accountNumber, since, consumer);
+	}
+
+	public int stream(String userId, Timestamp since, Consumer<Entry> consumer) throws SQLException {
+		return stream(By.USER_ID, userId, since, consumer);
+	}
+
+	private int stream(By by, Object account, Timestamp since, Consumer<Entry> consumer) throws SQLException {
+		int count = 0;
+		try (Connection connection = pool.getConnection();
+				PreparedStatement ps = connection.prepareStatement(by.range, ResultSet.TYPE_FORWARD_ONLY,
+						ResultSet.CONCUR_READ_ONLY)) {
+			boolean mysql = connection.getMetaData().getDriverName().startsWith("MySQL");
+			ps.setFetchSize(mysql ? MYSQL_STREAMING : STREAM_FETCH_SIZE);
+			int i = 1;
+			for (int side = 0; side < 2; side++) {
+				i = bindSide(ps, i, account, side);
+				ps.setTimestamp(i++, since);
+			}
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					consumer.accept(read(rs));
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	// Reads one row past the page size to learn whether another page exists in that direction
+	private Page fetch(Page from, Entry cursor, boolean goingOlder) throws SQLException {
+		List<Entry> entries = new ArrayList<>(from.pageSize + 1);
+		String sql = cursor == null ? from.by.first : goingOlder ? from.by.older : from.by.newer;
+		try (Connection connection = pool.getConnection(); PreparedStatement ps = connection.prepareStatement(sql)) {
+			int i = 1;
+			for (int side = 0; side < 2; side++) {
+				i = bindSide(ps, i, from.account, side);
+				if (cursor != null) {
+					ps.setTimestamp(i++, cursor.datetime);
+					ps.setTimestamp(i++, cursor.datetime);
+					ps.setLong(i++, cursor.id);
+				}
+				ps.setInt(i++, from.pageSize + 1);
+			}
+			ps.setInt(i, from.pageSize + 1);
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					entries.add(read(rs));
+				}
+			}
+		}
+		boolean more = entries.size() > from.pageSize;
+		if (more) {
+			entries.remove(entries.size() - 1);
+		}
+		Page page = new Page(from.by, from.account, from.pageSize);
+		if (goingOlder) {
+			page.hasOlder = more;
+			page.hasNewer = cursor != null;
+		} else {
+			Collections.reverse(entries);
+			page.hasNewer = more;
+			page.hasOlder = true;
+		}
+		if (entries.isEmpty() && cursor != null) {
+			// everything in that direction disappeared since the last page was read
+			return fetch(from, null, true);
+		}
+		page.entries = entries;
+		return page;
+	}
+
+	// Binds the account parameters of one half of an eitherSide query; returns the next index
+	private static int bindSide(PreparedStatement ps, int i, Object account, int side) throws SQLException {
+		ps.setObject(i++, account);
+		if (side == 1) {
+			ps.setObject(i++, account);
+		}
+		return i;
+	}
+
+	// Rows with the account on either side, as two range scans of the (column, datetime) indexes merged
+	// by time instead of one OR that scans the table. The destination half skips rows the source half
+	// already has. Each half binds the account (twice for the destination half), then filter, then limit.
+	static String eitherSide(String sourceColumn, String destinationColumn, String filter, String order,
+			String limit) {
+		String select = "SELECT id, datetime, type, amount, " + sourceColumn + " AS source, " + destinationColumn
+				+ " AS destination, description FROM transaction WHERE ";
+		String tail = filter + " ORDER BY " + order + limit;
+		return "(" + select + sourceColumn + " = ?" + tail + ") UNION ALL (" + select + destinationColumn + " = ? AND ("
+				+ sourceColumn + " IS NULL OR " + sourceColumn + " <> ?)" + tail + ") ORDER BY " + order + limit;
+	}
+
+	private static Entry read(ResultSet rs) throws SQLException {
+		Entry entry = new Entry();
+		entry.id = rs.getLong("id");
+		entry.datetime = rs.getTimestamp("datetime");
+		entry.type = rs.getString("type");
+		entry.amount = rs.getLong("amount");
+		entry.source = rs.getString("source");
+		entry.destination = rs.getString("destination");
+		entry.description = rs.getString("description");
+		return entry;
+	}
+
+	// Which pair of transaction columns identifies the account, with its queries pre-built
+	enum By {
+		ACCOUNT_NUMBER("source_account", "destination_account"),
+		USER_ID("source_userid", "destination_userid");
+
+		final String first;
+		final String older;
+		final String newer;
+		final String range;
+
+		By(String sourceColumn, String destinationColumn) {
+			first = eitherSide(sourceColumn, destinationColumn, "", NEWEST_FIRST, " LIMIT ?");
+			older = eitherSide(sourceColumn, destinationColumn, " AND (datetime < ? OR (datetime = ? AND id < ?))",
+					NEWEST_FIRST, " LIMIT ?");
+			newer = eitherSide(sourceColumn, destinationColumn, " AND (datetime > ? OR (datetime = ? AND id > ?))",
+					OLDEST_FIRST, " LIMIT ?");
+			range = eitherSide(sourceColumn, destinationColumn, " AND datetime >= ?", NEWEST_FIRST, "");
+		}
+	}
+
+	public static class Page {
+		private final By by;
+		private final Object account;
+		private final int pageSize;
+		private List<Entry> entries = Collections.emptyList();
+		private boolean hasOlder;
+		private boolean hasNewer;
+
+		Page(By by, Object account, int pageSize) {
+			if (pageSize < 1) {
+				throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+			}
+			this.by = by;
+			this.account = account;
+			this.pageSize = pageSize;
+		}
+
+		public List<Entry> getEntries() {
+			return entries;
+		}
+
+		public boolean hasOlder() {
+			return hasOlder;
+		}
+
+		public boolean hasNewer() {
+			return hasNewer;
+		}
+
+		public int getPageSize() {
+			return pageSize;
+		}
+	}
+
+	// One transaction row; source and destination are account numbers or userIds depending on the lookup
+	public static class Entry {
+		private long id;
+		private Timestamp datetime;
+		private String type;
+		private long amount;
+		private String source;
+		private String destination;
+		private String description;
+
+		public long getId() {
+			return id;
+		}
+
+		public Timestamp getDatetime() {
+			return datetime;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		// paise
+		public long getAmount() {
+			return amount;
+		}
+
+		public String getSource() {
+			return source;
+		}
+
+		public String getDestination() {
+			return destination;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package com.testlab.model;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.testlab.model.TransactionResult.Status;
+
+// Runs account-to-account transfers so that concurrent A->B and B->A transfers cannot deadlock:
+// the two row updates are always issued lowest account number first, so every transaction takes
+// its row locks in the same order. Deadlocks and lock-wait timeouts that still happen (for
+// example against other writers) are retried with bounded, jittered exponential backoff.
+public class TransferExecutor {
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+	public static final long DEFAULT_BASE_BACKOFF_MILLIS = 5;
+	public static final long DEFAULT_MAX_BACKOFF_MILLIS = 200;
+
+	private final ConnectionPool pool;
+	private final Credentials credentials;
+	private final int maxAttempts;
+	private final long baseBackoffMillis;
+	private final long maxBackoffMillis;
+
+	private final LongAdder transfers = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder exhausted = new LongAdder();
+	private final LongAdder lockWaitSamples = new LongAdder();
+	private final LongAdder lockWaitNanos = new LongAdder();
+	private final AtomicLong maxLockWaitNanos = new AtomicLong();
+
+	public TransferExecutor(ConnectionPool pool) {
+		this(pool, DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+	}
+
+	public TransferExecutor(ConnectionPool pool, int maxAttempts, long baseBackoffMillis, long maxBackoffMillis) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("maxAttempts must be at least 1: " + maxAttempts);
+		}
+		this.pool = pool;
+		this.credentials = Credentials.forPool(pool);
+		this.maxAttempts = maxAttempts;
+		this.baseBackoffMillis = baseBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	// Moves amount from sender to receiver, checking the sender's PIN, active flag and balance
+	// and the receiver's active flag as part of the updates themselves
+	public TransactionResult transfer(int sender, int receiver, long amount, String pin) {
+		return transfer(sender, receiver, amount, pin, 0);
+	}
+
+	// journalLsn is recorded in the transfer's own transaction; see BankService.markJournalEntry
+	TransactionResult transfer(int sender, int receiver, long amount, String pin, long journalLsn) {
+		String pinGuard;
+		try {
+			pinGuard = credentials.pinGuard(sender, pin);
+		} catch (SQLException e) {
+			transfers.increment();
+			return TransactionResult.error(e);
+		}
+		return transferGuarded(sender, receiver, amount, pinGuard, journalLsn);
+	}
+
+	// pinGuard is the sender's, from Credentials.pinGuard
+	TransactionResult transferGuarded(int sender, int receiver, long amount, String pinGuard, long journalLsn) {
+		transfers.increment();
+		for (int attempt = 1;; attempt++) {
+			try {
+				return attempt(sender, receiver, amount, pinGuard, journalLsn);
+			} catch (SQLException e) {
+				if (!isRetryable(e)) {
+					return TransactionResult.error(e);
+				}
+				if (attempt >= maxAttempts) {
+					exhausted.increment();
+					return TransactionResult.error(e);
+				}
+				retries.increment();
+				if (!backoff(attempt)) {
+					return TransactionResult.error(e);
+				}
+			}
+		}
+	}
+
+	private TransactionResult attempt(int sender, int receiver, long amount, String pinGuard, long journalLsn)
+			throws SQLException {
+		try (Connection connection = pool.getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				if (!BankService.markJournalEntry(connection, journalLsn)) {
+					connection.rollback();
+					return BankService.alreadyApplied();
+				}
+				TransactionResult result = move(connection, sender, receiver, amount, pinGuard);
+				if (result.isSuccess()) {
+					connection.commit();
+					return result;
+				}
+				connection.rollback();
+				if (journalLsn != 0) {
+					// the rejection is the entry's outcome; keep it from being applied again
+					BankService.markJournalEntry(connection, journalLsn);
+					connection.commit();
+				}
+				return result;
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			}
+		}
+	}
+
+	// The transfer's updates and postings inside the caller's transaction. When it is refused, one of
+	// the two updates may already have run; the caller rolls it back.
+	TransactionResult move(Connection connection, int sender, int receiver, long amount, String pinGuard)
+			throws SQLException {
+		try (PreparedStatement debit = connection.prepareStatement(BankService.GUARDED_DEBIT);
+				PreparedStatement credit = connection.prepareStatement(BankService.CREDIT_ACTIVE);
+				PreparedStatement posting = connection.prepareStatement(BankService.POSTING)) {
+			BankService.bindDebit(debit, sender, amount, 1, pinGuard);
+			credit.setLong(1, amount);
+			credit.setInt(2, 1);
+			credit.setInt(3, receiver);
+
+			// Lowest account number first; whichever update comes first takes the first lock
+			long start = System.nanoTime();
+			int debited;
+			int credited;
+			if (sender < receiver) {
+				debited = debit.executeUpdate();
+				credited = debited == 1 ? credit.executeUpdate() : 0;
+			} else {
+				credited = credit.executeUpdate();
+				debited = credited == 1 ? debit.executeUpdate() : 0;
+			}
+			recordLockWait(System.nanoTime() - start);
+
+			if (debited == 1 && credited == 1) {
+				AccountLedger.bindPosting(posting, sender, 0, 0, "transfer", -amount, receiver, "Transfer out");
+				posting.addBatch();
+				AccountLedger.bindPosting(posting, receiver, 0, 0, "transfer", amount, sender, "Transfer in");
+				posting.addBatch();
+				posting.executeBatch();
+				return TransactionResult.success(amount, -1);
+			}
+			if (debited != 1 && (sender < receiver || credited == 1)) {
+				return BankService.explainRejected(BankService.findAccount(connection, sender), pinGuard, amount);
+			}
+			if (BankService.findAccount(connection, receiver) == null) {
+				return TransactionResult.failure(Status.RECEIVER_NOT_FOUND, "Receiver account not found!");
+			}
+			return TransactionResult.failure(Status.RECEIVER_INACTIVE,
+					"Receiver account is inactive. Transaction not allowed.");
+		}
+	}
+
+	// Deadlock victims and lock-wait timeouts are safe to retry: the whole transaction was rolled back
+	static boolean isRetryable(SQLException e) {
+		if (e instanceof SQLTransactionRollbackException) {
+			return true;
+		}
+		String state = e.getSQLState();
+		int code = e.getErrorCode();
+		// 40001: serialization failure / deadlock; 1213 and 1205: MySQL deadlock and lock wait timeout;
+		// HYT00: lock timeout on H2
+		return "40001".equals(state) || "HYT00".equals(state) || code == 1213 || code == 1205;
+	}
+
+	// Full-jitter exponential backoff; returns false if interrupted
+	private boolean backoff(int attempt) {
+		long ceiling = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt - 1, 20));
+		long sleep = ThreadLocalRandom.current().nextLong(ceiling + 1);
+		try {
+			Thread.sleep(sleep);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void recordLockWait(long nanos) {
+		lockWaitSamples.increment();
+		lockWaitNanos.add(nanos);
+		maxLockWaitNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	public long getTransfers() {
+		return transfers.sum();
+	}
+
+	public long getRetries() {
+		return retries.sum();
+	}
+
+	// Transfers that were still hitting deadlocks or lock timeouts after maxAttempts
+	public long getRetriesExhausted() {
+		return exhausted.sum();
+	}
+
+	// Time spent in the two row updates, which is where lock waits show up
+	public double getAverageLockWaitMillis() {
+		long count = lockWaitSamples.sum();
+		return count == 0 ? 0 : lockWaitNanos.sum() / (count * 1_000_000.0);
+	}
+
+	public double getMaxLockWaitMillis() {
+		return maxLockWaitNanos.get() / 1_000_000.0;
+	}
+
+	public String getStats() {
+		return String.format("transfers=%d retries=%d exhausted=%d avgLockWait=%.3fms maxLockWait=%.3fms",
+				getTransfers(), getRetries(), getRetriesExhausted(), getAverageLockWaitMillis(),
+				getMaxLockWaitMillis());
+	}
+}
@@ -0,0 +1,69 @@
+package com.testlab.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.testlab.model.InMemoryAccountStore;
+import com.testlab.model.TransactionResult;
+
+// The same operations as BankOperationsBenchmark against InMemoryAccountStore, which needs no
+// database: the ceiling the store itself puts on a load test or simulation.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AccountStoreBenchmark {
+
+	@Param({ "10000", "1000000" })
+	public int accounts;
+
+	private InMemoryAccountStore store;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		store = new InMemoryAccountStore(accounts);
+		for (int i = 0; i < accounts; i++) {
+			int accountNumber = BenchmarkDatabase.FIRST_ACCOUNT + i;
+			store.open(accountNumber, "bench.user@" + accountNumber, 1_000_000_000L, BenchmarkDatabase.PIN, true);
+		}
+	}
+
+	private int randomAccount() {
+		return BenchmarkDatabase.FIRST_ACCOUNT + ThreadLocalRandom.current().nextInt(accounts);
+	}
+
+	@Benchmark
+	public TransactionResult checkBalance() {
+		return store.getBalance(randomAccount());
+	}
+
+	@Benchmark
+	public TransactionResult deposit() {
+		return store.deposit(randomAccount(), 1_000, BenchmarkDatabase.PIN);
+	}
+
+	@Benchmark
+	public TransactionResult transfer() {
+		int sender = randomAccount();
+		int receiver = randomAccount();
+		if (receiver == sender) {
+			receiver = sender == BenchmarkDatabase.FIRST_ACCOUNT ? sender + 1 : sender - 1;
+		}
+		return store.transfer(sender, receiver, 1_000, BenchmarkDatabase.PIN);
+	}
+}
@@ -0,0 +1,140 @@
+package com.testlab.bench;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.testlab.model.BankOperations;
+import com.testlab.model.BankService;
+import com.testlab.model.TransactionResult;
+
+// Core operations against a seeded embedded database. Thread count is chosen by the runner
+// (-t), so the same methods give the single-threaded and contended numbers.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BankOperationsBenchmark {
+
+	@Param("10000")
+	public int accounts;
+
+	@Param("20")
+	public int transactionsPerAccount;
+
+	private BenchmarkDatabase database;
+	private BankService service;
+
+	@Setup(Level.Trial)
+	public void setUp() throws SQLException {
+		database = BenchmarkDatabase.create(accounts, transactionsPerAccount, 64);
+		service = new BankService(database.getPool());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws SQLException {
+		database.close();
+	}
+
+	private int randomAccount() {
+		return BenchmarkDatabase.FIRST_ACCOUNT + ThreadLocalRandom.current().nextInt(accounts);
+	}
+
+	@Benchmark
+	public TransactionResult checkBalance() {
+		return service.getBalance(randomAccount());
+	}
+
+	@Benchmark
+	public TransactionResult deposit() {
+		return service.deposit(randomAccount(), 1_000, BenchmarkDatabase.PIN);
+	}
+
+	@Benchmark
+	public TransactionResult withdraw() {
+		return service.withdraw(randomAccount(), 1_000, BenchmarkDatabase.PIN);
+	}
+
+	@Benchmark
+	public TransactionResult transferByAccountNumber() {
+		int sender = randomAccount();
+		int receiver = randomAccount();
+		if (receiver == sender) {
+			receiver = sender == BenchmarkDatabase.FIRST_ACCOUNT ? sender + 1 : sender - 1;
+		}
+		return service.transfer(sender, receiver, 1_000, BenchmarkDatabase.PIN);
+	}
+
+	// A->B and B->A on the same two rows: the deadlock-prone case under multiple threads
+	@Benchmark
+	public TransactionResult transferHotPair() {
+		int first = BenchmarkDatabase.FIRST_ACCOUNT;
+		boolean forward = ThreadLocalRandom.current().nextBoolean();
+		return service.transfer(forward ? first : first + 1, forward ? first + 1 : first, 1_000, BenchmarkDatabase.PIN);
+	}
+
+	@Benchmark
+	public TransactionResult transferByUserId() {
+		int sender = randomAccount();
+		int receiver = randomAccount();
+		if (receiver == sender) {
+			receiver = sender == BenchmarkDatabase.FIRST_ACCOUNT ? sender + 1 : sender - 1;
+		}
+		return service.transfer(BenchmarkDatabase.userIdFor(sender), BenchmarkDatabase.userIdFor(receiver), 1_000,
+				BenchmarkDatabase.PIN);
+	}
+
+	@Benchmark
+	public void latestTransactionsByAccountNumber(Blackhole bh) throws SQLException {
+		int accountNumber = randomAccount();
+		try (Connection connection = database.getPool().getConnection();
+				PreparedStatement ps = connection.prepareStatement(BankOperations.LATEST_TRANSACTIONS_BY_ACCOUNT_SQL)) {
+			ps.setInt(1, accountNumber);
+			ps.setInt(2, accountNumber);
+			ps.setInt(3, accountNumber);
+			consume(ps, bh);
+		}
+	}
+
+	@Benchmark
+	public void latestTransactionsByUserId(Blackhole bh) throws SQLException {
+		String userId = BenchmarkDatabase.userIdFor(randomAccount());
+		try (Connection connection = database.getPool().getConnection();
+				PreparedStatement ps = connection.prepareStatement(BankOperations.LATEST_TRANSACTIONS_BY_USER_ID_SQL)) {
+			ps.setString(1, userId);
+			ps.setString(2, userId);
+			ps.setString(3, userId);
+			consume(ps, bh);
+		}
+	}
+
+	private static void consume(PreparedStatement ps, Blackhole bh) throws SQLException {
+		try (ResultSet rs = ps.executeQuery()) {
+			while (rs.next()) {
+				bh.consume(rs.getTimestamp("datetime"));
+				bh.consume(rs.getLong("amount"));
+				bh.consume(rs.getString("description"));
+			}
+		}
+	}
+}
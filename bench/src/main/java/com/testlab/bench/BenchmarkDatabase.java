@@ -0,0 +1,120 @@
+package com.testlab.bench;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.testlab.model.ConnectionPool;
+import com.testlab.model.SchemaMigrator;
+
+// Embedded H2 database (MySQL mode) seeded with a configurable number of accounts and transactions
+public class BenchmarkDatabase implements AutoCloseable {
+
+	public static final int FIRST_ACCOUNT = 1001;
+	public static final String PIN = "1234";
+	// paise
+	public static final long OPENING_BALANCE = 1_000_000_000_00L;
+
+	private static final AtomicInteger DATABASE_IDS = new AtomicInteger();
+	private static final int SEED_BATCH = 1_000;
+
+	private final ConnectionPool pool;
+	private final int accounts;
+
+	private BenchmarkDatabase(ConnectionPool pool, int accounts) {
+		this.pool = pool;
+		this.accounts = accounts;
+	}
+
+	public static BenchmarkDatabase create(int accounts, int transactionsPerAccount, int poolSize)
+			throws SQLException {
+		String url = "jdbc:h2:mem:bench" + DATABASE_IDS.incrementAndGet()
+				+ ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000";
+		ConnectionPool pool = new ConnectionPool(url, "sa", "", poolSize, 30_000, 600_000, 0);
+		BenchmarkDatabase database = new BenchmarkDatabase(pool, accounts);
+		database.createSchema();
+		database.seed(transactionsPerAccount);
+		return database;
+	}
+
+	public ConnectionPool getPool() {
+		return pool;
+	}
+
+	public int getAccounts() {
+		return accounts;
+	}
+
+	public static String userIdFor(int accountNumber) {
+		return "bench.user@" + accountNumber;
+	}
+
+	// Same DDL and indexes as production
+	private void createSchema() throws SQLException {
+		SchemaMigrator.migrate(pool);
+	}
+
+	private void seed(int transactionsPerAccount) throws SQLException {
+		try (Connection connection = pool.getConnection()) {
+			connection.setAutoCommit(false);
+			String insertAccount = "INSERT INTO account (accountnumber, name, middle_name, surname, balance, userid, password, transaction_pin) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+			try (PreparedStatement ps = connection.prepareStatement(insertAccount)) {
+				for (int i = 0; i < accounts; i++) {
+					int accountNumber = FIRST_ACCOUNT + i;
+					ps.setInt(1, accountNumber);
+					ps.setString(2, "bench");
+					ps.setString(3, "");
+					ps.setString(4, "user");
+					ps.setLong(5, OPENING_BALANCE);
+					ps.setString(6, userIdFor(accountNumber));
+					ps.setString(7, "password");
+					ps.setString(8, PIN);
+					ps.addBatch();
+					if ((i + 1) % SEED_BATCH == 0) {
+						ps.executeBatch();
+					}
+				}
+				ps.executeBatch();
+			}
+			connection.commit();
+
+			String insertTransaction = "INSERT INTO transaction (datetime, type, amount, source_account, destination_account, source_userid, destination_userid, description) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+			long now = System.currentTimeMillis();
+			long total = (long) accounts * transactionsPerAccount;
+			try (PreparedStatement ps = connection.prepareStatement(insertTransaction)) {
+				for (long i = 0; i < total; i++) {
+					int source = FIRST_ACCOUNT + (int) (i % accounts);
+					int destination = FIRST_ACCOUNT + (int) ((i * 7919 + 1) % accounts);
+					// spread over the last 60 days so the 30-day window holds about half the rows
+					ps.setTimestamp(1, new Timestamp(now - (i * 3_600_000L) % (60L * 86_400_000L)));
+					ps.setString(2, "transfer");
+					ps.setLong(3, 10_000);
+					ps.setInt(4, source);
+					ps.setInt(5, destination);
+					ps.setString(6, userIdFor(source));
+					ps.setString(7, userIdFor(destination));
+					ps.setString(8, "Seeded transfer");
+					ps.addBatch();
+					if ((i + 1) % SEED_BATCH == 0) {
+						ps.executeBatch();
+						connection.commit();
+					}
+				}
+				ps.executeBatch();
+			}
+			connection.commit();
+		}
+	}
+
+	@Override
+	public void close() throws SQLException {
+		try (Connection connection = pool.getConnection(); Statement st = connection.createStatement()) {
+			st.execute("SHUTDOWN");
+		} finally {
+			pool.close();
+		}
+	}
+}
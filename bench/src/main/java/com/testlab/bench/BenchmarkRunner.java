@@ -0,0 +1,42 @@
+package com.testlab.bench;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs every benchmark single-threaded and then with -Dbench.threads threads (default 8),
+// and writes both result tables to bench_output.txt. Extra arguments are passed to JMH
+// (for example a benchmark regex or -p accounts=100000).
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException, IOException, CommandLineOptionException {
+		int threads = Integer.getInteger("bench.threads", 8);
+		String output = System.getProperty("bench.output", "bench_output.txt");
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+
+		int[] threadCounts = threads == 1 ? new int[] { 1 } : new int[] { 1, threads };
+		for (int t : threadCounts) {
+			Options options = new OptionsBuilder().parent(commandLine).threads(t).build();
+			Collection<RunResult> run = new Runner(options).run();
+			try (PrintStream out = new PrintStream(new FileOutputStream(output, t != 1), true,
+					StandardCharsets.UTF_8.name())) {
+				out.println("# Threads: " + t);
+				ResultFormatFactory.getInstance(ResultFormatType.TEXT, out).writeOut(run);
+				out.println();
+			}
+		}
+		System.out.println("Results written to " + output);
+	}
+}
@@ -0,0 +1,109 @@
+package com.testlab.bench;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.testlab.model.BankOperations;
+import com.testlab.model.TransactionStatement;
+
+// Latest-5 statement lookup at 10M transaction rows: the old single "source = ? OR destination = ?"
+// query against the indexed UNION ALL the menus now run, plus a deep keyset page. Seeding takes a
+// few minutes and needs the large heap below; use -p transactionsPerAccount=10 for a quick run.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class StatementQueryBenchmark {
+
+	// What the menus ran before the UNION ALL rewrite
+	private static final String OR_LATEST_TRANSACTIONS_SQL = "SELECT id, datetime, type, amount, source_account, destination_account, description "
+			+ "FROM transaction WHERE source_account = ? OR destination_account = ? ORDER BY datetime DESC LIMIT 5";
+
+	@Param("100000")
+	public int accounts;
+
+	@Param("100")
+	public int transactionsPerAccount;
+
+	private BenchmarkDatabase database;
+	private TransactionStatement statements;
+
+	@Setup(Level.Trial)
+	public void setUp() throws SQLException {
+		database = BenchmarkDatabase.create(accounts, transactionsPerAccount, 64);
+		statements = new TransactionStatement(database.getPool());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws SQLException {
+		database.close();
+	}
+
+	private int randomAccount() {
+		return BenchmarkDatabase.FIRST_ACCOUNT + ThreadLocalRandom.current().nextInt(accounts);
+	}
+
+	@Benchmark
+	public void latestWithOr(Blackhole bh) throws SQLException {
+		int accountNumber = randomAccount();
+		try (Connection connection = database.getPool().getConnection();
+				PreparedStatement ps = connection.prepareStatement(OR_LATEST_TRANSACTIONS_SQL)) {
+			ps.setInt(1, accountNumber);
+			ps.setInt(2, accountNumber);
+			consume(ps, bh);
+		}
+	}
+
+	@Benchmark
+	public void latestWithUnionAll(Blackhole bh) throws SQLException {
+		int accountNumber = randomAccount();
+		try (Connection connection = database.getPool().getConnection();
+				PreparedStatement ps = connection.prepareStatement(BankOperations.LATEST_TRANSACTIONS_BY_ACCOUNT_SQL)) {
+			ps.setInt(1, accountNumber);
+			ps.setInt(2, accountNumber);
+			ps.setInt(3, accountNumber);
+			consume(ps, bh);
+		}
+	}
+
+	// Fifth page back; with keyset cursors this should cost about the same as the first
+	@Benchmark
+	public TransactionStatement.Page keysetFifthPage() throws SQLException {
+		TransactionStatement.Page page = statements.firstPage(randomAccount(), TransactionStatement.DEFAULT_PAGE_SIZE);
+		for (int i = 0; i < 4; i++) {
+			page = statements.older(page);
+		}
+		return page;
+	}
+
+	private static void consume(PreparedStatement ps, Blackhole bh) throws SQLException {
+		try (ResultSet rs = ps.executeQuery()) {
+			while (rs.next()) {
+				bh.consume(rs.getTimestamp("datetime"));
+				bh.consume(rs.getLong("amount"));
+				bh.consume(rs.getString("description"));
+			}
+		}
+	}
+}